@@ -0,0 +1,86 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import nl.sikken.bertrik.caloriecounter.EnergyAccumulator.EWindow;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.DelayedApi;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.Gtin;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.OpenFoodFacts;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.ProductInfo;
+
+/**
+ * The hot path of an incoming sale of a product that is in memory: bar code check, lookup, accumulation (including
+ * the append to the sale log) and formatting of the published payload.
+ *
+ * CalorieCounter.handleMessage hands the sale to the lookup pipeline and the result to MQTT, so the same stages are
+ * called here directly, on the benchmark thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MessagePathBenchmark {
+
+    private static final byte[] PAYLOAD = "0737628064502".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BASKET = "[\"0737628064502\",{\"code\":\"8710400311720\",\"qty\":2},\"4029764001401\"]"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private File root;
+    private OpenFoodFacts off;
+    private EnergyTotals totals;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("message").toFile();
+        off = new OpenFoodFacts(new DelayedApi(DelayedApi.readFixture(), 0), root, 1000, 64 * 1024 * 1024,
+                TimeUnit.DAYS.toMillis(30), TimeUnit.HOURS.toMillis(24));
+        off.start();
+        off.lookupProduct("737628064502");
+        totals = new EnergyTotals(Clock.systemDefaultZone(), LocalTime.MIDNIGHT, new File(root, "energy.dat"));
+        totals.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        totals.stop();
+        off.stop();
+    }
+
+    @Benchmark
+    public long decodeBarCode() {
+        return Gtin.decode(PAYLOAD);
+    }
+
+    @Benchmark
+    public SaleMessage parseBasket() {
+        return SaleMessage.parse(BASKET);
+    }
+
+    @Benchmark
+    public String handleMessage() {
+        String barCode = SaleMessage.parse(PAYLOAD).getItems().get(0).getBarCode();
+        ProductInfo product = off.getCachedProduct(barCode);
+        totals.add("", OpenFoodFacts.getEnergy(barCode, product));
+        return CalorieCounter.buildPayload(totals::getTotal, EWindow.TODAY, false);
+    }
+
+    @Benchmark
+    public String jsonPayload() {
+        return CalorieCounter.buildPayload(totals::getTotal, EWindow.TODAY, true);
+    }
+
+}
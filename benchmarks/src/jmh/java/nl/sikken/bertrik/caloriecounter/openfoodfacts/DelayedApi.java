@@ -0,0 +1,88 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.mock.Calls;
+
+/**
+ * Mocked OpenFoodFacts API, answering every request with the same product after a fixed latency.
+ *
+ * A search answers every requested bar code with that product.
+ */
+public final class DelayedApi implements IOpenFoodFactsApi {
+
+	private static final MediaType JSON = MediaType.parse("application/json");
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final byte[] response;
+	private final ObjectNode product;
+	private final long latency;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param response the JSON response
+	 * @param latency the simulated latency of a request (ms)
+	 * @throws IOException in case the response is not a product JSON document
+	 */
+	public DelayedApi(byte[] response, long latency) throws IOException {
+		this.response = response.clone();
+		this.product = (ObjectNode) MAPPER.readTree(response).get("product");
+		this.latency = latency;
+	}
+
+	@Override
+	public Call<ResponseBody> getProductInfo(String barCode, String etag, String lastModified) {
+		delay();
+		return Calls.response(ResponseBody.create(JSON, response));
+	}
+
+	@Override
+	public Call<ResponseBody> searchProducts(String barCodes, int pageSize) {
+		delay();
+		ObjectNode root = MAPPER.createObjectNode();
+		ArrayNode products = root.putArray("products");
+		for (String barCode : barCodes.split(",")) {
+			products.add(product.deepCopy().put("code", barCode));
+		}
+		return Calls.response(ResponseBody.create(JSON, root.toString()));
+	}
+
+	private void delay() {
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Reads the product JSON fixture.
+	 *
+	 * @return the JSON bytes
+	 * @throws IOException in case of a problem reading the fixture
+	 */
+	public static byte[] readFixture() throws IOException {
+		try (InputStream is = DelayedApi.class.getResourceAsStream("/737628064502.json")) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				bos.write(buffer, 0, n);
+			}
+			return bos.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Product lookups: from memory, from the store on disk, and remote (cold) through a mocked API.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ProductLookupBenchmark {
+
+	private static final String BAR_CODE = "737628064502";
+	private static final long STORE_SIZE = 64 * 1024 * 1024;
+	private static final long TTL = TimeUnit.DAYS.toMillis(30);
+	private static final long NEGATIVE_TTL = TimeUnit.HOURS.toMillis(24);
+
+	private Path root;
+	private OpenFoodFacts memory;
+	private OpenFoodFacts disk;
+
+	/**
+	 * Products that are not known locally yet, retrieved through an API with configurable latency.
+	 */
+	@State(Scope.Benchmark)
+	public static class ColdState {
+
+		@Param({ "0", "20" })
+		public int latency;
+
+		private Path root;
+		private OpenFoodFacts off;
+		private long nextCode;
+
+		@Setup
+		public void setup() throws IOException {
+			root = Files.createTempDirectory("cold");
+			off = newOpenFoodFacts(root.toFile(), 0, latency);
+			off.start();
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			off.stop();
+			delete(root);
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("lookup");
+
+		memory = newOpenFoodFacts(new File(root.toFile(), "memory"), 1000, 0);
+		memory.start();
+		memory.lookupProduct(BAR_CODE);
+
+		// no memory cache, so every lookup goes to the store
+		disk = newOpenFoodFacts(new File(root.toFile(), "disk"), 0, 0);
+		disk.start();
+		disk.lookupProduct(BAR_CODE);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		memory.stop();
+		disk.stop();
+		delete(root);
+	}
+
+	@Benchmark
+	public ProductInfo memoryCached() {
+		return memory.getCachedProduct(BAR_CODE);
+	}
+
+	@Benchmark
+	public ProductInfo diskCached() throws IOException {
+		return disk.lookupProduct(BAR_CODE);
+	}
+
+	@Benchmark
+	public ProductInfo cold(ColdState state) throws IOException {
+		return state.off.lookupProduct(Long.toString(state.nextCode++));
+	}
+
+	private static OpenFoodFacts newOpenFoodFacts(File storageRoot, int cacheSize, long latency) throws IOException {
+		IOpenFoodFactsApi api = new DelayedApi(DelayedApi.readFixture(), latency);
+		return new OpenFoodFacts(api, storageRoot, cacheSize, STORE_SIZE, TTL, NEGATIVE_TTL);
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+}
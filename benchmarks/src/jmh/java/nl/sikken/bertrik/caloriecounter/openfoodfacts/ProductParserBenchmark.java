@@ -0,0 +1,49 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Parsing of the full product response of 737628064502.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ProductParserBenchmark {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private byte[] json;
+
+	@Setup
+	public void setup() throws IOException {
+		json = DelayedApi.readFixture();
+	}
+
+	/**
+	 * The streaming parser, as used for all product responses.
+	 */
+	@Benchmark
+	public ProductInfo streaming() throws IOException {
+		return ProductParser.parse(json, 0L);
+	}
+
+	/**
+	 * Baseline: reading the complete document into a tree.
+	 */
+	@Benchmark
+	public JsonNode tree() throws IOException {
+		return mapper.readTree(json);
+	}
+
+}
@@ -1,2 +1,2 @@
 #!/bin/sh
-bin/caloriecounter
+bin/caloriecounter "$@"
@@ -0,0 +1,194 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.util.UUID;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.OpenFoodFacts;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.ProductInfo;
+
+/**
+ * Shares retrieved products with other instances over MQTT, so a product retrieved by one instance is cached by all.
+ *
+ * Each product retrieved from OpenFoodFacts is published on a sub-topic of the cache topic named after its bar code,
+ * e.g. {"v":1,"origin":"...","found":true,"name":"...","kJ":123.4,"retrieved":1600000000000}. Products published by
+ * other instances are taken into the local cache, unless the local version was retrieved at the same time or later,
+ * so an old retrieval never overwrites a newer one.
+ */
+public final class CacheGossip {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheGossip.class);
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    // version of the published format, messages of other versions are ignored
+    private static final int VERSION = 1;
+
+    private final OpenFoodFacts off;
+    private final MqttPublisher publisher;
+    private final String topic;
+    private final String origin;
+    private final MqttListener listener;
+
+    /**
+     * Constructor.
+     *
+     * @param off the product info retriever
+     * @param publisher the MQTT publisher of its own on the cache topic, not skipping unchanged texts as there is a
+     *        topic per product, started and stopped along with this module
+     * @param url the URL of the MQTT broker shared with the other instances
+     * @param topic the cache topic, empty to not share products
+     */
+    public CacheGossip(OpenFoodFacts off, MqttPublisher publisher, String url, String topic) {
+        this.off = off;
+        this.publisher = publisher;
+        this.topic = topic;
+        this.origin = UUID.randomUUID().toString();
+        // shared products are not sales, so they are not traced as such
+        this.listener = new MqttListener(this::messageReceived, new Deduplicator(Clock.systemUTC(), 0), "", url,
+                topic + "/+", false);
+    }
+
+    /**
+     * Starts sharing products, if enabled.
+     *
+     * @throws MqttException in case of a problem subscribing to the cache topic
+     */
+    public void start() throws MqttException {
+        if (topic.isEmpty()) {
+            return;
+        }
+        LOG.info("Sharing products on topic '{}'", topic);
+        publisher.start();
+        off.setRetrievedListener(this::productRetrieved);
+        listener.start();
+    }
+
+    /**
+     * Stops sharing products.
+     */
+    public void stop() {
+        if (topic.isEmpty()) {
+            return;
+        }
+        LOG.info("Stopping sharing products");
+        off.setRetrievedListener((barCode, product) -> {
+        });
+        listener.stop();
+        publisher.stop();
+    }
+
+    private void productRetrieved(String barCode, ProductInfo product) {
+        publisher.publish(barCode, encode(origin, product));
+    }
+
+    /**
+     * Handles a product published by an instance, the source is the bar code.
+     */
+    void messageReceived(String barCode, String messageTopic, byte[] payload) {
+        try {
+            ProductInfo product = decode(origin, payload);
+            if (product != null) {
+                off.shareProduct(barCode, product);
+            }
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable shared product on topic '{}': {}", messageTopic, e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a product for publishing.
+     *
+     * @param origin the identity of the publishing instance
+     * @param product the product
+     * @return the payload
+     */
+    static String encode(String origin, ProductInfo product) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeNumberField("v", VERSION);
+            generator.writeStringField("origin", origin);
+            generator.writeBooleanField("found", product.isFound());
+            if (product.getName() != null) {
+                generator.writeStringField("name", product.getName());
+            }
+            if (product.hasEnergy()) {
+                generator.writeNumberField("kJ", product.getEnergy());
+            }
+            generator.writeNumberField("retrieved", product.getRetrieved());
+            generator.writeEndObject();
+        } catch (IOException e) {
+            // cannot happen when writing to a string
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Decodes a published product.
+     *
+     * @param self the identity of this instance
+     * @param payload the payload
+     * @return the product, null if published by this instance or in another version of the format
+     * @throws IOException in case the payload could not be decoded
+     */
+    static ProductInfo decode(String self, byte[] payload) throws IOException {
+        int version = 0;
+        String origin = null;
+        boolean found = false;
+        String name = null;
+        double energy = Double.NaN;
+        long retrieved = -1;
+        try (JsonParser parser = FACTORY.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                case "v":
+                    version = parser.getIntValue();
+                    break;
+                case "origin":
+                    origin = parser.getText();
+                    break;
+                case "found":
+                    found = parser.getBooleanValue();
+                    break;
+                case "name":
+                    name = parser.getText();
+                    break;
+                case "kJ":
+                    energy = parser.getDoubleValue();
+                    break;
+                case "retrieved":
+                    retrieved = parser.getLongValue();
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+                }
+            }
+        }
+        if ((version != VERSION) || self.equals(origin)) {
+            return null;
+        }
+        if (retrieved < 0) {
+            throw new IOException("Missing retrieval time");
+        }
+        return new ProductInfo(found, name, energy, retrieved);
+    }
+
+}
@@ -4,44 +4,86 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Locale;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nl.sikken.bertrik.caloriecounter.EnergyAccumulator.EWindow;
+import nl.sikken.bertrik.caloriecounter.SaleHistory.Bucket;
+import nl.sikken.bertrik.caloriecounter.SaleHistory.EResolution;
+import nl.sikken.bertrik.caloriecounter.jfr.AccumulationEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.SaleTrace;
+import nl.sikken.bertrik.caloriecounter.jfr.ValidationEvent;
+import nl.sikken.bertrik.caloriecounter.metrics.Histogram;
+import nl.sikken.bertrik.caloriecounter.metrics.MetricsRegistry;
+import nl.sikken.bertrik.caloriecounter.metrics.MetricsServer;
 import nl.sikken.bertrik.caloriecounter.openfoodfacts.IOpenFoodFactsApi;
 import nl.sikken.bertrik.caloriecounter.openfoodfacts.OpenFoodFacts;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.RemoteCaller;
 
 /**
  * Calorie counter for revbank.
- * 
- * TODO:
- * - clear cache once in a while (e.g. based on file timestamp)
- * - reset sum once per day
  */
 public final class CalorieCounter {
 
     private static final Logger LOG = LoggerFactory.getLogger(CalorieCounter.class);
     private static final String CONFIG_FILE = "caloriecounter.properties";
 
-    private final MqttListener mqttListener;
+    private final List<MqttListener> mqttListeners = new ArrayList<>();
     private final MqttPublisher mqttPublisher;
 	private final OpenFoodFacts off;
-	
-	private double summedEnergy;
+	private final SalePipeline pipeline;
+	private final EnergyTotals totals;
+	private final EWindow window;
+	private final boolean jsonPayload;
+	private final MetricsServer metricsServer;
+	private final Deduplicator deduplicator;
+	private final TopProducts topProducts;
+	private final SaleHistory history;
+	private final CacheGossip cacheGossip;
+	private final Thread warmUp;
+
+	private final AtomicLong messageCount = new AtomicLong();
+	private final AtomicLong invalidBarCodeCount = new AtomicLong();
+	private final Histogram receiveLatency = new Histogram();
 
     /**
      * Main application entry point.
      * 
-     * @param arguments application arguments (none taken)
+     * @param arguments application arguments, "import &lt;dumpfile&gt;" imports an OpenFoodFacts data dump and exits,
+     *        "history &lt;minute|hour|day&gt; &lt;days&gt;" prints the sales of the last days and exits
      * @throws IOException in case of a problem reading a config file
      * @throws MqttException in case of a problem starting MQTT client
      */
     public static void main(String[] arguments) throws IOException, MqttException {
         final ICalorieCounterConfig config = readConfig(new File(CONFIG_FILE));
+        if ((arguments.length == 3) && "history".equals(arguments[0])) {
+            printHistory(config, EResolution.fromName(arguments[1]), Integer.parseInt(arguments[2]));
+            return;
+        }
         final CalorieCounter app = new CalorieCounter(config);
 
+        if ((arguments.length == 2) && "import".equals(arguments[0])) {
+            app.importDump(new File(arguments[1]));
+            return;
+        }
+
         Thread.setDefaultUncaughtExceptionHandler(app::handleUncaughtException);
 
         app.start();
@@ -54,32 +96,253 @@ public final class CalorieCounter {
      * @param config the application configuration
      */
     CalorieCounter(ICalorieCounterConfig config) {
-        this.mqttListener = new MqttListener(this::handleMessage, config.getMqttSourceUrl(), config.getMqttSourceTopic());
-        this.mqttPublisher = new MqttPublisher(config.getMqttDestUrl(), config.getMqttDestTopic());
+        // one listener per broker, named after its host if there are several
+        this.deduplicator = new Deduplicator(Clock.systemUTC(),
+                TimeUnit.SECONDS.toMillis(config.getMqttSourceDedupWindow()));
+        String[] urls = config.getMqttSourceUrl().split(",");
+        for (String url : urls) {
+            String name = (urls.length > 1) ? URI.create(url.trim()).getHost() : "";
+            mqttListeners.add(new MqttListener(this::handleMessage, deduplicator, name, url.trim(),
+                    config.getMqttSourceTopic()));
+        }
+        this.mqttPublisher = new MqttPublisher(config.getMqttDestUrl(), config.getMqttDestTopic(),
+                config.getMqttDestQos(), config.getMqttDestRetained(), config.getMqttDestInterval(),
+                config.getMqttDestMaxInflight());
         
         IOpenFoodFactsApi api = 
         		OpenFoodFacts.newRestClient(config.getOpenFoodFactsUrl(), config.getOpenFoodFactsTimeout());
         File storageRoot = new File(config.getOpenFoodFactsStorage());
-        this.off = new OpenFoodFacts(api, storageRoot);
-        this.summedEnergy = 0.0;
+        long storeSize = config.getOpenFoodFactsStoreSize() * 1024L * 1024L;
+        long ttl = TimeUnit.DAYS.toMillis(config.getOpenFoodFactsTtl());
+        long negativeTtl = TimeUnit.HOURS.toMillis(config.getOpenFoodFactsNegativeTtl());
+        RemoteCaller remote = new RemoteCaller(config.getOpenFoodFactsTimeout(), config.getOpenFoodFactsRetries(),
+                config.getOpenFoodFactsHedge(), config.getOpenFoodFactsBreakerFailures(),
+                TimeUnit.SECONDS.toMillis(config.getOpenFoodFactsBreakerOpen()));
+        this.off = new OpenFoodFacts(api, remote, storageRoot, config.getOpenFoodFactsCacheSize(), storeSize, ttl,
+                negativeTtl);
+        this.pipeline = new SalePipeline(off, this::saleResolved, config.getPipelineThreads(),
+                config.getPipelineQueueSize(), config.getPipelinePendingSize());
+        this.totals = new EnergyTotals(Clock.systemDefaultZone(), config.getEnergyRollover(),
+                new File(config.getEnergyState()));
+        totals.setListener(this::publishTotals);
+        this.window = EWindow.fromName(config.getEnergyWindow());
+        this.jsonPayload = "json".equals(config.getMqttDestFormat());
+        this.topProducts = new TopProducts(off, mqttPublisher, config.getTopTopic(), config.getTopSize(),
+                TimeUnit.SECONDS.toMillis(config.getTopInterval()));
+        MqttPublisher gossipPublisher = new MqttPublisher(config.getMqttDestUrl(), config.getCacheTopic(),
+                config.getMqttDestQos(), config.getMqttDestRetained(), config.getMqttDestInterval(),
+                config.getMqttDestMaxInflight(), false);
+        this.cacheGossip = new CacheGossip(off, gossipPublisher, config.getMqttDestUrl(), config.getCacheTopic());
+        this.history = new SaleHistory(new File(config.getHistoryDir()),
+                TimeUnit.DAYS.toMillis(config.getHistoryDetailDays()));
+        this.metricsServer = new MetricsServer(createMetrics(), config.getMetricsPort());
+        this.warmUp = new Thread(this::warmUp, "warm-up");
+    }
+
+    /**
+     * Registers the metrics of all modules.
+     */
+    private MetricsRegistry createMetrics() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("caloriecounter_messages_total", "MQTT messages received", messageCount::get);
+        metrics.counter("caloriecounter_duplicates_total", "Redelivered messages ignored",
+                deduplicator::getDuplicateCount);
+        metrics.counter("caloriecounter_invalid_barcodes_total", "Messages without a valid bar code",
+                invalidBarCodeCount::get);
+        metrics.histogram("caloriecounter_receive_seconds", "Handling of a received MQTT message", receiveLatency);
+
+        metrics.gauge("caloriecounter_ready", "Whether lookups are served, 0 while loading the product store",
+                () -> pipeline.isReady() ? 1 : 0);
+        metrics.gauge("caloriecounter_pipeline_queue_depth", "Sales waiting for a lookup", pipeline::getQueueDepth);
+        metrics.gauge("caloriecounter_pipeline_reorder_depth", "Resolved sales waiting for earlier ones",
+                pipeline::getReorderDepth);
+        metrics.counter("caloriecounter_pipeline_shed_total", "Sales dropped because the queue was full",
+                pipeline::getShedCount);
+        metrics.gauge("caloriecounter_pipeline_pending_depth", "Sales waiting for a failed lookup to be retried",
+                pipeline::getPendingDepth);
+        metrics.counter("caloriecounter_pipeline_recredited_total", "Sales counted after a retried lookup",
+                pipeline::getRecreditCount);
+        metrics.counter("caloriecounter_pipeline_lost_total", "Sales given up after failed lookups",
+                pipeline::getLostCount);
+
+        metrics.gauge("caloriecounter_memory_cache_size", "Products in the memory cache",
+                () -> off.getMemoryCache().size());
+        metrics.counter("caloriecounter_memory_cache_hits_total", "Memory cache hits",
+                () -> off.getMemoryCache().getHits());
+        metrics.counter("caloriecounter_memory_cache_misses_total", "Memory cache misses",
+                () -> off.getMemoryCache().getMisses());
+        metrics.gauge("caloriecounter_store_size", "Products in the store on disk", off::getStoreSize);
+        metrics.gauge("caloriecounter_store_bytes", "Size of the store on disk", off::getStoreBytes);
+        metrics.counter("caloriecounter_store_hits_total", "Lookups answered from the store on disk",
+                off::getStoreHitCount);
+        metrics.counter("caloriecounter_lookups_total", "Lookups on disk/remote", off::getLookupCount);
+        metrics.counter("caloriecounter_lookups_coalesced_total", "Lookups joining one already in flight",
+                off::getCoalescedCount);
+        metrics.counter("caloriecounter_negative_hits_total", "Lookups answered by a remembered unknown product",
+                off::getNegativeHitCount);
+        metrics.counter("caloriecounter_refreshes_total", "Stale products refreshed", off::getRefreshCount);
+        metrics.counter("caloriecounter_not_modified_total", "Refreshes answered with not modified",
+                off::getNotModifiedCount);
+        metrics.counter("caloriecounter_filter_rejects_total", "Lookups rejected by the known products filter",
+                off::getFilterRejectCount);
+        metrics.counter("caloriecounter_shared_total", "Products taken from other instances", off::getSharedCount);
+        metrics.counter("caloriecounter_shared_rejects_total", "Products from other instances older than ours",
+                off::getSharedRejectCount);
+        metrics.histogram("caloriecounter_lookup_seconds", "Lookups on disk/remote", off.getLookupLatency());
+        metrics.histogram("caloriecounter_remote_seconds", "Remote OpenFoodFacts calls", "outcome",
+                off.getRemoteLatency());
+        RemoteCaller remote = off.getRemoteCaller();
+        metrics.gauge("caloriecounter_remote_circuit_state", "Circuit breaker: 0 closed, 1 open, 2 half open",
+                () -> remote.getBreakerState().ordinal());
+        metrics.counter("caloriecounter_remote_circuit_opened_total", "Times the circuit breaker opened",
+                remote::getBreakerOpenCount);
+        metrics.counter("caloriecounter_remote_retries_total", "Retried remote calls", remote::getRetryCount);
+        metrics.counter("caloriecounter_remote_hedges_total", "Hedged remote calls", remote::getHedgeCount);
+        metrics.gauge("caloriecounter_remote_timeout_seconds", "Current timeout of remote product lookups",
+                () -> remote.getTimeout(OpenFoodFacts.PRODUCT_ENDPOINT) / 1000.0);
+        metrics.gauge("caloriecounter_remote_search_timeout_seconds", "Current timeout of remote product searches",
+                () -> remote.getTimeout(OpenFoodFacts.SEARCH_ENDPOINT) / 1000.0);
+
+        SaleLog saleLog = totals.getSaleLog();
+        metrics.counter("caloriecounter_sale_log_entries_total", "Sales written to the sale log",
+                saleLog::getEntryCount);
+        metrics.counter("caloriecounter_sale_log_syncs_total", "Group commits of the sale log to disk",
+                saleLog::getSyncCount);
+        metrics.histogram("caloriecounter_sale_log_sync_seconds", "Sale log write and fsync",
+                saleLog.getSyncLatency());
+
+        metrics.counter("caloriecounter_published_total", "MQTT messages published", mqttPublisher::getPublishCount);
+        metrics.counter("caloriecounter_publish_coalesced_total", "Updates replaced by a later one",
+                mqttPublisher::getCoalescedCount);
+        metrics.counter("caloriecounter_publish_unchanged_total", "Updates equal to the last one published",
+                mqttPublisher::getUnchangedCount);
+        metrics.histogram("caloriecounter_publish_seconds", "MQTT publish until acknowledged",
+                mqttPublisher.getPublishLatency());
+
+        metrics.addJvmMetrics();
+        return metrics;
     }
 
     /**
      * Starts the application.
      * 
+     * The product store is loaded in the background, sales arriving meanwhile are held by the pipeline. The MQTT
+     * brokers are connected in parallel.
+     * 
+     * @throws IOException in case of a problem restoring the energy totals
      * @throws MqttException in case of a problem starting MQTT client
      */
-    void start() throws MqttException {
+    void start() throws IOException, MqttException {
         LOG.info("Starting application");
 
         // start sub-modules
-        off.start();
-	    mqttPublisher.start();
-        mqttListener.start();
+        metricsServer.start();
+        totals.start();
+        history.start();
+        pipeline.start();
+        warmUp.start();
+
+        List<Callable<Void>> connects = new ArrayList<>();
+        connects.add(() -> {
+            mqttPublisher.start();
+            return null;
+        });
+        for (MqttListener mqttListener : mqttListeners) {
+            connects.add(() -> {
+                mqttListener.start();
+                return null;
+            });
+        }
+        connectAll(connects);
+        cacheGossip.start();
+
+        // publish the restored totals, the last sales before a crash may have been counted but not published
+        for (String source : totals.getSources()) {
+            publishTotals(source);
+        }
 
         LOG.info("Started application");
     }
 
+    /**
+     * Opens the product store, then lets the pipeline look up the sales that arrived meanwhile, and starts keeping the
+     * most sold products warm.
+     */
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            off.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start OpenFoodFacts retriever", e);
+        }
+        LOG.info("Product store loaded in {} ms", System.currentTimeMillis() - start);
+        pipeline.setReady();
+        topProducts.start();
+    }
+
+    /**
+     * Runs MQTT connects in parallel, and waits for all of them.
+     */
+    private static void connectAll(List<Callable<Void>> connects) throws MqttException {
+        ExecutorService executor = Executors.newFixedThreadPool(connects.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Callable<Void> connect : connects) {
+                futures.add(executor.submit(connect));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof MqttException) {
+                        throw (MqttException) cause;
+                    }
+                    throw new IllegalStateException("Could not connect to MQTT server", cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MqttException(e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Imports an OpenFoodFacts data dump, with the application stopped.
+     * 
+     * @param dump the dump file
+     * @throws IOException in case of a problem reading the dump or writing the product store
+     */
+    void importDump(File dump) throws IOException {
+        LOG.info("Importing data dump {}", dump);
+        off.importDump(dump);
+    }
+
+    /**
+     * Prints the number of sales and the energy of each minute/hour/day of the last days, from the sale history.
+     * 
+     * @param config the application configuration
+     * @param resolution the resolution
+     * @param days the number of days
+     * @throws IOException in case of a problem reading the history
+     */
+    static void printHistory(ICalorieCounterConfig config, EResolution resolution, int days) throws IOException {
+        SaleHistory history = new SaleHistory(new File(config.getHistoryDir()), 0);
+        long now = System.currentTimeMillis();
+        List<Bucket> buckets = history.query(resolution, now - TimeUnit.DAYS.toMillis(days), now);
+        int count = 0;
+        double energy = 0.0;
+        for (Bucket bucket : buckets) {
+            System.out.printf("%s %6d %10.1f kJ%n", Instant.ofEpochMilli(bucket.getStart()), bucket.getCount(),
+                    bucket.getEnergy());
+            count += bucket.getCount();
+            energy += bucket.getEnergy();
+        }
+        System.out.printf("total %6d %10.1f kJ%n", count, energy);
+    }
+
     /**
 	 * Stops the application.
 	 * 
@@ -88,45 +351,136 @@ public final class CalorieCounter {
 	void stop() {
 	    LOG.info("Stopping application");
 
-	    mqttListener.stop();
+	    for (MqttListener mqttListener : mqttListeners) {
+	        mqttListener.stop();
+	    }
+	    pipeline.stop();
+	    // the warm-up starts the top products
+	    if (warmUp.isAlive() && (warmUp != Thread.currentThread())) {
+	        try {
+	            warmUp.join();
+	        } catch (InterruptedException e) {
+	            Thread.currentThread().interrupt();
+	        }
+	    }
+	    topProducts.stop();
+	    cacheGossip.stop();
 	    mqttPublisher.stop();
 	    off.stop();
+	    totals.stop();
+	    history.stop();
+	    metricsServer.stop();
 
 	    LOG.info("Stopped application");
 	}
 
 	/**
-     * Handles an incoming MQTT message
+     * Handles an incoming MQTT message, with one sale of one or more items (see {@link SaleMessage})
      * 
+     * @param source the source of the message
      * @param topic the topic on which the message was received
-     * @param textMessage the message contents
+     * @param payload the message contents
      */
-    void handleMessage(String topic, String textMessage) {
-    	// verify bar code
-    	if (!isPossiblyBarCode(textMessage)) {
-    		LOG.info("Item '{}' is probably not a bar code, skipping", textMessage);
-    		return;
+    void handleMessage(String source, String topic, byte[] payload) {
+    	long start = System.nanoTime();
+    	messageCount.incrementAndGet();
+    	try {
+    		// verify bar codes, this also rejects misreads through the check digit
+    		ValidationEvent validation = new ValidationEvent();
+    		validation.begin();
+    		SaleMessage message = SaleMessage.parse(payload);
+    		List<SaleItem> items = message.getItems();
+    		if (validation.shouldCommit()) {
+    			validation.saleId = SaleTrace.current();
+    			validation.barCode = new String(payload, StandardCharsets.US_ASCII);
+    			validation.valid = (message.getInvalidCount() == 0);
+    			validation.commit();
+    		}
+    		if (message.getInvalidCount() > 0) {
+    			LOG.info("Message '{}' has {} invalid item(s), skipping those",
+    					new String(payload, StandardCharsets.US_ASCII), message.getInvalidCount());
+    			invalidBarCodeCount.addAndGet(message.getInvalidCount());
+    		}
+    		if (items.isEmpty()) {
+    			return;
+    		}
+
+    		// get the energy from openfoodfacts, without blocking the MQTT thread
+    		for (SaleItem item : items) {
+    			topProducts.sold(item.getBarCode(), item.getQuantity());
+    		}
+    		pipeline.submit(source, items);
+    	} finally {
+    		receiveLatency.recordSince(start);
     	}
+    }
 
-    	// get the energy from openfoodfacts
-    	String barCode = textMessage;
-		try {
-			double energy = off.processBarCode(barCode);
-
-			// keep count
-			summedEnergy += energy;
-			
-			// publish to MQTT
-			String message = String.format(Locale.US, "%.0f kJ", summedEnergy);
-			mqttPublisher.publish(message);
-		} catch (IOException e) {
-			LOG.warn("Caught IOException: {}", e.getMessage());
+    /**
+     * Handles a sale for which the energy was determined, called in order of arrival.
+     * 
+     * All items of a sale are added to the totals at once, and published once they are in the sale log on disk.
+     * 
+     * @param source the source of the sale
+     * @param items the sold items, with their energy
+     */
+    private void saleResolved(String source, List<SaleItem> items) {
+		// keep count
+		AccumulationEvent accumulation = new AccumulationEvent();
+		accumulation.begin();
+		double energy = 0.0;
+		for (SaleItem item : items) {
+			energy += item.getTotalEnergy();
+		}
+		totals.add(source, energy);
+		long now = System.currentTimeMillis();
+		for (SaleItem item : items) {
+			for (int i = 0; i < item.getQuantity(); i++) {
+				history.add(now, source, item.getBarCode(), item.getEnergy());
+			}
+			topProducts.resolved(item.getBarCode(), item.getTotalEnergy());
+		}
+		if (accumulation.shouldCommit()) {
+			accumulation.saleId = SaleTrace.current();
+			accumulation.source = source;
+			accumulation.barCodes = items.toString();
+			accumulation.energy = energy;
+			accumulation.commit();
 		}
-    	
     }
 
-    private boolean isPossiblyBarCode(String code) {
-    	return (code.length() >= 8) && code.matches("\\d++");
+    /**
+     * Publishes to MQTT the total of all sources and the total of one source, called when energy is counted, and
+     * periodically as the windows move on.
+     * 
+     * @param source the source
+     */
+    private void publishTotals(String source) {
+        mqttPublisher.publish(buildPayload(totals::getTotal, window, jsonPayload));
+        if (!source.isEmpty()) {
+            mqttPublisher.publish(source, buildPayload(w -> totals.get(source, w), window, jsonPayload));
+        }
+    }
+
+    /**
+     * Builds the published payload, either the configured window as text, or all windows as JSON.
+     * 
+     * @param energy the energy per window (kJ)
+     * @param window the window for a text payload
+     * @param json whether to build a JSON payload
+     * @return the payload, e.g. "123 kJ" or {"today":123,"hour":45,"24h":678}
+     */
+    static String buildPayload(ToDoubleFunction<EWindow> energy, EWindow window, boolean json) {
+        if (!json) {
+            return Math.round(energy.applyAsDouble(window)) + " kJ";
+        }
+        StringBuilder sb = new StringBuilder(64).append('{');
+        for (EWindow w : EWindow.values()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append('"').append(w.getName()).append("\":").append(Math.round(energy.applyAsDouble(w)));
+        }
+        return sb.append('}').toString();
     }
 
     /**
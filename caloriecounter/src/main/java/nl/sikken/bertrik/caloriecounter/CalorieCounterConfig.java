@@ -6,6 +6,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -23,15 +24,56 @@ public final class CalorieCounterConfig implements ICalorieCounterConfig {
      * One enumeration item per configuration item.
      */
     private enum EConfigItem {
-    	MQTT_SOURCE_URL("mqtt.source.url", "tcp://revspace.nl", "MQTT source URL"),
-    	MQTT_SOURCE_TOPIC("mqtt.source.topic", "revspace/bank/sale", "MQTT source topic"),
+    	MQTT_SOURCE_URL("mqtt.source.url", "tcp://revspace.nl", "MQTT source URL(s), comma separated"),
+    	MQTT_SOURCE_TOPIC("mqtt.source.topic", "revspace/bank/sale",
+    			"MQTT source topic, levels matching + or # wildcards name the source"),
+    	MQTT_SOURCE_DEDUP("mqtt.source.dedup", "60",
+    			"Time within which a redelivered sale message is ignored as duplicate (s), 0 to disable"),
     	
     	MQTT_DEST_URL("mqtt.dest.url", "tcp://aliensdetected.com", "MQTT destination URL"),
     	MQTT_DEST_TOPIC("mqtt.dest.topic", "revspace/bar/energy", "MQTT destination topic"),
+    	MQTT_DEST_QOS("mqtt.dest.qos", "1", "MQTT destination quality of service (0, 1 or 2)"),
+    	MQTT_DEST_RETAINED("mqtt.dest.retained", "true", "Whether the MQTT destination retains published messages"),
+    	MQTT_DEST_INTERVAL("mqtt.dest.interval", "1000", "Minimum time between publishes on the same topic (ms)"),
+    	MQTT_DEST_INFLIGHT("mqtt.dest.inflight", "10", "Maximum number of published messages awaiting acknowledgement"),
+    	MQTT_DEST_FORMAT("mqtt.dest.format", "text",
+    			"Published payload: text (e.g. '123 kJ' for energy.window) or json (all windows)"),
     	
     	OFF_URL("off.url", "https://world.openfoodfacts.org", "OpenFoodFacts API URL"),
-    	OFF_TIMEOUT("off.timeout", "3000", "OpenFoodFacts API timeout"), 
-    	OFF_STORAGE("off.storage", ".", "OpenFoodFacts storage root");
+    	OFF_TIMEOUT("off.timeout", "3000", "OpenFoodFacts API maximum timeout, adapts to the observed latency (ms)"),
+    	OFF_STORAGE("off.storage", ".", "OpenFoodFacts storage root"),
+    	OFF_CACHE_SIZE("off.cache.size", "1000", "OpenFoodFacts in-memory cache size (products)"),
+    	OFF_STORE_SIZE("off.store.size", "64", "OpenFoodFacts product store size limit (MB)"),
+    	OFF_TTL("off.ttl", "30", "How long a product is considered fresh before it is refreshed (days)"),
+    	OFF_NEGATIVE_TTL("off.negative.ttl", "24", "How long to remember unknown and energy-less products (hours)"),
+    	OFF_RETRIES("off.retries", "2", "Number of retries of a failed OpenFoodFacts call"),
+    	OFF_HEDGE("off.hedge", "false", "Whether to send a second request when an OpenFoodFacts call is slow"),
+    	OFF_BREAKER_FAILURES("off.breaker.failures", "5",
+    			"Number of consecutive failed OpenFoodFacts calls after which lookups fail fast"),
+    	OFF_BREAKER_OPEN("off.breaker.open", "30", "How long lookups fail fast before OpenFoodFacts is tried again (s)"),
+    	
+    	PIPELINE_THREADS("pipeline.threads", "2", "Number of threads for product lookups on disk/remote"),
+    	PIPELINE_QUEUE_SIZE("pipeline.queue.size", "100",
+    			"Maximum number of sales waiting for a lookup, once the product store is loaded"),
+    	PIPELINE_PENDING_SIZE("pipeline.pending.size", "1000",
+    			"Maximum number of sales with a failed lookup, counted later when the lookup succeeds"),
+    	
+    	ENERGY_ROLLOVER("energy.rollover", "04:00", "Local time at which the daily energy total starts over (HH:mm)"),
+    	ENERGY_WINDOW("energy.window", "today", "Energy total to publish: today, hour (last 60 min) or 24h (rolling)"),
+    	ENERGY_STATE("energy.state", "energy.dat",
+    			"File keeping the energy totals across restarts, with a sale log next to it"),
+    	
+    	TOP_TOPIC("top.topic", "", "MQTT topic for the lists of most sold products, empty to not publish them"),
+    	TOP_SIZE("top.size", "10", "Number of most sold products listed, and kept warm in memory"),
+    	TOP_INTERVAL("top.interval", "300", "Time between updates of the most sold products (s)"),
+    	
+    	CACHE_TOPIC("cache.topic", "",
+    			"MQTT topic on the destination broker for sharing retrieved products with other instances, empty to disable"),
+    	
+    	HISTORY_DIR("history.dir", "history", "Directory keeping the history of all sales, with totals per minute/hour/day"),
+    	HISTORY_DETAIL_DAYS("history.detail.days", "90", "Time individual sales and totals per minute are kept (days)"),
+    	
+    	METRICS_PORT("metrics.port", "0", "HTTP port for Prometheus metrics on /metrics, 0 to disable");
         
         private final String key;
         private final String def;
@@ -101,6 +143,11 @@ public final class CalorieCounterConfig implements ICalorieCounterConfig {
     	return props.get(EConfigItem.MQTT_SOURCE_TOPIC);
     }
     
+    @Override
+    public int getMqttSourceDedupWindow() {
+    	return Integer.parseInt(props.get(EConfigItem.MQTT_SOURCE_DEDUP));
+    }
+    
     @Override
     public String getMqttDestUrl() {
     	return props.get(EConfigItem.MQTT_DEST_URL);
@@ -111,6 +158,31 @@ public final class CalorieCounterConfig implements ICalorieCounterConfig {
     	return props.get(EConfigItem.MQTT_DEST_TOPIC);
     }
 
+	@Override
+	public int getMqttDestQos() {
+		return Integer.parseInt(props.get(EConfigItem.MQTT_DEST_QOS));
+	}
+
+	@Override
+	public boolean getMqttDestRetained() {
+		return Boolean.parseBoolean(props.get(EConfigItem.MQTT_DEST_RETAINED));
+	}
+
+	@Override
+	public int getMqttDestInterval() {
+		return Integer.parseInt(props.get(EConfigItem.MQTT_DEST_INTERVAL));
+	}
+
+	@Override
+	public int getMqttDestMaxInflight() {
+		return Integer.parseInt(props.get(EConfigItem.MQTT_DEST_INFLIGHT));
+	}
+
+	@Override
+	public String getMqttDestFormat() {
+		return props.get(EConfigItem.MQTT_DEST_FORMAT);
+	}
+
 	@Override
 	public String getOpenFoodFactsUrl() {
 		return props.get(EConfigItem.OFF_URL);
@@ -125,5 +197,110 @@ public final class CalorieCounterConfig implements ICalorieCounterConfig {
 	public String getOpenFoodFactsStorage() {
 		return props.get(EConfigItem.OFF_STORAGE);
 	}
+
+	@Override
+	public int getOpenFoodFactsCacheSize() {
+		return Integer.parseInt(props.get(EConfigItem.OFF_CACHE_SIZE));
+	}
+
+	@Override
+	public int getOpenFoodFactsStoreSize() {
+		return Integer.parseInt(props.get(EConfigItem.OFF_STORE_SIZE));
+	}
+
+	@Override
+	public int getOpenFoodFactsTtl() {
+		return Integer.parseInt(props.get(EConfigItem.OFF_TTL));
+	}
+
+	@Override
+	public int getOpenFoodFactsNegativeTtl() {
+		return Integer.parseInt(props.get(EConfigItem.OFF_NEGATIVE_TTL));
+	}
+
+	@Override
+	public int getOpenFoodFactsRetries() {
+		return Integer.parseInt(props.get(EConfigItem.OFF_RETRIES));
+	}
+
+	@Override
+	public boolean getOpenFoodFactsHedge() {
+		return Boolean.parseBoolean(props.get(EConfigItem.OFF_HEDGE));
+	}
+
+	@Override
+	public int getOpenFoodFactsBreakerFailures() {
+		return Integer.parseInt(props.get(EConfigItem.OFF_BREAKER_FAILURES));
+	}
+
+	@Override
+	public int getOpenFoodFactsBreakerOpen() {
+		return Integer.parseInt(props.get(EConfigItem.OFF_BREAKER_OPEN));
+	}
+
+	@Override
+	public int getPipelineThreads() {
+		return Integer.parseInt(props.get(EConfigItem.PIPELINE_THREADS));
+	}
+
+	@Override
+	public int getPipelineQueueSize() {
+		return Integer.parseInt(props.get(EConfigItem.PIPELINE_QUEUE_SIZE));
+	}
+
+	@Override
+	public int getPipelinePendingSize() {
+		return Integer.parseInt(props.get(EConfigItem.PIPELINE_PENDING_SIZE));
+	}
+
+	@Override
+	public LocalTime getEnergyRollover() {
+		return LocalTime.parse(props.get(EConfigItem.ENERGY_ROLLOVER));
+	}
+
+	@Override
+	public String getEnergyWindow() {
+		return props.get(EConfigItem.ENERGY_WINDOW);
+	}
+
+	@Override
+	public String getEnergyState() {
+		return props.get(EConfigItem.ENERGY_STATE);
+	}
+
+	@Override
+	public String getTopTopic() {
+		return props.get(EConfigItem.TOP_TOPIC);
+	}
+
+	@Override
+	public int getTopSize() {
+		return Integer.parseInt(props.get(EConfigItem.TOP_SIZE));
+	}
+
+	@Override
+	public int getTopInterval() {
+		return Integer.parseInt(props.get(EConfigItem.TOP_INTERVAL));
+	}
+
+	@Override
+	public String getCacheTopic() {
+		return props.get(EConfigItem.CACHE_TOPIC);
+	}
+
+	@Override
+	public String getHistoryDir() {
+		return props.get(EConfigItem.HISTORY_DIR);
+	}
+
+	@Override
+	public int getHistoryDetailDays() {
+		return Integer.parseInt(props.get(EConfigItem.HISTORY_DETAIL_DAYS));
+	}
+
+	@Override
+	public int getMetricsPort() {
+		return Integer.parseInt(props.get(EConfigItem.METRICS_PORT));
+	}
     
 }
\ No newline at end of file
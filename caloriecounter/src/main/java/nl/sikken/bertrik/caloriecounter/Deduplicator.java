@@ -0,0 +1,100 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.BloomFilter;
+
+/**
+ * Suppresses sale messages that are delivered more than once within a time window, such as QoS 1 messages
+ * redelivered after a reconnect, or a retained sale delivered again when resubscribing.
+ *
+ * A message is only a duplicate if the broker marked it as redelivered (the MQTT DUP flag) and a message with the
+ * same source and payload was seen before. The message id is not part of that: the client reuses message ids, e.g.
+ * after a reconnect with a clean session, so another sale may well arrive with the same id. The same product is often
+ * sold twice in a row, so a message without the DUP flag is always let through. A retained message is always a
+ * duplicate: a sale is an event, not a state, so a retained sale is one that was delivered before, possibly to a
+ * previous run of this process that this one cannot remember.
+ *
+ * Messages seen are kept, by their hash, in two Bloom filters, the current and the previous generation, which rotate
+ * once per window, so memory use is constant and a message is remembered for one to two windows. A false positive
+ * would drop a real sale, so the filters are sized for a very low false positive rate.
+ */
+public final class Deduplicator {
+
+    // messages per window the filters are sized for, and their false positive rate at that size
+    private static final long EXPECTED_MESSAGES = 10000;
+    private static final double FALSE_POSITIVE_RATE = 1e-6;
+
+    private final Clock clock;
+    private final long window;
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    // guarded by this
+    private BloomFilter current;
+    private BloomFilter previous;
+    private long rotated;
+
+    /**
+     * Constructor.
+     *
+     * @param clock the clock
+     * @param window the time within which a message is considered a duplicate (ms), 0 to disable
+     */
+    public Deduplicator(Clock clock, long window) {
+        this.clock = clock;
+        this.window = window;
+        this.current = BloomFilter.create(EXPECTED_MESSAGES, FALSE_POSITIVE_RATE);
+        this.previous = BloomFilter.create(EXPECTED_MESSAGES, FALSE_POSITIVE_RATE);
+        this.rotated = clock.millis();
+    }
+
+    /**
+     * Checks whether a message was seen before, and remembers it.
+     *
+     * @param source the source of the message
+     * @param redelivered whether the broker marked the message as possibly delivered before (the DUP flag)
+     * @param retained whether the message was delivered as retained message
+     * @param payload the payload
+     * @return true if the message is a duplicate
+     */
+    public synchronized boolean isDuplicate(String source, boolean redelivered, boolean retained, byte[] payload) {
+        if (window <= 0) {
+            return false;
+        }
+        rotate();
+
+        if (retained) {
+            duplicateCount.incrementAndGet();
+            return true;
+        }
+        long hash = BloomFilter.hash(BloomFilter.HASH_START, source);
+        hash = BloomFilter.hash(hash, payload.length);
+        hash = BloomFilter.mix(BloomFilter.hash(hash, payload));
+        if (redelivered && (current.mightContain(hash) || previous.mightContain(hash))) {
+            duplicateCount.incrementAndGet();
+            return true;
+        }
+        current.add(hash);
+        return false;
+    }
+
+    private void rotate() {
+        long now = clock.millis();
+        long elapsed = now - rotated;
+        if (elapsed >= window) {
+            // after a quiet period of more than two windows, nothing is remembered
+            previous = (elapsed < (2 * window)) ? current : BloomFilter.create(EXPECTED_MESSAGES, FALSE_POSITIVE_RATE);
+            current = BloomFilter.create(EXPECTED_MESSAGES, FALSE_POSITIVE_RATE);
+            rotated = now;
+        }
+    }
+
+    /**
+     * @return the number of duplicates suppressed
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+}
@@ -0,0 +1,221 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Time-bucketed energy totals.
+ *
+ * Energy is added to a ring of per-minute, per-hour and per-day buckets. Each bucket knows which minute/hour/day it
+ * holds, so buckets of a past period are recycled on the first update in the new period, without a separate reset.
+ * Updates are lock-free (compare-and-set on immutable buckets), queries only visit a fixed number of buckets.
+ *
+ * A day starts at a configurable local time.
+ */
+public final class EnergyAccumulator {
+
+    private static final int MINUTES = 60;
+    private static final int HOURS = 24;
+    private static final int DAYS = 7;
+
+    /**
+     * The time windows over which energy is reported.
+     */
+    public enum EWindow {
+        TODAY("today"), LAST_HOUR("hour"), ROLLING_24H("24h");
+
+        private final String name;
+
+        EWindow(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param name the configured name, e.g. "today"
+         * @return the window
+         */
+        public static EWindow fromName(String name) {
+            for (EWindow window : values()) {
+                if (window.name.equals(name)) {
+                    return window;
+                }
+            }
+            throw new IllegalArgumentException("Unknown energy window '" + name + "'");
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The energy of one minute, hour or day.
+     */
+    private static final class Bucket {
+        private final long index;
+        private final long joules;
+
+        Bucket(long index, long joules) {
+            this.index = index;
+            this.joules = joules;
+        }
+    }
+
+    private final AtomicReferenceArray<Bucket> minutes = new AtomicReferenceArray<>(MINUTES);
+    private final AtomicReferenceArray<Bucket> hours = new AtomicReferenceArray<>(HOURS);
+    private final AtomicReferenceArray<Bucket> days = new AtomicReferenceArray<>(DAYS);
+    private final Clock clock;
+    private final LocalTime rollover;
+
+    /**
+     * Constructor.
+     *
+     * @param clock the clock, also determines the local time zone
+     * @param rollover the local time at which a new day starts
+     */
+    public EnergyAccumulator(Clock clock, LocalTime rollover) {
+        this.clock = clock;
+        this.rollover = rollover;
+    }
+
+    /**
+     * Adds energy at the current time.
+     *
+     * @param energy the energy (kJ)
+     */
+    public void add(double energy) {
+        add(energy, clock.millis());
+    }
+
+    /**
+     * Adds energy at a given time, e.g. when replaying a log.
+     *
+     * @param energy the energy (kJ)
+     * @param millis the time (ms since epoch)
+     */
+    void add(double energy, long millis) {
+        long joules = Math.round(energy * 1000.0);
+        add(minutes, TimeUnit.MILLISECONDS.toMinutes(millis), joules);
+        add(hours, TimeUnit.MILLISECONDS.toHours(millis), joules);
+        add(days, dayIndex(millis), joules);
+    }
+
+    private static void add(AtomicReferenceArray<Bucket> ring, long index, long joules) {
+        int slot = (int) Math.floorMod(index, (long) ring.length());
+        Bucket old;
+        Bucket updated;
+        do {
+            old = ring.get(slot);
+            if ((old == null) || (old.index < index)) {
+                // first update in a new period, recycle the bucket
+                updated = new Bucket(index, joules);
+            } else {
+                // same period, or another thread already moved on to a later period
+                updated = new Bucket(old.index, old.joules + joules);
+            }
+        } while (!ring.compareAndSet(slot, old, updated));
+    }
+
+    /**
+     * @param window the time window
+     * @return the energy within the window (kJ)
+     */
+    public double get(EWindow window) {
+        long now = clock.millis();
+        long joules;
+        switch (window) {
+        case TODAY:
+            long day = dayIndex(now);
+            joules = sum(days, day - 1, day);
+            break;
+        case LAST_HOUR:
+            long minute = TimeUnit.MILLISECONDS.toMinutes(now);
+            joules = sum(minutes, minute - MINUTES, minute);
+            break;
+        case ROLLING_24H:
+            long hour = TimeUnit.MILLISECONDS.toHours(now);
+            joules = sum(hours, hour - HOURS, hour);
+            break;
+        default:
+            throw new IllegalArgumentException("Unhandled window " + window);
+        }
+        return joules / 1000.0;
+    }
+
+    /**
+     * Sums the buckets with an index in the range (from, to].
+     */
+    private static long sum(AtomicReferenceArray<Bucket> ring, long from, long to) {
+        long total = 0;
+        for (int i = 0; i < ring.length(); i++) {
+            Bucket bucket = ring.get(i);
+            if ((bucket != null) && (bucket.index > from) && (bucket.index <= to)) {
+                total += bucket.joules;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of the day, counted from the epoch, with days starting at the rollover time
+     */
+    private long dayIndex(long millis) {
+        LocalDateTime local = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), clock.getZone());
+        return local.minusNanos(rollover.toNanoOfDay()).toLocalDate().toEpochDay();
+    }
+
+    /**
+     * Writes the buckets to a stream.
+     *
+     * @param dos the stream
+     * @throws IOException in case of a problem writing the stream
+     */
+    void write(DataOutputStream dos) throws IOException {
+        writeRing(dos, minutes);
+        writeRing(dos, hours);
+        writeRing(dos, days);
+    }
+
+    /**
+     * Reads the buckets from a stream, as written by {@link #write(DataOutputStream)}.
+     *
+     * @param dis the stream
+     * @throws IOException in case of a problem reading the stream
+     */
+    void read(DataInputStream dis) throws IOException {
+        readRing(dis, minutes);
+        readRing(dis, hours);
+        readRing(dis, days);
+    }
+
+    private static void writeRing(DataOutputStream dos, AtomicReferenceArray<Bucket> ring) throws IOException {
+        dos.writeInt(ring.length());
+        for (int i = 0; i < ring.length(); i++) {
+            Bucket bucket = ring.get(i);
+            dos.writeLong((bucket != null) ? bucket.index : -1);
+            dos.writeLong((bucket != null) ? bucket.joules : 0);
+        }
+    }
+
+    private static void readRing(DataInputStream dis, AtomicReferenceArray<Bucket> ring) throws IOException {
+        int length = dis.readInt();
+        if (length != ring.length()) {
+            throw new IOException("Unexpected number of buckets " + length);
+        }
+        for (int i = 0; i < length; i++) {
+            long index = dis.readLong();
+            long joules = dis.readLong();
+            if (index >= 0) {
+                ring.set(i, new Bucket(index, joules));
+            }
+        }
+    }
+
+}
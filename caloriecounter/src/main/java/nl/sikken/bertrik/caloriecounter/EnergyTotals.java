@@ -0,0 +1,343 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.sikken.bertrik.caloriecounter.EnergyAccumulator.EWindow;
+
+/**
+ * Energy totals per source (bar, POS terminal), plus the total over all sources.
+ *
+ * Each source has its own accumulator, so updates from different sources never touch the same buckets. The
+ * global total is not kept separately, but summed over the sources when asked for.
+ *
+ * All totals are saved to a snapshot file periodically and on stop, and restored on start, so they survive a restart.
+ * Each addition is also written to a {@link SaleLog}, which is replayed on top of the snapshot, so additions since the
+ * last snapshot survive a crash too. An addition is only counted once it is in the sale log on disk, so a total that was
+ * read (e.g. published) never goes down after a crash. As the windows also change without any addition, the listener
+ * is told about all sources every minute, and at the start of each day.
+ *
+ * What all sources still share is the sale log: an addition takes its short lock to get a sequence number and be
+ * queued, and its single writer thread writes the additions and counts them in that order, the same way as on replay.
+ * The lock of this object is taken to count a logged addition, only on that thread, and keeps a snapshot consistent
+ * with the position in the sale log it was taken at. An addition while the sale log is not running is counted without
+ * any lock.
+ */
+public final class EnergyTotals {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EnergyTotals.class);
+
+    // version 1 held a single accumulator, version 2 named accumulators, version 3 adds the sale log position
+    private static final int VERSION = 3;
+    private static final long SAVE_INTERVAL_MS = 60000;
+    private static final long REFRESH_INTERVAL_MS = 60000;
+
+    private final ConcurrentMap<String, EnergyAccumulator> sources = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final Clock clock;
+    private final LocalTime rollover;
+    private final File stateFile;
+    private final SaleLog log;
+    private final ScheduledExecutorService executor;
+    private volatile ITotalsChanged listener = source -> {
+    };
+
+    // sequence number of the last sale log entry counted, guarded by this
+    private long counted;
+
+    /**
+     * Constructor.
+     *
+     * @param clock the clock, also determines the local time zone
+     * @param rollover the local time at which a new day starts
+     * @param stateFile the file to keep the totals in across restarts
+     */
+    public EnergyTotals(Clock clock, LocalTime rollover, File stateFile) {
+        this.clock = clock;
+        this.rollover = rollover;
+        this.stateFile = stateFile;
+        this.log = new SaleLog(stateFile);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "energy-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts this module, restoring the totals from the state file and the sale log.
+     * 
+     * @throws IOException in case of a problem reading or opening the sale log
+     */
+    public void start() throws IOException {
+        LOG.info("Starting energy totals, day starts at {}", rollover);
+        long sequence = 0;
+        if (stateFile.exists()) {
+            try {
+                sequence = load();
+            } catch (IOException e) {
+                LOG.warn("Could not restore energy totals from {}: {}", stateFile, e.getMessage());
+            }
+        }
+        synchronized (this) {
+            counted = sequence;
+        }
+        int replayed = log.replay(sequence, this::replay);
+        if (replayed > 0) {
+            LOG.info("Replayed {} sales from the sale log, {} kJ today", replayed, Math.round(getTotal(EWindow.TODAY)));
+            dirty.set(true);
+        }
+        log.start(this::synced);
+        executor.scheduleWithFixedDelay(this::saveIfDirty, SAVE_INTERVAL_MS, SAVE_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        // on each whole minute, for the rolling windows
+        executor.scheduleAtFixedRate(this::refresh, REFRESH_INTERVAL_MS - clock.millis() % REFRESH_INTERVAL_MS,
+                REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduleRollover();
+    }
+
+    /**
+     * Tells the listener about all sources at the start of the next day, and again for the day after.
+     */
+    private void scheduleRollover() {
+        try {
+            executor.schedule(() -> {
+                refresh();
+                // if it ran a bit early, it runs again right after the rollover
+                scheduleRollover();
+            }, getMillisToRollover(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * @return the time until the next day starts (ms)
+     */
+    long getMillisToRollover() {
+        ZonedDateTime now = ZonedDateTime.now(clock);
+        ZonedDateTime next = now.with(rollover);
+        if (!next.isAfter(now)) {
+            next = now.plusDays(1).with(rollover);
+        }
+        return Duration.between(now, next).toMillis();
+    }
+
+    /**
+     * Tells the listener about all sources, as their windows moved on.
+     */
+    void refresh() {
+        for (String source : sources.keySet()) {
+            listener.totalsChanged(source);
+        }
+    }
+
+    /**
+     * Stops this module, counting the additions still in the sale log queue, then saving the totals to the state file.
+     */
+    public void stop() {
+        LOG.info("Stopping energy totals");
+        executor.shutdownNow();
+        log.stop();
+        saveIfDirty();
+    }
+
+    /**
+     * Sets the listener that is told about energy counted.
+     *
+     * @param listener the listener, called on the sale log writer thread, and periodically on the energy-save
+     *        thread
+     */
+    public void setListener(ITotalsChanged listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds energy of a source at the current time. It is counted once it is in the sale log on disk, or right away
+     * if the sale log is not started.
+     *
+     * @param source the source name, empty for an unnamed single source
+     * @param energy the energy (kJ)
+     */
+    public void add(String source, double energy) {
+        long now = clock.millis();
+        if (log.append(source, energy, now) == 0) {
+            synced(0, source, energy, now);
+        }
+    }
+
+    private synchronized void replay(long sequence, String source, double energy, long time) {
+        accumulator(source).add(energy, time);
+        counted = sequence;
+    }
+
+    /**
+     * Counts energy that is in the sale log on disk, or that is not logged (sequence 0).
+     */
+    private void synced(long sequence, String source, double energy, long time) {
+        if (sequence == 0) {
+            // not logged, so no position in the sale log to keep consistent with
+            accumulator(source).add(energy, time);
+        } else {
+            synchronized (this) {
+                accumulator(source).add(energy, time);
+                counted = sequence;
+            }
+        }
+        dirty.set(true);
+        listener.totalsChanged(source);
+    }
+
+    private EnergyAccumulator accumulator(String source) {
+        return sources.computeIfAbsent(source, s -> new EnergyAccumulator(clock, rollover));
+    }
+
+    /**
+     * Waits until all additions so far are written to the sale log, and counted.
+     * 
+     * @throws IOException in case the additions could not be written (yet)
+     * @throws InterruptedException in case the thread was interrupted while waiting
+     */
+    void sync() throws IOException, InterruptedException {
+        log.sync();
+    }
+
+    /**
+     * @param source the source name
+     * @param window the time window
+     * @return the energy of the source within the window (kJ)
+     */
+    public double get(String source, EWindow window) {
+        EnergyAccumulator accumulator = sources.get(source);
+        return (accumulator != null) ? accumulator.get(window) : 0.0;
+    }
+
+    /**
+     * @param window the time window
+     * @return the energy of all sources together within the window (kJ)
+     */
+    public double getTotal(EWindow window) {
+        double total = 0.0;
+        for (EnergyAccumulator accumulator : sources.values()) {
+            total += accumulator.get(window);
+        }
+        return total;
+    }
+
+    /**
+     * @return the names of the sources seen so far
+     */
+    public List<String> getSources() {
+        return new ArrayList<>(sources.keySet());
+    }
+
+    public SaleLog getSaleLog() {
+        return log;
+    }
+
+    private void saveIfDirty() {
+        if (dirty.getAndSet(false)) {
+            try {
+                save();
+            } catch (IOException e) {
+                dirty.set(true);
+                LOG.warn("Could not save energy totals to {}: {}", stateFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the totals to a temporary file, then replaces the state file with it.
+     * 
+     * The totals are captured together with the position in the sale log of the last entry counted, and the log moves
+     * on to a new segment, so the segments holding only counted entries can be deleted once the snapshot is on disk.
+     */
+    private void save() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        long sequence;
+        synchronized (this) {
+            sequence = counted;
+            try (DataOutputStream dos = new DataOutputStream(bos)) {
+                dos.writeByte(VERSION);
+                dos.writeLong(sequence);
+                List<Map.Entry<String, EnergyAccumulator>> entries = new ArrayList<>(sources.entrySet());
+                dos.writeInt(entries.size());
+                for (Map.Entry<String, EnergyAccumulator> entry : entries) {
+                    dos.writeUTF(entry.getKey());
+                    entry.getValue().write(dos);
+                }
+            }
+            log.roll();
+        }
+
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            bos.writeTo(fos);
+            fos.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.compact(sequence);
+    }
+
+    /**
+     * @return the sequence number of the last sale log entry included in the state file
+     */
+    private long load() throws IOException {
+        long sequence = 0;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            int version = dis.readUnsignedByte();
+            switch (version) {
+            case 1:
+                read(dis, "");
+                break;
+            case VERSION:
+                sequence = dis.readLong();
+                // the rest is as in version 2
+            case 2:
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    read(dis, dis.readUTF());
+                }
+                break;
+            default:
+                throw new IOException("Unsupported energy state version " + version);
+            }
+        }
+        LOG.info("Restored energy totals of {} sources from {}, {} kJ today", sources.size(), stateFile,
+                Math.round(getTotal(EWindow.TODAY)));
+        return sequence;
+    }
+
+    private void read(DataInputStream dis, String source) throws IOException {
+        EnergyAccumulator accumulator = new EnergyAccumulator(clock, rollover);
+        accumulator.read(dis);
+        sources.put(source, accumulator);
+    }
+
+}
@@ -1,5 +1,7 @@
 package nl.sikken.bertrik.caloriecounter;
 
+import java.time.LocalTime;
+
 /**
  * Configuration interface for the application.
  */
@@ -9,9 +11,21 @@ public interface ICalorieCounterConfig {
 
 	String getMqttSourceTopic();
 
+	int getMqttSourceDedupWindow();
+
 	String getMqttDestUrl();
 
 	String getMqttDestTopic();
+
+	int getMqttDestQos();
+
+	boolean getMqttDestRetained();
+
+	int getMqttDestInterval();
+
+	int getMqttDestMaxInflight();
+
+	String getMqttDestFormat();
 	
 	String getOpenFoodFactsUrl();
 
@@ -19,4 +33,46 @@ public interface ICalorieCounterConfig {
 
 	String getOpenFoodFactsStorage();
 
+	int getOpenFoodFactsCacheSize();
+
+	int getOpenFoodFactsStoreSize();
+
+	int getOpenFoodFactsTtl();
+
+	int getOpenFoodFactsNegativeTtl();
+
+	int getOpenFoodFactsRetries();
+
+	boolean getOpenFoodFactsHedge();
+
+	int getOpenFoodFactsBreakerFailures();
+
+	int getOpenFoodFactsBreakerOpen();
+
+	int getPipelineThreads();
+
+	int getPipelineQueueSize();
+
+	int getPipelinePendingSize();
+
+	LocalTime getEnergyRollover();
+
+	String getEnergyWindow();
+
+	String getEnergyState();
+
+	String getTopTopic();
+
+	int getTopSize();
+
+	int getTopInterval();
+
+	String getCacheTopic();
+
+	String getHistoryDir();
+
+	int getHistoryDetailDays();
+
+	int getMetricsPort();
+
 }
@@ -8,9 +8,10 @@ public interface IMessageReceived {
     /**
      * Indicates that a message was received.
      * 
+     * @param source the name of the source that sent the message, empty if there is only one source
      * @param topic the topic
-     * @param message the message
+     * @param payload the raw message payload
      */
-    void messageReceived(String topic, String message);
+    void messageReceived(String source, String topic, byte[] payload);
     
 }
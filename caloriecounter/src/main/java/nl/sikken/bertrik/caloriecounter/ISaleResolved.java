@@ -0,0 +1,18 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.util.List;
+
+/**
+ * Interface of the callback from the sale pipeline.
+ */
+public interface ISaleResolved {
+
+    /**
+     * Indicates that the energy of all items of a sale was determined, called in order of arrival of the sales.
+     *
+     * @param source the source of the sale
+     * @param items the items, with their energy
+     */
+    void saleResolved(String source, List<SaleItem> items);
+
+}
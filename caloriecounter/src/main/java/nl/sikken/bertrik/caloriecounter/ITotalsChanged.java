@@ -0,0 +1,16 @@
+package nl.sikken.bertrik.caloriecounter;
+
+/**
+ * Interface of the callback for changes of the energy totals.
+ */
+public interface ITotalsChanged {
+
+    /**
+     * Indicates that the totals of a source changed: energy was counted, and is on disk so it survives a crash, or
+     * time moved on so energy dropped out of a window (e.g. a new day started).
+     *
+     * @param source the source
+     */
+    void totalsChanged(String source);
+
+}
@@ -10,6 +10,9 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nl.sikken.bertrik.caloriecounter.jfr.MqttArrivalEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.SaleTrace;
+
 /**
  * Listener process for receiving data from MQTT.
  */
@@ -20,8 +23,11 @@ public final class MqttListener {
     
     private final String clientId;
     private final IMessageReceived callback;
+    private final Deduplicator deduplicator;
+    private final String name;
     private final String url;
     private final String topic;
+    private final boolean traced;
 
     private MqttClient mqttClient;
 
@@ -29,14 +35,34 @@ public final class MqttListener {
      * Constructor.
      * 
      * @param callback the interface for indicating a received message.
+     * @param deduplicator suppresses messages delivered more than once
+     * @param name the name of this listener, prefixed to the source of each message, may be empty
+     * @param url the URL of the MQTT server
+     * @param topic the topic to listen to, the levels matching its wildcards identify the source of a message
+     */
+    public MqttListener(IMessageReceived callback, Deduplicator deduplicator, String name, String url, String topic) {
+        this(callback, deduplicator, name, url, topic, true);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param callback the interface for indicating a received message.
+     * @param deduplicator suppresses messages delivered more than once
+     * @param name the name of this listener, prefixed to the source of each message, may be empty
      * @param url the URL of the MQTT server
-     * @param topic the topic to listen to
+     * @param topic the topic to listen to, the levels matching its wildcards identify the source of a message
+     * @param traced whether each message is traced as a sale, false for messages that are not sales
      */
-    public MqttListener(IMessageReceived callback, String url, String topic) {
+    public MqttListener(IMessageReceived callback, Deduplicator deduplicator, String name, String url, String topic,
+            boolean traced) {
         this.clientId = MqttClient.generateClientId();
         this.callback = callback;
+        this.deduplicator = deduplicator;
+        this.name = name;
         this.url = url;
         this.topic = topic;
+        this.traced = traced;
     }
     
     /**
@@ -60,17 +86,84 @@ public final class MqttListener {
     }
     
     /**
-     * Handles an incoming message.
+     * Handles an incoming message, as a new sale if traced.
      * 
      * @param topic the topic
      * @param mqttMessage the message
      * @throws Exception who knows?
      */
     private void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
-        final String message = new String(mqttMessage.getPayload(), StandardCharsets.US_ASCII);
-        LOG.info("Message arrived on topic '{}': {}", topic, message);
-        // forward it to our user
-        callback.messageReceived(topic, message);
+        if (!traced) {
+            forward(topic, mqttMessage);
+            return;
+        }
+        MqttArrivalEvent event = new MqttArrivalEvent();
+        event.begin();
+        long saleId = SaleTrace.newId();
+        long previous = SaleTrace.set(saleId);
+        boolean duplicate = false;
+        try {
+            duplicate = !forward(topic, mqttMessage);
+        } finally {
+            SaleTrace.set(previous);
+            if (event.shouldCommit()) {
+                event.saleId = saleId;
+                event.topic = topic;
+                event.messageId = mqttMessage.getId();
+                event.duplicate = duplicate;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Forwards a message to our user, undecoded, unless it is a duplicate.
+     * 
+     * @return whether the message was forwarded
+     */
+    private boolean forward(String topic, MqttMessage mqttMessage) {
+        final byte[] payload = mqttMessage.getPayload();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Message arrived on topic '{}': {}", topic, new String(payload, StandardCharsets.US_ASCII));
+        }
+        String source = getSource(topic);
+        if (deduplicator.isDuplicate(source, mqttMessage.isDuplicate(), mqttMessage.isRetained(), payload)) {
+            LOG.info("Ignoring duplicate message {} on topic '{}'", mqttMessage.getId(), topic);
+            return false;
+        }
+        callback.messageReceived(source, topic, payload);
+        return true;
+    }
+
+    /**
+     * Determines the source of a message: the name of this listener, followed by the topic levels that matched the
+     * wildcards of the topic filter, e.g. "bar2" for topic "pos/bar2/sale" and filter "pos/+/sale".
+     * 
+     * @param messageTopic the topic of the message
+     * @return the source, empty if this listener has no name and the filter has no wildcards
+     */
+    String getSource(String messageTopic) {
+        StringBuilder source = new StringBuilder(name);
+        String[] filterLevels = topic.split("/", -1);
+        String[] topicLevels = messageTopic.split("/", -1);
+        for (int i = 0; (i < filterLevels.length) && (i < topicLevels.length); i++) {
+            if (filterLevels[i].equals("+")) {
+                appendLevel(source, topicLevels[i]);
+            } else if (filterLevels[i].equals("#")) {
+                for (int j = i; j < topicLevels.length; j++) {
+                    appendLevel(source, topicLevels[j]);
+                }
+                break;
+            }
+        }
+        return source.toString();
+    }
+
+    private static void appendLevel(StringBuilder source, String level) {
+        if (source.length() > 0) {
+            source.append('/');
+        }
+        source.append(level);
     }
     
     /**
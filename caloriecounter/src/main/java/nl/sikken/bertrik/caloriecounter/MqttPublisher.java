@@ -1,66 +1,146 @@
 package nl.sikken.bertrik.caloriecounter;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nl.sikken.bertrik.caloriecounter.jfr.PublishEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.SaleTrace;
+import nl.sikken.bertrik.caloriecounter.metrics.Histogram;
+
 /**
- * @author bertrik
+ * Asynchronous MQTT publisher.
+ *
+ * Updates are coalesced: per topic only the latest text is kept, and published at most once per interval. A text
+ * equal to the one last published on its topic is not published again, unless that is disabled, e.g. for a topic per
+ * product, where remembering the last text of each topic would take ever more memory. Publishing does not wait for
+ * the broker, the number of unacknowledged messages is limited by the in-flight window. A text only counts as
+ * published once the broker acknowledged it, a text that failed to publish is queued again, and published once the
+ * connection is back.
  *
+ * @author bertrik
  */
 public final class MqttPublisher {
-	
+
     private static final Logger LOG = LoggerFactory.getLogger(MqttPublisher.class);
     private static final long DISCONNECT_TIMEOUT_MS = 3000;
-	
+
 	private final String clientId;
 	private final String url;
 	private final String topic;
+	private final int qos;
+	private final boolean retained;
+	private final long interval;
+	private final int maxInflight;
+	private final boolean skipUnchanged;
+
+	// latest text per topic waiting to be published, last text sent per topic and not acknowledged yet, and last
+	// text acknowledged per topic
+	private final ConcurrentMap<String, String> pending = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Delivery> sent = new ConcurrentHashMap<>();
+	private final Map<String, String> published = new ConcurrentHashMap<>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final ScheduledExecutorService executor;
+
+	private final AtomicLong publishCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong unchangedCount = new AtomicLong();
+	private final Histogram publishLatency = new Histogram();
+
+	private MqttAsyncClient mqttClient;
 
-	private MqttClient mqttClient;
+	/**
+	 * Constructor.
+	 *
+	 * @param url the MQTT URL
+	 * @param topic the MQTT topic
+	 * @param qos the MQTT quality of service of published messages
+	 * @param retained whether published messages are retained by the broker
+	 * @param interval the minimum time between two publishes on the same topic (ms)
+	 * @param maxInflight the maximum number of published messages not yet acknowledged by the broker
+	 */
+	public MqttPublisher(String url, String topic, int qos, boolean retained, long interval, int maxInflight) {
+		this(url, topic, qos, retained, interval, maxInflight, true);
+	}
 
 	/**
 	 * Constructor.
-	 * 
+	 *
 	 * @param url the MQTT URL
 	 * @param topic the MQTT topic
+	 * @param qos the MQTT quality of service of published messages
+	 * @param retained whether published messages are retained by the broker
+	 * @param interval the minimum time between two publishes on the same topic (ms)
+	 * @param maxInflight the maximum number of published messages not yet acknowledged by the broker
+	 * @param skipUnchanged whether to skip a text equal to the one last published on its topic
 	 */
-	public MqttPublisher(String url, String topic) {
+	public MqttPublisher(String url, String topic, int qos, boolean retained, long interval, int maxInflight,
+			boolean skipUnchanged) {
         this.clientId = MqttClient.generateClientId();
         this.url = url;
         this.topic = topic;
+        this.qos = qos;
+        this.retained = retained;
+        this.interval = interval;
+        this.maxInflight = maxInflight;
+        this.skipUnchanged = skipUnchanged;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "publish");
+            thread.setDaemon(true);
+            return thread;
+        });
 	}
-	
+
 	/**
      * Starts this module.
-     * 
-     * @throws MqttException in case something went wrong with MQTT 
+     *
+     * @throws MqttException in case something went wrong with MQTT
      */
     public void start() throws MqttException {
         LOG.info("Starting MQTT publisher");
-        
+
         // connect
         LOG.info("Connecting to MQTT server {}", url);
-        this.mqttClient = new MqttClient(url, clientId, new MemoryPersistence());
+        this.mqttClient = new MqttAsyncClient(url, clientId, new MemoryPersistence());
+        mqttClient.setCallback(connectionListener);
         final MqttConnectOptions options = new MqttConnectOptions();
         options.setAutomaticReconnect(true);
-        mqttClient.connect(options);
-        
-        LOG.info("Publishing to topic '{}'", topic);
+        options.setMaxInflight(maxInflight);
+        mqttClient.connect(options).waitForCompletion();
+
+        LOG.info("Publishing to topic '{}' with QoS {}, retained {}, at most once per {} ms", topic, qos, retained,
+                interval);
     }
-    
+
     /**
-     * Stops this module.
+     * Stops this module, publishing any updates still waiting.
      */
     public void stop() {
-        LOG.info("Stopping MQTT publisher");
+        LOG.info("Stopping MQTT publisher, {} published, {} coalesced, {} unchanged", publishCount.get(),
+                coalescedCount.get(), unchangedCount.get());
+        executor.shutdownNow();
+        flush();
         try {
-            mqttClient.disconnect(DISCONNECT_TIMEOUT_MS);
+            mqttClient.disconnect(DISCONNECT_TIMEOUT_MS).waitForCompletion(DISCONNECT_TIMEOUT_MS);
         } catch (MqttException e) {
             // don't care, just log
             LOG.warn("Caught exception on disconnect: {}", e.getMessage());
@@ -75,14 +155,182 @@ public final class MqttPublisher {
     }
 
 	public void publish(String text) {
-		LOG.info("Publishing '{}' to topic '{}'", text, topic);
+		offer(topic, text);
+	}
+
+	/**
+	 * Publishes to a sub-topic of our topic.
+	 *
+	 * @param subTopic the sub-topic, e.g. the name of a source
+	 * @param text the text
+	 */
+	public void publish(String subTopic, String text) {
+		offer(topic + "/" + subTopic, text);
+	}
+
+	/**
+	 * Publishes to another topic than ours.
+	 *
+	 * @param fullTopic the topic, e.g. for a list of products
+	 * @param text the text
+	 */
+	public void publishTopic(String fullTopic, String text) {
+		offer(fullTopic, text);
+	}
+
+	/**
+	 * Queues a text for publishing, replacing any text for the same topic that is still waiting.
+	 */
+	private void offer(String fullTopic, String text) {
+		PublishEvent event = new PublishEvent();
+		event.begin();
+		boolean coalesced = (pending.put(fullTopic, text) != null);
+		if (coalesced) {
+			coalescedCount.incrementAndGet();
+		}
+		scheduleFlush();
+		if (event.shouldCommit()) {
+			event.saleId = SaleTrace.current();
+			event.topic = fullTopic;
+			event.bytes = text.getBytes(StandardCharsets.UTF_8).length;
+			event.coalesced = coalesced;
+			event.commit();
+		}
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true) && !executor.isShutdown()) {
+			executor.schedule(this::flush, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * A text sent to the broker, the user context of its publish.
+	 */
+	private static final class Delivery {
+		private final String fullTopic;
+		private final String text;
+		private final long start;
+
+		Delivery(String fullTopic, String text, long start) {
+			this.fullTopic = fullTopic;
+			this.text = text;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * Records a text as published once acknowledged by the broker, unless a newer text was sent meanwhile, and
+	 * records the time from publish until acknowledgement. Queues a text that failed to publish again, unless a newer
+	 * text arrived meanwhile.
+	 */
+	private final IMqttActionListener deliveryListener = new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken token) {
+			Delivery delivery = (Delivery) token.getUserContext();
+			publishLatency.recordSince(delivery.start);
+			if (sent.remove(delivery.fullTopic, delivery) && skipUnchanged) {
+				published.put(delivery.fullTopic, delivery.text);
+			}
+		}
+
+		@Override
+		public void onFailure(IMqttToken token, Throwable exception) {
+			Delivery delivery = (Delivery) token.getUserContext();
+			LOG.warn("Publish to topic '{}' failed, retrying later: {}", delivery.fullTopic, exception.getMessage());
+			sent.remove(delivery.fullTopic, delivery);
+			pending.putIfAbsent(delivery.fullTopic, delivery.text);
+			scheduleFlush();
+		}
+	};
+
+	/**
+	 * Publishes the texts that could not be published while the connection was down, as soon as it is back.
+	 */
+	private final MqttCallbackExtended connectionListener = new MqttCallbackExtended() {
+		@Override
+		public void connectComplete(boolean reconnect, String serverURI) {
+			if (reconnect && !executor.isShutdown()) {
+				LOG.info("Reconnected to {}, publishing {} waiting texts", serverURI, pending.size());
+				executor.execute(MqttPublisher.this::flush);
+			}
+		}
+
+		@Override
+		public void connectionLost(Throwable cause) {
+			LOG.warn("Connection lost: {}", cause.getMessage());
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message) {
+			// we don't subscribe
+		}
 
-		try {
-			mqttClient.publish(topic, text.getBytes(StandardCharsets.US_ASCII), 1, true);
-		} catch (MqttException e) {
-			LOG.trace("Caught", e);
-			LOG.warn("Caught {}", e.getMessage());
+		@Override
+		public void deliveryComplete(IMqttDeliveryToken token) {
+			// handled by the delivery listener
 		}
+	};
+
+	/**
+	 * Publishes the latest text of each topic, unless it was published already. A text that cannot be published now,
+	 * e.g. because the in-flight window is full or the connection is down, is tried again later.
+	 */
+	private void flush() {
+		flushScheduled.set(false);
+		if (!mqttClient.isConnected()) {
+			// the connection listener flushes once it is back
+			return;
+		}
+		for (String fullTopic : pending.keySet()) {
+			String text = pending.remove(fullTopic);
+			if (text == null) {
+				continue;
+			}
+			// while another text is in flight, the broker may end up with that one
+			if (skipUnchanged && !sent.containsKey(fullTopic) && text.equals(published.get(fullTopic))) {
+				unchangedCount.incrementAndGet();
+				continue;
+			}
+			LOG.info("Publishing '{}' to topic '{}'", text, fullTopic);
+			Delivery delivery = new Delivery(fullTopic, text, System.nanoTime());
+			sent.put(fullTopic, delivery);
+			try {
+				mqttClient.publish(fullTopic, text.getBytes(StandardCharsets.UTF_8), qos, retained, delivery,
+						deliveryListener);
+				publishCount.incrementAndGet();
+			} catch (MqttException e) {
+				sent.remove(fullTopic, delivery);
+				if (e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
+					LOG.info("Too many messages in flight, retrying later");
+				} else {
+					LOG.trace("Caught", e);
+					LOG.warn("Caught {}, retrying later", e.getMessage());
+				}
+				// try again later unless a newer text arrived meanwhile
+				pending.putIfAbsent(fullTopic, text);
+				scheduleFlush();
+			}
+		}
+	}
+
+	public long getPublishCount() {
+		return publishCount.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getUnchangedCount() {
+		return unchangedCount.get();
+	}
+
+	/**
+	 * @return the time from publish until acknowledgement by the broker
+	 */
+	public Histogram getPublishLatency() {
+		return publishLatency;
 	}
 
 }
@@ -0,0 +1,345 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.Gtin;
+
+/**
+ * History of all sales, kept on disk as individual sales and as per-minute, per-hour and per-day totals.
+ *
+ * Individual sales are appended to a file per (UTC) day, as fixed-size records of time, bar code, source and energy.
+ * Each sale is also added to the totals of its minute, hour and day. The totals of a resolution are kept in files of
+ * a fixed number of fixed-size slots, so a sale updates one slot per resolution in place, and a range query reads a
+ * few slots per resolution without looking at individual sales.
+ *
+ * Individual sales and per-minute totals are deleted after a configurable number of days, per-hour and per-day totals
+ * are kept.
+ */
+public final class SaleHistory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SaleHistory.class);
+
+    // a slot holds the number of sales (int) and the energy (long, J)
+    private static final int SLOT_SIZE = 12;
+    // a raw record holds the time (ms), the bar code (GTIN value), the source (index) and the energy (kJ)
+    private static final int RECORD_SIZE = 8 + 8 + 2 + 8;
+    private static final String SOURCES_FILE = "sources.txt";
+
+    /**
+     * The resolution of the totals, each kept in files (partitions) of a fixed number of slots.
+     */
+    public enum EResolution {
+        MINUTE("minute", TimeUnit.MINUTES.toMillis(1), 24 * 60),
+        HOUR("hour", TimeUnit.HOURS.toMillis(1), 30 * 24),
+        DAY("day", TimeUnit.DAYS.toMillis(1), 365);
+
+        private final String name;
+        private final long length;
+        private final int slots;
+
+        EResolution(String name, long length, int slots) {
+            this.name = name;
+            this.length = length;
+            this.slots = slots;
+        }
+
+        /**
+         * @param name the name, e.g. "hour"
+         * @return the resolution
+         */
+        public static EResolution fromName(String name) {
+            for (EResolution resolution : values()) {
+                if (resolution.name.equals(name)) {
+                    return resolution;
+                }
+            }
+            throw new IllegalArgumentException("Unknown resolution '" + name + "'");
+        }
+
+        private long partitionLength() {
+            return length * slots;
+        }
+    }
+
+    /**
+     * The totals of one time slot.
+     */
+    public static final class Bucket {
+        private final long start;
+        private final int count;
+        private final double energy;
+
+        Bucket(long start, int count, double energy) {
+            this.start = start;
+            this.count = count;
+            this.energy = energy;
+        }
+
+        /**
+         * @return the start of the slot (ms since epoch)
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the number of sales
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the energy (kJ)
+         */
+        public double getEnergy() {
+            return energy;
+        }
+    }
+
+    private final File dir;
+    private final long detailTime;
+
+    // guarded by this
+    private final Map<String, Integer> sources = new HashMap<>();
+    private final Map<EResolution, MappedByteBuffer> partitions = new HashMap<>();
+    private final Map<EResolution, Long> partitionIndex = new HashMap<>();
+    private FileChannel raw;
+    private long rawDay = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param dir the directory to keep the history in
+     * @param detailTime how long individual sales and per-minute totals are kept (ms)
+     */
+    public SaleHistory(File dir, long detailTime) {
+        this.dir = dir;
+        this.detailTime = detailTime;
+    }
+
+    /**
+     * Opens the history for adding sales.
+     *
+     * @throws IOException in case of a problem creating the directories or reading the sources
+     */
+    public synchronized void start() throws IOException {
+        for (EResolution resolution : EResolution.values()) {
+            File subDir = new File(dir, resolution.name);
+            if (!subDir.isDirectory() && !subDir.mkdirs()) {
+                throw new IOException("Could not create directory " + subDir);
+            }
+        }
+        File rawDir = new File(dir, "raw");
+        if (!rawDir.isDirectory() && !rawDir.mkdirs()) {
+            throw new IOException("Could not create directory " + rawDir);
+        }
+        File sourcesFile = new File(dir, SOURCES_FILE);
+        if (sourcesFile.exists()) {
+            for (String source : Files.readAllLines(sourcesFile.toPath(), StandardCharsets.UTF_8)) {
+                sources.put(source, sources.size());
+            }
+        }
+        LOG.info("Opened sale history in {}", dir);
+    }
+
+    /**
+     * Closes the history, writing all changes to disk.
+     */
+    public synchronized void stop() {
+        for (MappedByteBuffer buffer : partitions.values()) {
+            buffer.force();
+        }
+        partitions.clear();
+        partitionIndex.clear();
+        closeRaw();
+    }
+
+    /**
+     * Adds a sale. The data is handed to the operating system, but not forced to disk.
+     *
+     * @param time the time of the sale (ms since epoch)
+     * @param source the source of the sale
+     * @param barCode the bar code
+     * @param energy the energy (kJ)
+     */
+    public synchronized void add(long time, String source, String barCode, double energy) {
+        try {
+            appendRaw(time, source, barCode, energy);
+            long joules = Math.round(energy * 1000.0);
+            for (EResolution resolution : EResolution.values()) {
+                MappedByteBuffer buffer = openPartition(resolution, Math.floorDiv(time, resolution.partitionLength()));
+                int offset = (int) Math.floorMod(time / resolution.length, (long) resolution.slots) * SLOT_SIZE;
+                buffer.putInt(offset, buffer.getInt(offset) + 1);
+                buffer.putLong(offset + 4, buffer.getLong(offset + 4) + joules);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not add sale of {} to history: {}", barCode, e.getMessage());
+        }
+    }
+
+    private void appendRaw(long time, String source, String barCode, double energy) throws IOException {
+        long day = Math.floorDiv(time, TimeUnit.DAYS.toMillis(1));
+        if (day != rawDay) {
+            // a new day, so also a good moment to clean up
+            closeRaw();
+            raw = FileChannel.open(new File(new File(dir, "raw"), partitionName(day * TimeUnit.DAYS.toMillis(1)))
+                    .toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            rawDay = day;
+            deleteExpired(time);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(time);
+        record.putLong(Gtin.parse(barCode));
+        record.putShort((short) sourceIndex(source));
+        record.putDouble(energy);
+        record.flip();
+        while (record.hasRemaining()) {
+            raw.write(record);
+        }
+    }
+
+    private int sourceIndex(String source) throws IOException {
+        Integer index = sources.get(source);
+        if (index == null) {
+            index = sources.size();
+            Files.write(new File(dir, SOURCES_FILE).toPath(), (source + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            sources.put(source, index);
+        }
+        return index;
+    }
+
+    private void closeRaw() {
+        if (raw != null) {
+            try {
+                raw.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close sale history: {}", e.getMessage());
+            }
+            raw = null;
+            rawDay = -1;
+        }
+    }
+
+    /**
+     * Maps the partition file of a resolution, keeping one partition per resolution mapped.
+     */
+    private MappedByteBuffer openPartition(EResolution resolution, long index) throws IOException {
+        Long current = partitionIndex.get(resolution);
+        if ((current != null) && (current == index)) {
+            return partitions.get(resolution);
+        }
+        MappedByteBuffer old = partitions.remove(resolution);
+        if (old != null) {
+            old.force();
+        }
+        File file = partitionFile(resolution, index);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) resolution.slots * SLOT_SIZE);
+            partitions.put(resolution, buffer);
+            partitionIndex.put(resolution, index);
+            return buffer;
+        }
+    }
+
+    /**
+     * Deletes individual sales and per-minute totals older than the detail time.
+     */
+    private void deleteExpired(long now) {
+        String oldest = partitionName(now - detailTime);
+        for (String subDir : new String[] {"raw", EResolution.MINUTE.name}) {
+            File[] files = new File(dir, subDir).listFiles((d, name) -> name.compareTo(oldest) < 0);
+            if (files != null) {
+                for (File file : files) {
+                    LOG.info("Deleting expired sale history {}", file);
+                    if (!file.delete()) {
+                        LOG.warn("Could not delete {}", file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queries the totals within a time range, from the totals of the given resolution.
+     *
+     * @param resolution the resolution
+     * @param from the start of the range (ms since epoch), inclusive
+     * @param to the end of the range (ms since epoch), exclusive
+     * @return the totals of each slot in the range with at least one sale, in order
+     * @throws IOException in case of a problem reading the history
+     */
+    public List<Bucket> query(EResolution resolution, long from, long to) throws IOException {
+        List<Bucket> buckets = new ArrayList<>();
+        long first = Math.floorDiv(from, resolution.length);
+        long last = Math.floorDiv(to - 1, resolution.length);
+        long partition = -1;
+        ByteBuffer data = null;
+        for (long slot = first; slot <= last; slot++) {
+            long index = Math.floorDiv(slot, (long) resolution.slots);
+            if (index != partition) {
+                partition = index;
+                data = readPartition(resolution, index);
+            }
+            if (data != null) {
+                int offset = (int) Math.floorMod(slot, (long) resolution.slots) * SLOT_SIZE;
+                int count = data.getInt(offset);
+                if (count > 0) {
+                    buckets.add(new Bucket(slot * resolution.length, count, data.getLong(offset + 4) / 1000.0));
+                }
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * @return the contents of a partition file, null if it does not exist
+     */
+    private ByteBuffer readPartition(EResolution resolution, long index) throws IOException {
+        File file = partitionFile(resolution, index);
+        if (!file.exists()) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(resolution.slots * SLOT_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (data.hasRemaining() && (channel.read(data) >= 0)) {
+                // keep reading
+            }
+        }
+        return data;
+    }
+
+    private File partitionFile(EResolution resolution, long index) {
+        return new File(new File(dir, resolution.name), partitionName(index * resolution.partitionLength()));
+    }
+
+    /**
+     * @return the file name of a partition starting at the given time, e.g. "2020-01-01.dat", sortable by time
+     */
+    private static String partitionName(long start) {
+        LocalDate date = Instant.ofEpochMilli(start).atZone(ZoneOffset.UTC).toLocalDate();
+        return date + ".dat";
+    }
+
+}
@@ -0,0 +1,63 @@
+package nl.sikken.bertrik.caloriecounter;
+
+/**
+ * One item of a sale: a product, the number of pieces sold, and once resolved, its energy.
+ */
+public final class SaleItem {
+
+    private final String barCode;
+    private final int quantity;
+    private final double energy;
+
+    /**
+     * Constructor.
+     *
+     * @param barCode the bar code
+     * @param quantity the number of pieces sold
+     */
+    public SaleItem(String barCode, int quantity) {
+        this(barCode, quantity, Double.NaN);
+    }
+
+    private SaleItem(String barCode, int quantity, double energy) {
+        this.barCode = barCode;
+        this.quantity = quantity;
+        this.energy = energy;
+    }
+
+    /**
+     * @param newEnergy the energy of one piece (kJ)
+     * @return a copy of this item, with the given energy
+     */
+    public SaleItem withEnergy(double newEnergy) {
+        return new SaleItem(barCode, quantity, newEnergy);
+    }
+
+    public String getBarCode() {
+        return barCode;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * @return the energy of one piece (kJ), NaN if not resolved
+     */
+    public double getEnergy() {
+        return energy;
+    }
+
+    /**
+     * @return the energy of all pieces (kJ), NaN if not resolved
+     */
+    public double getTotalEnergy() {
+        return quantity * energy;
+    }
+
+    @Override
+    public String toString() {
+        return (quantity == 1) ? barCode : (barCode + "*" + quantity);
+    }
+
+}
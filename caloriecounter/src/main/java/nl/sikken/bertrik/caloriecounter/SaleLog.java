@@ -0,0 +1,513 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.sikken.bertrik.caloriecounter.metrics.Histogram;
+
+/**
+ * Write-ahead log of the energy counted per source, so no sale is forgotten when the process stops between two
+ * snapshots of the totals.
+ *
+ * Appending does not wait for the disk: a single writer thread takes all entries queued so far, writes them in one go
+ * and forces them to disk (group commit), so the cost of one fsync is shared by all sales arriving meanwhile. Only then
+ * are the entries passed on, in order, so nothing is counted that a crash could still take back. If writing fails, the
+ * segment is cut back to its last good length, and the entries are kept and written again later. Until then they are
+ * not passed on, and waiting for them fails.
+ *
+ * Each entry has a sequence number, so entries already included in a snapshot are skipped on replay, and a checksum,
+ * so an entry torn by a crash is detected and cut off. The log is split in segments, named after their first sequence
+ * number: a new segment is started at each snapshot, and older segments are deleted once the snapshot is on disk.
+ */
+public final class SaleLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SaleLog.class);
+
+    // entries are small, a larger length means the file is corrupt
+    private static final int MAX_ENTRY_LENGTH = 4096;
+    private static final long RETRY_MS = 1000;
+
+    /**
+     * Receives the entries on replay, and once they are on disk.
+     */
+    interface IEntryHandler {
+        void apply(long sequence, String source, double energy, long time);
+    }
+
+    /**
+     * Opens a segment for appending.
+     */
+    interface IChannelOpener {
+        FileChannel open(File file) throws IOException;
+    }
+
+    /**
+     * What the writer thread should do with an entry.
+     */
+    private enum EAction {
+        WRITE, ROLL, COMPACT, STOP
+    }
+
+    /**
+     * An entry of the log, or an instruction for the writer thread.
+     */
+    private static final class Entry {
+        private final EAction action;
+        private final long sequence;
+        private final String source;
+        private final double energy;
+        private final long time;
+
+        private Entry(EAction action, long sequence, String source, double energy, long time) {
+            this.action = action;
+            this.sequence = sequence;
+            this.source = source;
+            this.energy = energy;
+            this.time = time;
+        }
+    }
+
+    private final File dir;
+    private final String prefix;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong entryCount = new AtomicLong();
+    private final Histogram syncLatency = new Histogram();
+    private final IChannelOpener opener;
+
+    // lock order: this, then durableLock; the handler is called holding neither
+
+    // guarded by this
+    private long lastSequence;
+    private Thread writer;
+    private IEntryHandler handler;
+
+    // guarded by durableLock
+    private final Object durableLock = new Object();
+    private long durableSequence;
+
+    private volatile boolean running;
+    // the reason the last write failed, null if it succeeded
+    private volatile IOException failure;
+
+    // only used by the writer thread
+    private FileChannel channel;
+    private long channelLength;
+
+    /**
+     * Constructor.
+     *
+     * @param stateFile the snapshot file, the segments are kept next to it
+     */
+    public SaleLog(File stateFile) {
+        this(stateFile, file -> new FileOutputStream(file, true).getChannel());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param stateFile the snapshot file, the segments are kept next to it
+     * @param opener opens the segments for appending
+     */
+    SaleLog(File stateFile, IChannelOpener opener) {
+        this.dir = stateFile.getAbsoluteFile().getParentFile();
+        this.prefix = stateFile.getName() + ".";
+        this.opener = opener;
+    }
+
+    /**
+     * Replays the entries after a snapshot, before the log is started.
+     *
+     * @param after the sequence number of the last entry included in the snapshot
+     * @param handler receives each entry after the snapshot, in order
+     * @return the number of entries replayed
+     * @throws IOException in case of a problem reading the segments
+     */
+    synchronized int replay(long after, IEntryHandler handler) throws IOException {
+        lastSequence = after;
+        int count = 0;
+        for (File segment : listSegments()) {
+            long valid = 0;
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length = dis.readInt();
+                    if ((length <= 0) || (length > MAX_ENTRY_LENGTH)) {
+                        throw new IOException("Invalid entry length " + length);
+                    }
+                    byte[] data = new byte[length];
+                    dis.readFully(data);
+                    crc.reset();
+                    crc.update(data, 0, length);
+                    if (dis.readInt() != (int) crc.getValue()) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                    valid += 4 + length + 4;
+
+                    DataInputStream entry = new DataInputStream(new ByteArrayInputStream(data));
+                    long sequence = entry.readLong();
+                    long time = entry.readLong();
+                    String source = entry.readUTF();
+                    double energy = entry.readDouble();
+                    if (sequence > lastSequence) {
+                        handler.apply(sequence, source, energy, time);
+                        lastSequence = sequence;
+                        count++;
+                    }
+                }
+            } catch (EOFException e) {
+                // end of the segment, or an entry torn halfway
+            } catch (IOException e) {
+                LOG.warn("Corrupt entry in sale log {} at offset {}: {}", segment, valid, e.getMessage());
+            }
+            if (valid < segment.length()) {
+                // cut off the damaged tail, so entries in later segments remain readable
+                LOG.warn("Truncating sale log {} from {} to {} bytes", segment, segment.length(), valid);
+                try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                    file.setLength(valid);
+                }
+            }
+        }
+        synchronized (durableLock) {
+            durableSequence = lastSequence;
+        }
+        return count;
+    }
+
+    /**
+     * Starts the writer thread, with a new segment. Entries appended before the log is started are not logged.
+     *
+     * @param handler receives each entry once it is on disk, in order, on the writer thread
+     * @throws IOException in case the segment could not be created
+     */
+    public synchronized void start(IEntryHandler handler) throws IOException {
+        this.handler = handler;
+        channel = openSegment(lastSequence + 1);
+        channelLength = channel.size();
+        running = true;
+        writer = new Thread(this::run, "sale-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread, after writing all entries appended so far.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = writer;
+            if (thread == null) {
+                return;
+            }
+            writer = null;
+            running = false;
+            queue.add(new Entry(EAction.STOP, 0, null, 0.0, 0));
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Appends an entry, without waiting for it to be on disk. It is passed to the handler once it is.
+     *
+     * @param source the source
+     * @param energy the energy (kJ)
+     * @param time the time the energy was counted (ms since epoch)
+     * @return the sequence number of the entry, 0 if it is not logged because the log is not started
+     */
+    public synchronized long append(String source, double energy, long time) {
+        if (writer == null) {
+            return 0;
+        }
+        lastSequence++;
+        queue.add(new Entry(EAction.WRITE, lastSequence, source, energy, time));
+        return lastSequence;
+    }
+
+    /**
+     * @return the sequence number of the last entry appended or replayed
+     */
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Starts a new segment for the entries appended from now on, e.g. when taking a snapshot.
+     */
+    synchronized void roll() {
+        if (writer != null) {
+            queue.add(new Entry(EAction.ROLL, lastSequence + 1, null, 0.0, 0));
+        }
+    }
+
+    /**
+     * Deletes the segments holding only entries included in a snapshot.
+     *
+     * @param sequence the sequence number of the last entry included in the snapshot
+     */
+    synchronized void compact(long sequence) {
+        if (writer != null) {
+            queue.add(new Entry(EAction.COMPACT, sequence, null, 0.0, 0));
+        }
+    }
+
+    /**
+     * Waits until all entries appended so far are on disk, and passed to the handler.
+     *
+     * @throws IOException in case the entries could not be written (yet)
+     * @throws InterruptedException in case the thread was interrupted while waiting
+     */
+    void sync() throws IOException, InterruptedException {
+        long target = getLastSequence();
+        synchronized (durableLock) {
+            while ((durableSequence < target) && running && (failure == null)) {
+                durableLock.wait(100);
+            }
+            if (durableSequence < target) {
+                throw new IOException("Sale log entries up to " + target + " are not on disk", failure);
+            }
+        }
+    }
+
+    /**
+     * Writer thread: writes and forces all queued entries, passes them on, then waits for more. Entries that could
+     * not be written are kept, and written again after a while, together with the entries appended meanwhile.
+     */
+    private void run() {
+        List<Entry> todo = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                if (todo.isEmpty()) {
+                    todo.add(queue.take());
+                } else {
+                    Entry entry = queue.poll(RETRY_MS, TimeUnit.MILLISECONDS);
+                    if (entry != null) {
+                        todo.add(entry);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Sale log writer interrupted, {} entries not written", countWrites(todo));
+                break;
+            }
+            queue.drainTo(todo);
+
+            // the entries before an instruction are written before carrying it out
+            long start = System.nanoTime();
+            int done = 0;
+            try {
+                for (int i = 0; i < todo.size(); i++) {
+                    Entry entry = todo.get(i);
+                    if (entry.action == EAction.WRITE) {
+                        encode(buffer, entry);
+                        continue;
+                    }
+                    write(buffer);
+                    done = i;
+                    switch (entry.action) {
+                    case ROLL:
+                        rollSegment(entry.sequence);
+                        break;
+                    case COMPACT:
+                        deleteSegments(entry.sequence);
+                        break;
+                    case STOP:
+                    default:
+                        stopped = true;
+                        break;
+                    }
+                    done = i + 1;
+                }
+                write(buffer);
+                done = todo.size();
+                failure = null;
+            } catch (IOException e) {
+                buffer.reset();
+                LOG.warn("Could not write sale log, retrying in {} ms: {}", RETRY_MS, e.getMessage());
+                synchronized (durableLock) {
+                    failure = e;
+                    durableLock.notifyAll();
+                }
+            }
+            List<Entry> finished = todo.subList(0, done);
+            passOn(finished, start);
+            finished.clear();
+
+            if ((failure != null) && todo.stream().anyMatch(entry -> entry.action == EAction.STOP)) {
+                LOG.error("Stopping with {} sales not written to the sale log, they are not counted",
+                        countWrites(todo));
+                stopped = true;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close sale log: {}", e.getMessage());
+        }
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Passes the entries written to the handler, and wakes up those waiting for them.
+     */
+    private void passOn(List<Entry> entries, long start) {
+        long last = -1;
+        for (Entry entry : entries) {
+            if (entry.action == EAction.WRITE) {
+                handler.apply(entry.sequence, entry.source, entry.energy, entry.time);
+                entryCount.incrementAndGet();
+                last = entry.sequence;
+            }
+        }
+        if (last >= 0) {
+            syncCount.incrementAndGet();
+            syncLatency.recordSince(start);
+            synchronized (durableLock) {
+                durableSequence = last;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private static long countWrites(List<Entry> entries) {
+        return entries.stream().filter(entry -> entry.action == EAction.WRITE).count();
+    }
+
+    private static void encode(ByteArrayOutputStream buffer, Entry entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        try (DataOutputStream dos = new DataOutputStream(bos)) {
+            dos.writeLong(entry.sequence);
+            dos.writeLong(entry.time);
+            dos.writeUTF(entry.source);
+            dos.writeDouble(entry.energy);
+        }
+        byte[] data = bos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        DataOutputStream dos = new DataOutputStream(buffer);
+        dos.writeInt(data.length);
+        dos.write(data);
+        dos.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes the buffered entries to the current segment, and forces them to disk.
+     * 
+     * Whatever a failed write left behind is cut off first, so a torn entry never hides the entries after it.
+     */
+    private void write(ByteArrayOutputStream buffer) throws IOException {
+        if (buffer.size() > 0) {
+            if (channel.size() != channelLength) {
+                channel.truncate(channelLength);
+            }
+            ByteBuffer bb = ByteBuffer.wrap(buffer.toByteArray());
+            buffer.reset();
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            channel.force(false);
+            channelLength += bb.limit();
+        }
+    }
+
+    /**
+     * Continues in a new segment, the current one is only closed once the new one is open.
+     */
+    private void rollSegment(long firstSequence) throws IOException {
+        FileChannel next = openSegment(firstSequence);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close sale log: {}", e.getMessage());
+        }
+        channel = next;
+        channelLength = next.size();
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        File file = new File(dir, prefix + String.format(Locale.ROOT, "%019d", firstSequence) + ".log");
+        return opener.open(file);
+    }
+
+    /**
+     * Deletes the segments before the one holding the entry after the given sequence number, i.e. the segments of
+     * which the next segment starts at or before that entry.
+     */
+    private void deleteSegments(long sequence) {
+        List<File> segments = listSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            File segment = segments.get(i);
+            if ((firstSequence(segments.get(i + 1)) <= sequence + 1) && !segment.delete()) {
+                LOG.warn("Could not delete sale log {}", segment);
+            }
+        }
+    }
+
+    /**
+     * @return the segments, in order
+     */
+    private List<File> listSegments() {
+        List<File> segments = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(".log"));
+        if (files != null) {
+            for (File file : files) {
+                if (firstSequence(file) >= 0) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(firstSequence(a), firstSequence(b)));
+        return segments;
+    }
+
+    private long firstSequence(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    public long getEntryCount() {
+        return entryCount.get();
+    }
+
+    public Histogram getSyncLatency() {
+        return syncLatency;
+    }
+
+}
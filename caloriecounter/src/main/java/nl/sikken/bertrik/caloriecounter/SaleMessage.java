@@ -0,0 +1,157 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.Gtin;
+
+/**
+ * A sale message, with the items of one sale, e.g. a whole basket at checkout.
+ *
+ * The payload is one of:
+ * <ul>
+ * <li>a single bar code, e.g. "8710400311720"
+ * <li>lines of a bar code with an optional quantity, e.g. "8710400311720*2\n4029764001401"
+ * <li>a JSON array of bar codes and objects, e.g. ["4029764001401",{"code":"8710400311720","qty":2}]
+ * </ul>
+ * Items with an invalid bar code or quantity are left out and counted. A JSON payload that cannot be parsed is left
+ * out as a whole, rather than counting part of a basket.
+ */
+public final class SaleMessage {
+
+    // the most pieces of one item in a sale, more is taken as a misread
+    static final int MAX_QUANTITY = 100;
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final List<SaleItem> items = new ArrayList<>();
+    private int invalidCount;
+
+    private SaleMessage() {
+        // use parse
+    }
+
+    /**
+     * Parses a sale message.
+     *
+     * @param payload the raw payload
+     * @return the sale message
+     */
+    public static SaleMessage parse(byte[] payload) {
+        SaleMessage message = new SaleMessage();
+
+        // common case: a single bar code
+        long gtin = Gtin.decode(payload);
+        if (gtin != Gtin.INVALID) {
+            message.items.add(new SaleItem(Gtin.format(gtin), 1));
+            return message;
+        }
+
+        String text = new String(payload, StandardCharsets.UTF_8).trim();
+        if (text.startsWith("[")) {
+            message.parseJson(payload);
+        } else {
+            message.parseLines(text);
+        }
+        return message;
+    }
+
+    private void parseLines(String text) {
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int star = line.indexOf('*');
+            if (star < 0) {
+                add(line, 1);
+                continue;
+            }
+            try {
+                add(line.substring(0, star).trim(), Integer.parseInt(line.substring(star + 1).trim()));
+            } catch (NumberFormatException e) {
+                invalidCount++;
+            }
+        }
+    }
+
+    private void parseJson(byte[] payload) {
+        try (JsonParser parser = FACTORY.createParser(payload)) {
+            parser.nextToken();
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new IOException("Unexpected end of array");
+                }
+                switch (token) {
+                case VALUE_STRING:
+                case VALUE_NUMBER_INT:
+                    add(parser.getText(), 1);
+                    break;
+                case START_OBJECT:
+                    parseObject(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+                    invalidCount++;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            items.clear();
+            invalidCount = 1;
+        }
+    }
+
+    private void parseObject(JsonParser parser) throws IOException {
+        String code = "";
+        int quantity = 1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+            case "code":
+                code = parser.getText();
+                break;
+            case "qty":
+                quantity = parser.getValueAsInt(0);
+                break;
+            default:
+                parser.skipChildren();
+                break;
+            }
+        }
+        add(code, quantity);
+    }
+
+    private void add(String barCode, int quantity) {
+        long gtin = Gtin.parse(barCode);
+        if ((gtin == Gtin.INVALID) || (quantity < 1) || (quantity > MAX_QUANTITY)) {
+            invalidCount++;
+            return;
+        }
+        items.add(new SaleItem(Gtin.format(gtin), quantity));
+    }
+
+    /**
+     * @return the valid items, in order
+     */
+    public List<SaleItem> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * @return the number of items left out because of an invalid bar code or quantity
+     */
+    public int getInvalidCount() {
+        return invalidCount;
+    }
+
+}
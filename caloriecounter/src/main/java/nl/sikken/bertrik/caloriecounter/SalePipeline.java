@@ -0,0 +1,449 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.sikken.bertrik.caloriecounter.jfr.SaleTrace;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.OpenFoodFacts;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.ProductInfo;
+
+/**
+ * Asynchronous pipeline that determines the energy of each sale.
+ *
+ * A sale has one or more items (e.g. a basket at checkout), and is resolved and reported as a whole. Sales of which
+ * all products are in memory are resolved immediately, without a lookup. All other sales are put on a bounded
+ * queue, served by a pool of worker threads that look the missing products up on disk or remote. When that queue is
+ * full, the sale is dropped (shed) rather than blocking the caller. A worker takes all sales waiting (up to a limit)
+ * at once, so a burst of unknown products is looked up with a single remote call. Resolved sales are reported in
+ * order of arrival, on a reporter thread of their own, so the callback (which writes to disk and publishes) never
+ * holds up the thread that submitted the sale, nor the lookups.
+ *
+ * A sale whose lookup failed (e.g. while OpenFoodFacts is unavailable) is kept pending, and its lookup is retried
+ * periodically. Once it succeeds, the sale is reported after all, at that time.
+ *
+ * Until the lookup layer is ready (e.g. while the product store is still being loaded), sales are only queued, and
+ * looked up once it is ready. No sale is shed meanwhile: the queue is only limited once lookups are served, as only
+ * then does a full queue mean the lookups cannot keep up.
+ *
+ * Each sale carries the trace id it was submitted with, which is set on the thread that looks it up and on the thread
+ * that reports it, so the flight recorder events of a sale can be correlated.
+ */
+public final class SalePipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SalePipeline.class);
+    private static final int MAX_BATCH = 20;
+    private static final long PENDING_RETRY_MS = 30000;
+    // pending sales are given up after about an hour
+    private static final int PENDING_MAX_ATTEMPTS = 120;
+
+    private final OpenFoodFacts off;
+    private final ISaleResolved callback;
+    private final BlockingQueue<Sale> lookupQueue = new LinkedBlockingQueue<>();
+    private final int queueSize;
+    private final BlockingQueue<Sale> pendingQueue;
+    private final ScheduledExecutorService retryExecutor;
+    private final ExecutorService reportExecutor;
+    private final List<Thread> workers = new ArrayList<>();
+    private final int numWorkers;
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+    private final AtomicLong recreditCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+
+    // reorder buffer, guarded by this
+    private final Map<Long, Sale> completed = new HashMap<>();
+    private long nextToReport;
+
+    /**
+     * A single sale travelling through the pipeline.
+     */
+    private static final class Sale {
+        private final long id;
+        private final long traceId;
+        private final String source;
+        private final List<SaleItem> items;
+        // products found so far, by bar code
+        private final Map<String, ProductInfo> products = new HashMap<>();
+        private boolean resolved;
+        private int attempts;
+
+        Sale(long id, long traceId, String source, List<SaleItem> items) {
+            this.id = id;
+            this.traceId = traceId;
+            this.source = source;
+            this.items = items;
+        }
+
+        /**
+         * @return the bar codes of the products not found yet
+         */
+        List<String> getMissing() {
+            Set<String> missing = new LinkedHashSet<>();
+            for (SaleItem item : items) {
+                if (!products.containsKey(item.getBarCode())) {
+                    missing.add(item.getBarCode());
+                }
+            }
+            return new ArrayList<>(missing);
+        }
+
+        /**
+         * Takes the products that were missing from the products found by a lookup.
+         *
+         * @return whether all products are found now
+         */
+        boolean resolve(Map<String, ProductInfo> found) {
+            for (String barCode : getMissing()) {
+                ProductInfo product = found.get(barCode);
+                if (product != null) {
+                    products.put(barCode, product);
+                }
+            }
+            return getMissing().isEmpty();
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param off the product info retriever
+     * @param callback the callback for resolved sales
+     * @param numWorkers the number of threads for disk/remote lookups
+     * @param queueSize the maximum number of sales waiting for a disk/remote lookup, once ready
+     * @param pendingSize the maximum number of sales waiting for a failed lookup to be retried
+     */
+    public SalePipeline(OpenFoodFacts off, ISaleResolved callback, int numWorkers, int queueSize, int pendingSize) {
+        this.off = off;
+        this.callback = callback;
+        this.numWorkers = numWorkers;
+        this.queueSize = queueSize;
+        this.pendingQueue = new ArrayBlockingQueue<>(pendingSize);
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pending");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reportExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "report");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the worker threads, they wait with the lookups until {@link #setReady()}.
+     */
+    public synchronized void start() {
+        LOG.info("Starting sale pipeline with {} workers", numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            Thread thread = new Thread(this::runWorker, "lookup-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+        retryExecutor.scheduleWithFixedDelay(this::retryPending, PENDING_RETRY_MS, PENDING_RETRY_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Indicates that the lookup layer is ready, so queued sales can be looked up.
+     */
+    public void setReady() {
+        LOG.info("Sale pipeline ready, {} sales queued", lookupQueue.size());
+        ready.countDown();
+    }
+
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Stops the worker threads, then the reporter thread after it reported the sales resolved so far.
+     */
+    public void stop() {
+        LOG.info("Stopping sale pipeline, {} queued, {} shed, {} pending, {} lost", lookupQueue.size(),
+                shedCount.get(), pendingQueue.size(), lostCount.get());
+        retryExecutor.shutdownNow();
+        List<Thread> threads;
+        synchronized (this) {
+            threads = new ArrayList<>(workers);
+            workers.clear();
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        reportExecutor.shutdown();
+        try {
+            reportExecutor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Submits a sale of a single item, never blocks on I/O.
+     *
+     * @param source the source of the sale
+     * @param barCode the bar code of the sold item
+     */
+    public void submit(String source, String barCode) {
+        submit(source, Collections.singletonList(new SaleItem(barCode, 1)));
+    }
+
+    /**
+     * Submits a sale, never blocks on I/O.
+     *
+     * @param source the source of the sale
+     * @param items the sold items
+     */
+    public void submit(String source, List<SaleItem> items) {
+        Sale sale = new Sale(sequence.getAndIncrement(), SaleTrace.current(), source, items);
+
+        // fast lane: all products are in memory
+        if (isReady()) {
+            for (String barCode : sale.getMissing()) {
+                ProductInfo product = off.getCachedProduct(barCode);
+                if (product != null) {
+                    sale.products.put(barCode, product);
+                }
+            }
+            if (sale.getMissing().isEmpty()) {
+                complete(sale, true);
+                return;
+            }
+        }
+
+        // slow lane: queue it for a worker, shed it if there are already too many waiting for the lookups served
+        if (isReady() && (lookupQueue.size() >= queueSize)) {
+            shedCount.incrementAndGet();
+            LOG.warn("Lookup queue full, dropping sale of {}", items);
+            complete(sale, false);
+        } else {
+            lookupQueue.add(sale);
+        }
+    }
+
+    private void runWorker() {
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Sale> batch = new ArrayList<>();
+            try {
+                batch.add(lookupQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            lookupQueue.drainTo(batch, MAX_BATCH - 1);
+            if ((batch.size() == 1) && (batch.get(0).getMissing().size() == 1)) {
+                lookupSingle(batch.get(0));
+            } else {
+                lookupBatch(batch);
+            }
+        }
+    }
+
+    private void lookupSingle(Sale sale) {
+        String barCode = sale.getMissing().get(0);
+        long previous = SaleTrace.set(sale.traceId);
+        try {
+            sale.products.put(barCode, off.lookupProduct(barCode));
+        } catch (IOException e) {
+            LOG.warn("Caught IOException: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            LOG.warn("Caught exception during lookup of {}", barCode, e);
+        } finally {
+            SaleTrace.set(previous);
+        }
+        boolean resolved = sale.getMissing().isEmpty();
+        if (!resolved) {
+            defer(sale);
+        }
+        complete(sale, resolved);
+    }
+
+    private void lookupBatch(List<Sale> batch) {
+        Map<String, ProductInfo> products = lookupAll(batch);
+        for (Sale sale : batch) {
+            boolean resolved = sale.resolve(products);
+            if (!resolved) {
+                defer(sale);
+            }
+            complete(sale, resolved);
+        }
+    }
+
+    /**
+     * Looks up the missing products of several sales together, with at most one remote call.
+     */
+    private Map<String, ProductInfo> lookupAll(List<Sale> sales) {
+        Set<String> barCodes = new LinkedHashSet<>();
+        for (Sale sale : sales) {
+            barCodes.addAll(sale.getMissing());
+        }
+        // a batch is traced as its first sale, its events list the bar codes of the other sales
+        long previous = SaleTrace.set(sales.get(0).traceId);
+        try {
+            return off.lookupProducts(barCodes);
+        } catch (RuntimeException e) {
+            LOG.warn("Caught exception during lookup of {}", barCodes, e);
+            return Collections.emptyMap();
+        } finally {
+            SaleTrace.set(previous);
+        }
+    }
+
+    /**
+     * Keeps a sale with a failed lookup, to retry the lookup later.
+     */
+    private void defer(Sale sale) {
+        if (pendingQueue.offer(sale)) {
+            LOG.info("Lookup of {} failed, will retry later", sale.getMissing());
+        } else {
+            lostCount.incrementAndGet();
+            LOG.warn("Too many pending sales, dropping sale of {}", sale.items);
+        }
+    }
+
+    /**
+     * Retries the lookups of the pending sales, reports the sales that are resolved now.
+     */
+    void retryPending() {
+        if (!isReady()) {
+            return;
+        }
+        List<Sale> sales = new ArrayList<>();
+        pendingQueue.drainTo(sales);
+        for (int i = 0; i < sales.size(); i += MAX_BATCH) {
+            List<Sale> batch = sales.subList(i, Math.min(sales.size(), i + MAX_BATCH));
+            Map<String, ProductInfo> products = lookupAll(batch);
+            for (Sale sale : batch) {
+                if (sale.resolve(products)) {
+                    recreditCount.incrementAndGet();
+                    LOG.info("Lookup of {} succeeded on retry, counting its sale", sale.items);
+                    reportLater(sale);
+                } else if ((++sale.attempts >= PENDING_MAX_ATTEMPTS) || !pendingQueue.offer(sale)) {
+                    lostCount.incrementAndGet();
+                    LOG.warn("Giving up on sale of {}", sale.items);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a sale as done and hands all completed sales that are next in line to the reporter thread.
+     */
+    private synchronized void complete(Sale sale, boolean resolved) {
+        sale.resolved = resolved;
+        completed.put(sale.id, sale);
+        Sale next;
+        while ((next = completed.remove(nextToReport)) != null) {
+            nextToReport++;
+            if (next.resolved) {
+                reportLater(next);
+            }
+        }
+    }
+
+    /**
+     * Has a sale reported on the reporter thread, after the sales handed to it before.
+     */
+    private void reportLater(Sale sale) {
+        try {
+            reportExecutor.execute(() -> report(sale));
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Sale pipeline stopped, dropping sale of {}", sale.items);
+        }
+    }
+
+    /**
+     * Reports a sale with all its items, with the energy of their products.
+     */
+    private void report(Sale sale) {
+        List<SaleItem> items = new ArrayList<>();
+        for (SaleItem item : sale.items) {
+            ProductInfo product = sale.products.get(item.getBarCode());
+            items.add(item.withEnergy(OpenFoodFacts.getEnergy(item.getBarCode(), product)));
+        }
+        long previous = SaleTrace.set(sale.traceId);
+        try {
+            callback.saleResolved(sale.source, items);
+        } finally {
+            SaleTrace.set(previous);
+        }
+    }
+
+    /**
+     * @return the number of sales waiting for a disk/remote lookup
+     */
+    public int getQueueDepth() {
+        return lookupQueue.size();
+    }
+
+    /**
+     * @return the number of sales resolved but waiting for an earlier sale
+     */
+    public synchronized int getReorderDepth() {
+        return completed.size();
+    }
+
+    /**
+     * @return the number of sales dropped because the lookup queue was full
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /**
+     * @return the number of sales waiting for a failed lookup to be retried
+     */
+    public int getPendingDepth() {
+        return pendingQueue.size();
+    }
+
+    /**
+     * @return the number of sales reported after a retried lookup succeeded
+     */
+    public long getRecreditCount() {
+        return recreditCount.get();
+    }
+
+    /**
+     * @return the number of sales given up after their lookup kept failing
+     */
+    public long getLostCount() {
+        return lostCount.get();
+    }
+
+}
@@ -0,0 +1,159 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import nl.sikken.bertrik.caloriecounter.metrics.SpaceSaving;
+import nl.sikken.bertrik.caloriecounter.metrics.SpaceSaving.Counter;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.OpenFoodFacts;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.ProductInfo;
+
+/**
+ * Tracks the most sold products, by number of sales and by energy, in fixed memory.
+ *
+ * Periodically the top products are kept warm in the product cache, and the top lists are published to MQTT.
+ */
+public final class TopProducts {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopProducts.class);
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    // number of products tracked per listed product, a margin for the approximation of the counts
+    private static final int TRACKED_PER_LISTED = 10;
+
+    private final OpenFoodFacts off;
+    private final MqttPublisher publisher;
+    private final String topic;
+    private final int size;
+    private final long interval;
+    private final SpaceSaving sales;
+    private final SpaceSaving energy;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param off the product info retriever, to keep the top products warm and to get their names
+     * @param publisher the MQTT publisher
+     * @param topic the MQTT topic for the top lists, empty to not publish them
+     * @param size the number of products in each top list
+     * @param interval the time between updates (ms)
+     */
+    public TopProducts(OpenFoodFacts off, MqttPublisher publisher, String topic, int size, long interval) {
+        this.off = off;
+        this.publisher = publisher;
+        this.topic = topic;
+        this.size = size;
+        this.interval = interval;
+        this.sales = new SpaceSaving(size * TRACKED_PER_LISTED);
+        this.energy = new SpaceSaving(size * TRACKED_PER_LISTED);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "top-products");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the periodic updates.
+     */
+    public void start() {
+        LOG.info("Starting top {} products, updated every {} ms", size, interval);
+        executor.scheduleWithFixedDelay(this::update, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic updates.
+     */
+    public void stop() {
+        LOG.info("Stopping top products");
+        executor.shutdownNow();
+    }
+
+    /**
+     * Counts a sale of a product.
+     *
+     * @param barCode the bar code
+     * @param quantity the number of pieces sold
+     */
+    public void sold(String barCode, int quantity) {
+        sales.add(barCode, quantity);
+    }
+
+    /**
+     * Counts the energy of a sold product.
+     *
+     * @param barCode the bar code
+     * @param kiloJoules the energy (kJ)
+     */
+    public void resolved(String barCode, double kiloJoules) {
+        if (kiloJoules > 0) {
+            energy.add(barCode, kiloJoules);
+        }
+    }
+
+    /**
+     * Keeps the top products warm and publishes the top lists.
+     */
+    void update() {
+        List<Counter> topSales = sales.getTop(size);
+        List<Counter> topEnergy = energy.getTop(size);
+
+        Set<String> warm = new LinkedHashSet<>();
+        topSales.forEach(c -> warm.add(c.getItem()));
+        topEnergy.forEach(c -> warm.add(c.getItem()));
+        off.keepWarm(new ArrayList<>(warm));
+
+        if (!topic.isEmpty() && !topSales.isEmpty()) {
+            publisher.publishTopic(topic, buildPayload(topSales, topEnergy));
+        }
+    }
+
+    /**
+     * Builds the published top lists, e.g. {"sales":[{"code":"...","name":"...","count":12}],"energy":[...]}.
+     */
+    String buildPayload(List<Counter> topSales, List<Counter> topEnergy) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            writeList(generator, "sales", "count", topSales);
+            writeList(generator, "energy", "kJ", topEnergy);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            // cannot happen when writing to a string
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    private void writeList(JsonGenerator generator, String name, String countName, List<Counter> counters)
+            throws IOException {
+        generator.writeArrayFieldStart(name);
+        for (Counter counter : counters) {
+            generator.writeStartObject();
+            generator.writeStringField("code", counter.getItem());
+            ProductInfo product = off.getMemoryCache().peek(counter.getItem());
+            if ((product != null) && (product.getName() != null)) {
+                generator.writeStringField("name", product.getName());
+            }
+            generator.writeNumberField(countName, Math.round(counter.getCount()));
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+}
@@ -0,0 +1,34 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Accounting of a resolved sale, of one or more items, in the energy totals.
+ */
+@Name("caloriecounter.Accumulation")
+@Label("Accumulation")
+@Description("Energy of a sale added to the totals")
+@Category({"CalorieCounter", "Sale"})
+@StackTrace(false)
+public final class AccumulationEvent extends Event {
+
+    @Label("Sale Id")
+    public long saleId;
+
+    @Label("Source")
+    public String source;
+
+    @Label("Items")
+    @Description("Bar codes of the sale, with their quantity if more than one")
+    public String barCodes;
+
+    @Label("Energy")
+    @Description("Energy of all items of the sale (kJ)")
+    public double energy;
+
+}
@@ -0,0 +1,32 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Lookup of a product in one tier of the cache: memory, store (on disk) or filter (of products in the data dump).
+ */
+@Name("caloriecounter.CacheLookup")
+@Label("Cache Lookup")
+@Description("Product looked up in memory, in the store on disk or in the known products filter")
+@Category({"CalorieCounter", "Sale"})
+@StackTrace(false)
+public final class CacheLookupEvent extends Event {
+
+    @Label("Sale Id")
+    public long saleId;
+
+    @Label("Bar Code")
+    public String barCode;
+
+    @Label("Tier")
+    public String tier;
+
+    @Label("Hit")
+    public boolean hit;
+
+}
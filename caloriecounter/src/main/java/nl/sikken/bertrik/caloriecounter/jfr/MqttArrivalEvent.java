@@ -0,0 +1,32 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Arrival of an MQTT message with a sale, lasting while the message is handled on the MQTT thread.
+ */
+@Name("caloriecounter.MqttArrival")
+@Label("MQTT Arrival")
+@Description("Sale message received and handled on the MQTT thread")
+@Category({"CalorieCounter", "Sale"})
+@StackTrace(false)
+public final class MqttArrivalEvent extends Event {
+
+    @Label("Sale Id")
+    public long saleId;
+
+    @Label("Topic")
+    public String topic;
+
+    @Label("Message Id")
+    public int messageId;
+
+    @Label("Duplicate")
+    public boolean duplicate;
+
+}
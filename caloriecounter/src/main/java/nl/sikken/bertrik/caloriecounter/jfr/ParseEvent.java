@@ -0,0 +1,26 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Parsing of an OpenFoodFacts response.
+ */
+@Name("caloriecounter.Parse")
+@Label("Parse")
+@Description("OpenFoodFacts response parsed")
+@Category({"CalorieCounter", "Sale"})
+@StackTrace(false)
+public final class ParseEvent extends Event {
+
+    @Label("Sale Id")
+    public long saleId;
+
+    @Label("Products")
+    public int products;
+
+}
@@ -0,0 +1,35 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Publishing of a text to MQTT, which queues it until the minimum time between publishes has passed.
+ */
+@Name("caloriecounter.Publish")
+@Label("Publish")
+@Description("Text queued for publishing to MQTT")
+@Category({"CalorieCounter", "Sale"})
+@StackTrace(false)
+public final class PublishEvent extends Event {
+
+    @Label("Sale Id")
+    public long saleId;
+
+    @Label("Topic")
+    public String topic;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Coalesced")
+    @Description("Whether it replaced a text still waiting to be published")
+    public boolean coalesced;
+
+}
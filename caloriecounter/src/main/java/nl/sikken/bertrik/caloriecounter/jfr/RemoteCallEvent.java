@@ -0,0 +1,38 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Remote call to OpenFoodFacts, for one or more products.
+ */
+@Name("caloriecounter.RemoteCall")
+@Label("Remote Call")
+@Description("Call to the OpenFoodFacts API")
+@Category({"CalorieCounter", "Sale"})
+@StackTrace(false)
+public final class RemoteCallEvent extends Event {
+
+    @Label("Sale Id")
+    public long saleId;
+
+    @Label("Bar Codes")
+    public String barCodes;
+
+    @Label("Status")
+    @Description("HTTP status, 0 if there was no response")
+    public int status;
+
+    @Label("Outcome")
+    public String outcome;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+}
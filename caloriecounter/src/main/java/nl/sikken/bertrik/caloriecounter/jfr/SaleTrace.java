@@ -0,0 +1,47 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Identifies the sale handled by the current thread, to correlate the flight recorder events of one sale.
+ *
+ * A sale gets its id when its message arrives, and the id travels with the sale through the pipeline. Code handling a
+ * sale sets the id on its thread, so the events recorded further down carry it without passing it around.
+ */
+public final class SaleTrace {
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    private static final ThreadLocal<long[]> CURRENT = ThreadLocal.withInitial(() -> new long[1]);
+
+    private SaleTrace() {
+        // static only
+    }
+
+    /**
+     * @return a new sale id
+     */
+    public static long newId() {
+        return NEXT_ID.getAndIncrement();
+    }
+
+    /**
+     * @return the id of the sale handled by the current thread, 0 if none (e.g. a background refresh)
+     */
+    public static long current() {
+        return CURRENT.get()[0];
+    }
+
+    /**
+     * Sets the id of the sale handled by the current thread.
+     *
+     * @param id the sale id, 0 for none
+     * @return the previous id, to restore afterwards
+     */
+    public static long set(long id) {
+        long[] current = CURRENT.get();
+        long previous = current[0];
+        current[0] = id;
+        return previous;
+    }
+
+}
@@ -0,0 +1,29 @@
+package nl.sikken.bertrik.caloriecounter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Validation of the bar code of a sale.
+ */
+@Name("caloriecounter.Validation")
+@Label("Validation")
+@Description("Bar code of a sale decoded and checked")
+@Category({"CalorieCounter", "Sale"})
+@StackTrace(false)
+public final class ValidationEvent extends Event {
+
+    @Label("Sale Id")
+    public long saleId;
+
+    @Label("Bar Code")
+    public String barCode;
+
+    @Label("Valid")
+    public boolean valid;
+
+}
@@ -0,0 +1,85 @@
+package nl.sikken.bertrik.caloriecounter.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, safe for concurrent updates.
+ */
+public final class Histogram {
+
+    // upper bounds of the buckets (seconds), from 100 us to 10 s
+    private static final double[] BOUNDS = { 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1.0, 5.0, 10.0 };
+
+    private final long[] boundsNanos = new long[BOUNDS.length];
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            boundsNanos[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one observation.
+     *
+     * @param nanos the duration (ns)
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while ((i < boundsNanos.length) && (nanos > boundsNanos[i])) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records the time elapsed since a start time.
+     *
+     * @param startNanos the start time, from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the upper bounds of the buckets (seconds), excluding the implicit infinite bucket
+     */
+    public static double[] getBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * @return the cumulative number of observations per bucket, the last one is the total count
+     */
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (LongAdder bucket : buckets) {
+            total += bucket.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return the sum of all observations (seconds)
+     */
+    public double getSum() {
+        return sumNanos.sum() / 1e9;
+    }
+
+}
@@ -0,0 +1,195 @@
+package nl.sikken.bertrik.caloriecounter.metrics;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Collection of named metrics: counters, gauges and latency histograms.
+ *
+ * Metrics are registered once, with a supplier that reads the current value from the module that keeps it, so
+ * modules only keep plain counters and histograms and do not depend on this class.
+ */
+public final class MetricsRegistry {
+
+    private final List<Metric> metrics = new ArrayList<>();
+
+    private enum EType {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+
+        private final String name;
+
+        EType(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A registered metric, either a single value or a family of histograms distinguished by one label.
+     */
+    private static final class Metric {
+        private final String name;
+        private final String help;
+        private final EType type;
+        private final DoubleSupplier value;
+        private final String label;
+        private final Supplier<Map<String, Histogram>> histograms;
+
+        Metric(String name, String help, EType type, DoubleSupplier value, String label,
+                Supplier<Map<String, Histogram>> histograms) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.label = label;
+            this.histograms = histograms;
+        }
+    }
+
+    /**
+     * Registers a counter, a value that only goes up.
+     *
+     * @param name the name, e.g. "caloriecounter_sales_total"
+     * @param help the description
+     * @param value the supplier of the current value
+     */
+    public synchronized void counter(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, EType.COUNTER, value::getAsLong, null, null));
+    }
+
+    /**
+     * Registers a gauge, a value that goes up and down.
+     *
+     * @param name the name
+     * @param help the description
+     * @param value the supplier of the current value
+     */
+    public synchronized void gauge(String name, String help, DoubleSupplier value) {
+        metrics.add(new Metric(name, help, EType.GAUGE, value, null, null));
+    }
+
+    /**
+     * Registers a histogram.
+     *
+     * @param name the name, e.g. "caloriecounter_lookup_seconds"
+     * @param help the description
+     * @param histogram the histogram
+     */
+    public synchronized void histogram(String name, String help, Histogram histogram) {
+        metrics.add(new Metric(name, help, EType.HISTOGRAM, null, null,
+                () -> Collections.singletonMap(null, histogram)));
+    }
+
+    /**
+     * Registers a family of histograms, one per value of a label.
+     *
+     * @param name the name
+     * @param help the description
+     * @param label the label name, e.g. "outcome"
+     * @param histograms the histograms per label value, may grow over time
+     */
+    public synchronized void histogram(String name, String help, String label, Map<String, Histogram> histograms) {
+        metrics.add(new Metric(name, help, EType.HISTOGRAM, null, label, () -> new TreeMap<>(histograms)));
+    }
+
+    /**
+     * Registers the usual JVM metrics: memory, threads, garbage collection and uptime.
+     */
+    public void addJvmMetrics() {
+        gauge("jvm_memory_heap_used_bytes", "Used heap memory",
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        gauge("jvm_memory_heap_max_bytes", "Maximum heap memory",
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+        gauge("jvm_threads_live", "Live threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        counter("jvm_gc_collections_total", "Garbage collections", () -> {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        });
+        gauge("jvm_gc_collection_seconds", "Time spent in garbage collection", () -> {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis / 1000.0;
+        });
+        gauge("process_uptime_seconds", "Time since the JVM started",
+                () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     *
+     * @param out the destination
+     * @throws IOException in case of a problem writing
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Metric metric : getMetrics()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type.name).append('\n');
+            if (metric.type != EType.HISTOGRAM) {
+                out.append(metric.name).append(' ').append(format(metric.value.getAsDouble())).append('\n');
+                continue;
+            }
+            double[] bounds = Histogram.getBounds();
+            for (Map.Entry<String, Histogram> entry : metric.histograms.get().entrySet()) {
+                String labels = (entry.getKey() != null) ? metric.label + "=\"" + entry.getKey() + "\"," : "";
+                long[] counts = entry.getValue().getCumulativeCounts();
+                for (int i = 0; i < counts.length; i++) {
+                    String le = (i < bounds.length) ? format(bounds[i]) : "+Inf";
+                    out.append(metric.name).append("_bucket{").append(labels).append("le=\"").append(le)
+                            .append("\"} ").append(Long.toString(counts[i])).append('\n');
+                }
+                String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+                out.append(metric.name).append("_sum").append(suffix).append(' ')
+                        .append(format(entry.getValue().getSum())).append('\n');
+                out.append(metric.name).append("_count").append(suffix).append(' ')
+                        .append(Long.toString(counts[counts.length - 1])).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Reads all metrics as flat name/value pairs, histograms as their count and sum.
+     *
+     * @return the current values by name
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Metric metric : getMetrics()) {
+            if (metric.type != EType.HISTOGRAM) {
+                values.put(metric.name, metric.value.getAsDouble());
+                continue;
+            }
+            for (Map.Entry<String, Histogram> entry : metric.histograms.get().entrySet()) {
+                String name = (entry.getKey() != null) ? metric.name + "_" + entry.getKey() : metric.name;
+                values.put(name + "_count", entry.getValue().getCount());
+                values.put(name + "_sum", entry.getValue().getSum());
+            }
+        }
+        return values;
+    }
+
+    private synchronized List<Metric> getMetrics() {
+        return new ArrayList<>(metrics);
+    }
+
+    private static String format(double value) {
+        if ((value == Math.rint(value)) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+}
@@ -0,0 +1,172 @@
+package nl.sikken.bertrik.caloriecounter.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes the metrics in Prometheus text format over HTTP (on /metrics), and as attributes of a JMX MBean.
+ */
+public final class MetricsServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String OBJECT_NAME = "nl.sikken.bertrik.caloriecounter:type=Metrics";
+
+    private final MetricsRegistry registry;
+    private final int port;
+
+    private ObjectName objectName;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param registry the metrics
+     * @param port the HTTP port, 0 to disable HTTP
+     */
+    public MetricsServer(MetricsRegistry registry, int port) {
+        this.registry = registry;
+        this.port = port;
+    }
+
+    /**
+     * Starts this module.
+     *
+     * @throws IOException in case of a problem opening the HTTP port
+     */
+    public void start() throws IOException {
+        LOG.info("Starting metrics server");
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.warn("Could not register metrics MBean: {}", e.getMessage());
+        }
+        if (port > 0) {
+            LOG.info("Serving metrics on http://*:{}/metrics", port);
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", this::handle);
+            server.setExecutor(executor);
+            server.start();
+        }
+    }
+
+    /**
+     * Stops this module.
+     */
+    public void stop() {
+        LOG.info("Stopping metrics server");
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.warn("Could not unregister metrics MBean: {}", e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder(4096);
+            registry.writePrometheus(sb);
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read-only MBean with one attribute per metric value.
+     */
+    private final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = registry.snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> snapshot = registry.snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> snapshot = registry.snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsServer.class.getName(), "Calorie counter metrics", attributes, null, null,
+                    null);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package nl.sikken.bertrik.caloriecounter.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate top-N of a stream of weighted items in fixed memory, using the Space-Saving algorithm.
+ *
+ * A fixed number of counters is kept. An item that has a counter gets its weight added. A new item takes over the
+ * counter with the lowest count, and starts from that count (its possible overestimation, or error). Any item whose
+ * true total exceeds the total weight divided by the number of counters is guaranteed to have a counter.
+ */
+public final class SpaceSaving {
+
+    /**
+     * An item with its estimated total.
+     */
+    public static final class Counter {
+        private final String item;
+        private double count;
+        private double error;
+
+        private Counter(String item, double count, double error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getItem() {
+            return item;
+        }
+
+        /**
+         * @return the estimated total, never less than the true total
+         */
+        public double getCount() {
+            return count;
+        }
+
+        /**
+         * @return the maximum overestimation of the total
+         */
+        public double getError() {
+            return error;
+        }
+    }
+
+    private final int capacity;
+
+    // guarded by this
+    private final Map<String, Counter> counters = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of counters
+     */
+    public SpaceSaving(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds an occurrence of an item.
+     *
+     * @param item the item
+     * @param weight the weight of the occurrence, e.g. 1 to count occurrences
+     */
+    public synchronized void add(String item, double weight) {
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            counter.count += weight;
+            return;
+        }
+        if (counters.size() < capacity) {
+            counters.put(item, new Counter(item, weight, 0.0));
+            return;
+        }
+
+        // take over the counter with the lowest count, a linear scan is fine for a few hundred counters
+        Counter min = null;
+        for (Counter c : counters.values()) {
+            if ((min == null) || (c.count < min.count)) {
+                min = c;
+            }
+        }
+        counters.remove(min.item);
+        counters.put(item, new Counter(item, min.count + weight, min.count));
+    }
+
+    /**
+     * @param n the maximum number of items
+     * @return copies of the counters with the highest counts, highest first
+     */
+    public synchronized List<Counter> getTop(int n) {
+        List<Counter> sorted = new ArrayList<>();
+        for (Counter c : counters.values()) {
+            sorted.add(new Counter(c.item, c.count, c.error));
+        }
+        sorted.sort((a, b) -> Double.compare(b.count, a.count));
+        return new ArrayList<>(sorted.subList(0, Math.min(n, sorted.size())));
+    }
+
+}
@@ -0,0 +1,195 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact probabilistic set of strings: answers "certainly not present" or "possibly present".
+ *
+ * Items can also be given by their hash, built from several parts with the hash functions, without allocating.
+ */
+public final class BloomFilter {
+
+	/** Start value of a 64-bit FNV-1a hash. */
+	public static final long HASH_START = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long[] bits;
+	private final long numBits;
+	private final int numHashes;
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numBits = bits.length * 64L;
+		this.numHashes = numHashes;
+	}
+
+	/**
+	 * Creates an empty filter.
+	 *
+	 * @param expectedInsertions the expected number of items to be added
+	 * @param falsePositiveRate the desired probability of a false "possibly present"
+	 * @return the filter
+	 */
+	public static BloomFilter create(long expectedInsertions, double falsePositiveRate) {
+		long n = Math.max(1, expectedInsertions);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int k = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+		return new BloomFilter(new long[(int) ((m + 63) / 64)], k);
+	}
+
+	public void add(String item) {
+		add(hash(item));
+	}
+
+	/**
+	 * Adds an item by its hash, see {@link #mix(long)}.
+	 *
+	 * @param hash the hash of the item
+	 */
+	public void add(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			long index = Integer.toUnsignedLong(h1 + i * h2) % numBits;
+			bits[(int) (index >>> 6)] |= 1L << index;
+		}
+	}
+
+	/**
+	 * @param item the item
+	 * @return false if the item was certainly never added, true if it possibly was
+	 */
+	public boolean mightContain(String item) {
+		return mightContain(hash(item));
+	}
+
+	/**
+	 * @param hash the hash of the item, see {@link #mix(long)}
+	 * @return false if the item was certainly never added, true if it possibly was
+	 */
+	public boolean mightContain(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			long index = Integer.toUnsignedLong(h1 + i * h2) % numBits;
+			if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long hash(String item) {
+		return mix(hash(HASH_START, item));
+	}
+
+	/**
+	 * Continues a 64-bit FNV-1a hash with the characters of a string, so an item made of several parts can be hashed
+	 * without building it. Start with {@link #HASH_START}, and finish with {@link #mix(long)}.
+	 *
+	 * @param h the hash so far
+	 * @param s the string
+	 * @return the hash
+	 */
+	public static long hash(long h, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Continues a 64-bit FNV-1a hash with bytes.
+	 *
+	 * @param h the hash so far
+	 * @param data the bytes
+	 * @return the hash
+	 */
+	public static long hash(long h, byte[] data) {
+		for (byte b : data) {
+			h ^= b & 0xFF;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Continues a 64-bit FNV-1a hash with the 4 bytes of a number.
+	 *
+	 * @param h the hash so far
+	 * @param value the number
+	 * @return the hash
+	 */
+	public static long hash(long h, int value) {
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			h ^= (value >>> shift) & 0xFF;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Finishes a hash with a final mix, so all bits depend on all input.
+	 *
+	 * @param h the FNV-1a hash
+	 * @return the hash to add or look up
+	 */
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Writes this filter to a file.
+	 *
+	 * @param file the file
+	 * @throws IOException in case of a problem writing the file
+	 */
+	public void save(File file) throws IOException {
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			dos.writeInt(numHashes);
+			dos.writeInt(bits.length);
+			for (long word : bits) {
+				dos.writeLong(word);
+			}
+		}
+	}
+
+	/**
+	 * Reads a filter from a file.
+	 *
+	 * @param file the file
+	 * @return the filter
+	 * @throws IOException in case of a problem reading the file
+	 */
+	public static BloomFilter load(File file) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int numHashes = dis.readInt();
+			long[] bits = new long[dis.readInt()];
+			for (int i = 0; i < bits.length; i++) {
+				bits[i] = dis.readLong();
+			}
+			return new BloomFilter(bits, numHashes);
+		}
+	}
+
+	/**
+	 * @return the size of the filter (bytes)
+	 */
+	public long getSize() {
+		return bits.length * 8L;
+	}
+
+}
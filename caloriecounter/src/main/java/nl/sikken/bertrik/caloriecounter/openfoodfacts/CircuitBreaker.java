@@ -0,0 +1,107 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.IOException;
+
+/**
+ * Circuit breaker for calls to a remote service.
+ *
+ * After a number of consecutive failures the circuit opens, and calls fail fast without reaching the service. After
+ * some time a single trial call is let through (half open): if it succeeds the circuit closes again, otherwise it
+ * opens again.
+ */
+public final class CircuitBreaker {
+
+	/**
+	 * The state of the circuit.
+	 */
+	public enum EState {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Thrown when a call is not made because the circuit is open.
+	 */
+	static final class CircuitOpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		CircuitOpenException(String message) {
+			super(message);
+		}
+	}
+
+	private final int threshold;
+	private final long openTime;
+
+	// guarded by this
+	private EState state = EState.CLOSED;
+	private int failures;
+	private long openedAt;
+	private long openCount;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param threshold the number of consecutive failures after which the circuit opens
+	 * @param openTime how long the circuit stays open before a trial call is let through (ms)
+	 */
+	public CircuitBreaker(int threshold, long openTime) {
+		this.threshold = threshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Checks whether a call may be made.
+	 *
+	 * @throws CircuitOpenException if the circuit is open
+	 */
+	synchronized void acquire() throws CircuitOpenException {
+		switch (state) {
+		case CLOSED:
+			return;
+		case OPEN:
+		case HALF_OPEN:
+		default:
+			// let one call through as a trial, or another one if the previous trial never reported back
+			long now = System.currentTimeMillis();
+			if ((now - openedAt) >= openTime) {
+				state = EState.HALF_OPEN;
+				openedAt = now;
+				return;
+			}
+			break;
+		}
+		throw new CircuitOpenException("OpenFoodFacts is unavailable, circuit is " + state);
+	}
+
+	/**
+	 * Records a successful call.
+	 */
+	synchronized void onSuccess() {
+		failures = 0;
+		state = EState.CLOSED;
+	}
+
+	/**
+	 * Records a failed call.
+	 */
+	synchronized void onFailure() {
+		failures++;
+		if ((state == EState.HALF_OPEN) || ((state == EState.CLOSED) && (failures >= threshold))) {
+			state = EState.OPEN;
+			openedAt = System.currentTimeMillis();
+			openCount++;
+		}
+	}
+
+	public synchronized EState getState() {
+		return state;
+	}
+
+	/**
+	 * @return the number of times the circuit opened
+	 */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+}
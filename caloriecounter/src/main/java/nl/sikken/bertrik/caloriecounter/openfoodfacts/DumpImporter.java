@@ -0,0 +1,241 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming importer for an OpenFoodFacts data dump, either JSONL (one product object per line) or the
+ * tab-separated CSV export, optionally gzipped.
+ *
+ * Records are processed one at a time, so memory use does not depend on the size of the dump. Every bar code is
+ * added to the membership filter, only products with a known energy are written to the store, and only as long as
+ * the store stays within the budget for imported products, so importing never makes the store compact. Bar codes are
+ * normalised like scanned bar codes, records without a valid bar code are skipped.
+ *
+ * Imported products are stored with the oldest possible time stamp, so when the store evicts, they go before any
+ * product that was actually looked up.
+ */
+public final class DumpImporter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DumpImporter.class);
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long PROGRESS_INTERVAL = 100000;
+
+	/** store time stamp of an imported product, older than that of any product looked up */
+	public static final long IMPORTED = 0;
+
+	private final ProductStore store;
+	private final BloomFilter filter;
+	private final long budget;
+
+	private long recordCount;
+	private long storedCount;
+	private long skippedCount;
+	private long startTime;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param store the (opened) product store to fill
+	 * @param filter the membership filter to fill with all bar codes in the dump
+	 * @param budget the size up to which the store is filled (bytes), well below its maximum size
+	 */
+	public DumpImporter(ProductStore store, BloomFilter filter, long budget) {
+		this.store = store;
+		this.filter = filter;
+		this.budget = budget;
+	}
+
+	/**
+	 * Imports a dump file, the format and compression are determined from its contents.
+	 *
+	 * @param file the dump file
+	 * @return the number of records read
+	 * @throws IOException in case of a problem reading the dump or writing the store
+	 */
+	public long importFile(File file) throws IOException {
+		LOG.info("Importing OpenFoodFacts dump {}", file);
+		recordCount = 0;
+		storedCount = 0;
+		skippedCount = 0;
+		startTime = System.currentTimeMillis();
+		long retrieved = file.lastModified();
+		try (InputStream is = open(file)) {
+			if (firstSignificantByte(is) == '{') {
+				importJson(is, retrieved);
+			} else {
+				importCsv(is, retrieved);
+			}
+		} finally {
+			store.flush();
+		}
+		long millis = Math.max(1, System.currentTimeMillis() - startTime);
+		LOG.info("Imported {} records ({} stored) in {} s, {} records/s", recordCount, storedCount, millis / 1000,
+				recordCount * 1000 / millis);
+		if (skippedCount > 0) {
+			LOG.info("Did not store {} products, the store reached its budget of {} bytes", skippedCount, budget);
+		}
+		return recordCount;
+	}
+
+	/**
+	 * Opens the file, transparently decompressing it when it starts with the gzip magic number.
+	 */
+	private static InputStream open(File file) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		is.mark(2);
+		int magic = is.read() | (is.read() << 8);
+		is.reset();
+		if (magic == GZIPInputStream.GZIP_MAGIC) {
+			is = new BufferedInputStream(new GZIPInputStream(is, BUFFER_SIZE), BUFFER_SIZE);
+		}
+		return is;
+	}
+
+	private static int firstSignificantByte(InputStream is) throws IOException {
+		int b;
+		do {
+			is.mark(1);
+			b = is.read();
+		} while (Character.isWhitespace(b));
+		is.reset();
+		return b;
+	}
+
+	/**
+	 * Imports a sequence of product objects, each with a "code" field next to the usual product fields.
+	 */
+	private void importJson(InputStream is, long retrieved) throws IOException {
+		try (JsonParser parser = FACTORY.createParser(is)) {
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				String code = null;
+				String name = null;
+				double energy = Double.NaN;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					JsonToken token = parser.nextToken();
+					if ("code".equals(field) && token.isScalarValue()) {
+						code = parser.getValueAsString();
+					} else if ("product_name".equals(field) && token.isScalarValue()) {
+						name = parser.getValueAsString();
+					} else if ("nutriments".equals(field) && (token == JsonToken.START_OBJECT)) {
+						energy = ProductParser.parseNutriments(parser);
+					} else {
+						parser.skipChildren();
+					}
+				}
+				addRecord(code, name, energy, retrieved);
+			}
+		}
+	}
+
+	/**
+	 * Imports the tab-separated export, columns are located by name from the header line.
+	 *
+	 * The CSV export has no energy per serving, so it is calculated from the energy per 100 g and the serving size.
+	 */
+	private void importCsv(InputStream is, long retrieved) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), BUFFER_SIZE);
+		String header = reader.readLine();
+		if (header == null) {
+			return;
+		}
+		String[] columns = header.split("\t");
+		int codeColumn = indexOf(columns, "code");
+		int nameColumn = indexOf(columns, "product_name");
+		int energyColumn = indexOf(columns, "energy-kj_100g");
+		int servingColumn = indexOf(columns, "serving_quantity");
+		if (codeColumn < 0) {
+			throw new IOException("No 'code' column in CSV header");
+		}
+
+		String[] fields = new String[columns.length];
+		String line;
+		while ((line = reader.readLine()) != null) {
+			split(line, fields);
+			String name = (nameColumn >= 0) ? fields[nameColumn] : null;
+			double energy = parseDouble(fields, energyColumn) * parseDouble(fields, servingColumn) / 100.0;
+			addRecord(fields[codeColumn], name, energy, retrieved);
+		}
+	}
+
+	private void addRecord(String code, String name, double energy, long retrieved) throws IOException {
+		recordCount++;
+		long gtin = (code != null) ? Gtin.parse(code) : Gtin.INVALID;
+		if (gtin != Gtin.INVALID) {
+			// same key as used for lookups
+			String barCode = Gtin.format(gtin);
+			filter.add(barCode);
+			if (!Double.isNaN(energy)) {
+				if (store.getTotalBytes() < budget) {
+					String productName = ((name != null) && !name.isEmpty()) ? name : null;
+					store.putBulk(barCode, new ProductInfo(true, productName, energy, retrieved).encode(), IMPORTED);
+					storedCount++;
+				} else {
+					skippedCount++;
+				}
+			}
+		}
+		if ((recordCount % PROGRESS_INTERVAL) == 0) {
+			long millis = Math.max(1, System.currentTimeMillis() - startTime);
+			LOG.info("Imported {} records ({} stored), {} records/s", recordCount, storedCount,
+					recordCount * 1000 / millis);
+		}
+	}
+
+	private static int indexOf(String[] columns, String name) {
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Splits a tab-separated line into the given array, missing fields are set to null.
+	 */
+	private static void split(String line, String[] fields) {
+		int start = 0;
+		for (int i = 0; i < fields.length; i++) {
+			if (start > line.length()) {
+				fields[i] = null;
+				continue;
+			}
+			int end = line.indexOf('\t', start);
+			if (end < 0) {
+				end = line.length();
+			}
+			fields[i] = line.substring(start, end);
+			start = end + 1;
+		}
+	}
+
+	private static double parseDouble(String[] fields, int column) {
+		if ((column < 0) || (fields[column] == null) || fields[column].isEmpty()) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(fields[column]);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+}
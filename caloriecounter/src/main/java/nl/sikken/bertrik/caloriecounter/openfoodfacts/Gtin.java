@@ -0,0 +1,121 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+/**
+ * Decoding and formatting of GS1 trade item numbers (EAN-8, UPC-A, EAN-13, GTIN-14).
+ *
+ * A GTIN is represented by its numeric value, which equals the GTIN-14 with leading zeros dropped. So "737628064502"
+ * (UPC-A) and "0737628064502" (EAN-13) decode to the same value.
+ *
+ * The product cache, store, filter and MQTT topics keep the formatted value as key rather than the number: the store
+ * and the filter on disk, and the topics seen by others, already use these strings. Decoding a sale formats it once,
+ * which takes the place of turning the payload into a string, and neither decoding nor parsing allocates anything
+ * else, so a sale costs no extra allocation for the normalisation.
+ */
+public final class Gtin {
+
+	/**
+	 * Value returned for input that is not a valid GTIN.
+	 */
+	public static final long INVALID = -1;
+
+	private Gtin() {
+		// utility class
+	}
+
+	/**
+	 * Decodes a GTIN from ASCII digits, e.g. a raw MQTT payload, without intermediate objects.
+	 * Surrounding white space is ignored.
+	 *
+	 * @param data the ASCII data
+	 * @return the GTIN value, or {@link #INVALID} if not 8, 12, 13 or 14 digits or if the check digit is wrong
+	 */
+	public static long decode(byte[] data) {
+		int start = 0;
+		int end = data.length;
+		while ((start < end) && (data[start] <= ' ')) {
+			start++;
+		}
+		while ((end > start) && (data[end - 1] <= ' ')) {
+			end--;
+		}
+		if (!isValidLength(end - start)) {
+			return INVALID;
+		}
+
+		// the check digit makes the weighted sum a multiple of 10, weights are 3 and 1 alternating from the right
+		long value = 0;
+		int sum = 0;
+		for (int i = start; i < end; i++) {
+			int digit = data[i] - '0';
+			if ((digit < 0) || (digit > 9)) {
+				return INVALID;
+			}
+			value = (value * 10) + digit;
+			sum += (((end - 1 - i) % 2) == 1) ? (3 * digit) : digit;
+		}
+		return ((sum % 10) == 0) ? value : INVALID;
+	}
+
+	/**
+	 * Decodes a GTIN from a string, the same way as from ASCII data, without intermediate objects.
+	 *
+	 * @param text the text
+	 * @return the GTIN value, or {@link #INVALID} if not a valid GTIN
+	 */
+	public static long parse(String text) {
+		int start = 0;
+		int end = text.length();
+		while ((start < end) && (text.charAt(start) <= ' ')) {
+			start++;
+		}
+		while ((end > start) && (text.charAt(end - 1) <= ' ')) {
+			end--;
+		}
+		if (!isValidLength(end - start)) {
+			return INVALID;
+		}
+
+		long value = 0;
+		int sum = 0;
+		for (int i = start; i < end; i++) {
+			int digit = text.charAt(i) - '0';
+			if ((digit < 0) || (digit > 9)) {
+				return INVALID;
+			}
+			value = (value * 10) + digit;
+			sum += (((end - 1 - i) % 2) == 1) ? (3 * digit) : digit;
+		}
+		return ((sum % 10) == 0) ? value : INVALID;
+	}
+
+	private static boolean isValidLength(int length) {
+		return (length == 8) || (length == 12) || (length == 13) || (length == 14);
+	}
+
+	/**
+	 * Formats a GTIN in its shortest standard form: 8, 12, 13 or 14 digits.
+	 *
+	 * @param gtin the GTIN value
+	 * @return the digits
+	 */
+	public static String format(long gtin) {
+		int length;
+		if (gtin < 100000000L) {
+			length = 8;
+		} else if (gtin < 1000000000000L) {
+			length = 12;
+		} else if (gtin < 10000000000000L) {
+			length = 13;
+		} else {
+			length = 14;
+		}
+		char[] digits = new char[length];
+		long value = gtin;
+		for (int i = length - 1; i >= 0; i--) {
+			digits[i] = (char) ('0' + (value % 10));
+			value /= 10;
+		}
+		return new String(digits);
+	}
+
+}
@@ -1,20 +1,47 @@
 package nl.sikken.bertrik.caloriecounter.openfoodfacts;
 
-import com.fasterxml.jackson.databind.JsonNode;
-
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.Path;
+import retrofit2.http.Query;
+import retrofit2.http.Streaming;
 
 /**
  * REST API towards world.openfoodfacts.org
  * 
- * Example URL:
- * https://world.openfoodfacts.org/api/v0/product/737628064502.json
+ * Example URLs:
+ * https://world.openfoodfacts.org/api/v2/product/737628064502?fields=product_name,nutriments
+ * https://world.openfoodfacts.org/api/v2/search?fields=code,product_name,nutriments&code=737628064502,4029764001401
  */
 public interface IOpenFoodFactsApi {
 
-	@GET("/api/v0/product/{barcode}.json")
-	Call<JsonNode> getProductInfo(@Path("barcode") String barCode);
+	/**
+	 * The product fields we use, all other fields are left out of the response.
+	 */
+	String FIELDS = "product_name,nutriments";
+
+	/**
+	 * The raw response body is returned unbuffered, so it can be parsed as a stream. The caller must close it.
+	 * 
+	 * The optional cache validators make this a conditional request, answered with 304 if nothing changed. An
+	 * unknown product is answered with 404.
+	 */
+	@GET("/api/v2/product/{barcode}?fields=" + FIELDS)
+	@Streaming
+	Call<ResponseBody> getProductInfo(@Path("barcode") String barCode, @Header("If-None-Match") String etag,
+			@Header("If-Modified-Since") String lastModified);
+
+	/**
+	 * Retrieves several products in one request, unknown products are absent from the response. The raw response
+	 * body is returned unbuffered, the caller must close it.
+	 * 
+	 * @param barCodes the bar codes, separated by commas
+	 * @param pageSize the maximum number of products in the response
+	 */
+	@GET("/api/v2/search?fields=code," + FIELDS)
+	@Streaming
+	Call<ResponseBody> searchProducts(@Query("code") String barCodes, @Query("page_size") int pageSize);
 
 }
@@ -0,0 +1,16 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+/**
+ * Interface of the callback for products retrieved from OpenFoodFacts.
+ */
+public interface IProductRetrieved {
+
+	/**
+	 * Indicates that a product was retrieved remotely (or confirmed to be unchanged) and stored.
+	 *
+	 * @param barCode the bar code
+	 * @param product the product
+	 */
+	void productRetrieved(String barCode, ProductInfo product);
+
+}
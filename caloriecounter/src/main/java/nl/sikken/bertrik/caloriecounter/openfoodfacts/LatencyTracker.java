@@ -0,0 +1,57 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies of a remote service, to derive percentiles from.
+ */
+public final class LatencyTracker {
+
+	private final long[] samples;
+
+	// guarded by this
+	private int count;
+	private int next;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size the number of most recent samples to keep
+	 */
+	public LatencyTracker(int size) {
+		this.samples = new long[size];
+	}
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param millis the latency (ms)
+	 */
+	public synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+	}
+
+	/**
+	 * @return the number of samples kept
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param fraction the percentile as fraction, e.g. 0.95
+	 * @return the latency below which the given fraction of the samples lie (ms), -1 if there are no samples
+	 */
+	public synchronized long getPercentile(double fraction) {
+		if (count == 0) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(fraction * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+}
@@ -1,16 +1,47 @@
 package nl.sikken.bertrik.caloriecounter.openfoodfacts;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
 
+import nl.sikken.bertrik.caloriecounter.jfr.CacheLookupEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.ParseEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.RemoteCallEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.SaleTrace;
+import nl.sikken.bertrik.caloriecounter.metrics.Histogram;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.CircuitBreaker.CircuitOpenException;
+
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
 import retrofit2.Retrofit;
 import retrofit2.converter.jackson.JacksonConverterFactory;
 import retrofit2.converter.scalars.ScalarsConverterFactory;
@@ -22,22 +53,115 @@ public final class OpenFoodFacts {
 
 	private static final Logger LOG = LoggerFactory.getLogger(OpenFoodFacts.class);
 
-	private final ObjectMapper mapper = new ObjectMapper();
+	/** names of the remote endpoints, each with its own latencies and timeout */
+	public static final String PRODUCT_ENDPOINT = "product";
+	public static final String SEARCH_ENDPOINT = "search";
+
+	// maximum time of a remote call, unless configured otherwise (ms)
+	private static final long DEFAULT_TIMEOUT = 3000;
+
+	// number of most asked-for products that are refreshed before they go stale, unless told which to keep warm
+	private static final int PROACTIVE_REFRESH_COUNT = 20;
+
+	// HTTP connections (and their TLS sessions) shared by all REST clients, kept alive between lookups
+	private static final OkHttpClient HTTP_CLIENT = new OkHttpClient.Builder()
+			.connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+			.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+			.build();
+
+	// sizing of the filter of bar codes known from a data dump, about 5 MB
+	private static final long DUMP_EXPECTED_PRODUCTS = 4000000;
+	private static final double DUMP_FALSE_POSITIVE_RATE = 0.01;
+
+	// a dump may fill the product store up to this part of its size, the rest is for products looked up
+	private static final int DUMP_STORE_DIVISOR = 2;
+
+	// minimum time between remote calls for bar codes not in the dump, which may be newer than the dump (ms)
+	private static final long FILTER_MISS_INTERVAL = 1000;
+
+	// how far a shared product may be retrieved in the future, to allow for clock differences between instances (ms)
+	private static final long MAX_CLOCK_SKEW = TimeUnit.MINUTES.toMillis(5);
 
 	private final IOpenFoodFactsApi restClient;
+	private final RemoteCaller remote;
 	private final File cacheDir;
 	private final File rejectDir;
+	private final ProductCache memoryCache;
+	private final ProductStore store;
+	private final File filterFile;
+	private final long ttl;
+	private final long negativeTtl;
+	private final ScheduledExecutorService refreshExecutor;
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+	// lookups in progress, so concurrent lookups of the same product are served by one disk/remote access
+	private final ConcurrentMap<String, CompletableFuture<ProductInfo>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong lookupCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong negativeHitCount = new AtomicLong();
+	private final AtomicLong refreshCount = new AtomicLong();
+	private final AtomicLong notModifiedCount = new AtomicLong();
+	private final AtomicLong filterRejectCount = new AtomicLong();
+	private final AtomicLong nextFilterMissCall = new AtomicLong();
+	private final AtomicLong storeHitCount = new AtomicLong();
+	private final AtomicLong sharedCount = new AtomicLong();
+	private final AtomicLong sharedRejectCount = new AtomicLong();
+	private final Histogram lookupLatency = new Histogram();
+	private final ConcurrentMap<String, Histogram> remoteLatency = new ConcurrentHashMap<>();
+
+	// bar codes known from a data dump, null if no dump was imported
+	private volatile BloomFilter knownProducts;
+
+	// products to keep in memory and fresh, empty to use the most asked-for products
+	private volatile List<String> warmProducts = Collections.emptyList();
+
+	// told about each product retrieved remotely, e.g. to share it with other instances
+	private volatile IProductRetrieved retrievedListener = (barCode, product) -> {
+	};
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param restClient the REST client
+	 * @param storageRoot the file storage location (e.g. for cache)
+	 * @param cacheSize the maximum number of products kept in memory
+	 * @param storeSize the maximum size of the product store on disk (bytes)
+	 * @param ttl how long a product is considered fresh, after that it is refreshed in the background (ms)
+	 * @param negativeTtl how long to trust a not-found or no-energy result before asking again (ms)
+	 */
+	public OpenFoodFacts(IOpenFoodFactsApi restClient, File storageRoot, int cacheSize, long storeSize, long ttl,
+			long negativeTtl) {
+		this(restClient, new RemoteCaller(DEFAULT_TIMEOUT, 2, false, 5, 30000), storageRoot, cacheSize, storeSize,
+				ttl, negativeTtl);
+	}
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param restClient the REST client
+	 * @param remote makes the calls on the REST client
 	 * @param storageRoot the file storage location (e.g. for cache)
+	 * @param cacheSize the maximum number of products kept in memory
+	 * @param storeSize the maximum size of the product store on disk (bytes)
+	 * @param ttl how long a product is considered fresh, after that it is refreshed in the background (ms)
+	 * @param negativeTtl how long to trust a not-found or no-energy result before asking again (ms)
 	 */
-	public OpenFoodFacts(IOpenFoodFactsApi restClient, File storageRoot) {
+	public OpenFoodFacts(IOpenFoodFactsApi restClient, RemoteCaller remote, File storageRoot, int cacheSize,
+			long storeSize, long ttl, long negativeTtl) {
 		this.restClient = restClient;
+		this.remote = remote;
 		this.cacheDir = new File(storageRoot, "/cache");
 		this.rejectDir = new File(storageRoot, "/reject");
+		this.memoryCache = new ProductCache(cacheSize);
+		this.store = new ProductStore(new File(storageRoot, "/store"), storeSize);
+		this.filterFile = new File(storageRoot, "known-products.bloom");
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	/**
@@ -48,10 +172,13 @@ public final class OpenFoodFacts {
 	 * @param timeout
 	 *            the timeout (ms)
 	 * @return a new REST client.
+	 * 
+	 * All clients share one connection pool, using HTTP/2 where the server supports it. Responses are transparently
+	 * requested and decoded as gzip by OkHttp.
 	 */
 	public static IOpenFoodFactsApi newRestClient(String url, int timeout) {
 		LOG.info("Creating new REST client for URL '{}' with timeout {}", url, timeout);
-		OkHttpClient client = new OkHttpClient().newBuilder()
+		OkHttpClient client = HTTP_CLIENT.newBuilder()
 				.connectTimeout(timeout, TimeUnit.MILLISECONDS)
 				.writeTimeout(timeout, TimeUnit.MILLISECONDS)
 				.readTimeout(timeout, TimeUnit.MILLISECONDS)
@@ -73,80 +200,768 @@ public final class OpenFoodFacts {
 	 * @throws IOException in case of a problem accessing the data
 	 */
 	public double processBarCode(String barCode) throws IOException {
-		// get product info
-		JsonNode json = getProductInfo(barCode);
-		
+		// first look in memory, then resolve from disk or remote
+		ProductInfo product = getCachedProduct(barCode);
+		if (product == null) {
+			product = lookupProduct(barCode);
+		}
+		return getEnergy(barCode, product);
+	}
+
+	/**
+	 * Looks up a product in memory only, this never blocks on I/O.
+	 * 
+	 * A stale product is still returned, while it is refreshed in the background.
+	 * 
+	 * @param barCode the bar code
+	 * @return the product, null if not in memory (or expired)
+	 */
+	public ProductInfo getCachedProduct(String barCode) {
+		CacheLookupEvent event = new CacheLookupEvent();
+		event.begin();
+		ProductInfo product = memoryCache.get(barCode);
+		if ((product != null) && isExpired(product)) {
+			product = null;
+		}
+		commitLookup(event, barCode, "memory", product != null);
+		if (product == null) {
+			return null;
+		}
+		if (isStale(product)) {
+			scheduleRefresh(barCode, product);
+		}
+		return product;
+	}
+
+	/**
+	 * Looks up a product from disk or remote and keeps it in memory, this may block on a remote call.
+	 * 
+	 * Concurrent lookups of the same product wait for the one that is already in progress.
+	 * 
+	 * @param barCode the bar code
+	 * @return the product
+	 * @throws IOException in case of a problem accessing the data
+	 */
+	public ProductInfo lookupProduct(String barCode) throws IOException {
+		CompletableFuture<ProductInfo> future = new CompletableFuture<>();
+		CompletableFuture<ProductInfo> existing = inFlight.putIfAbsent(barCode, future);
+		if (existing != null) {
+			coalescedCount.incrementAndGet();
+			LOG.info("Waiting for lookup of {} already in progress", barCode);
+			return awaitLookup(barCode, existing);
+		}
+
+		lookupCount.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			ProductInfo product = resolveProduct(barCode);
+			memoryCache.put(barCode, product);
+			future.complete(product);
+			return product;
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(barCode, future);
+			lookupLatency.recordSince(start);
+		}
+	}
+
+	/**
+	 * Looks up several products from disk or remote and keeps them in memory, this may block on a remote call.
+	 * 
+	 * All products that are not on disk are retrieved with a single remote call.
+	 * 
+	 * @param barCodes the bar codes
+	 * @return the products by bar code, without the ones that could not be looked up
+	 */
+	public Map<String, ProductInfo> lookupProducts(Collection<String> barCodes) {
+		Map<String, CompletableFuture<ProductInfo>> claimed = new LinkedHashMap<>();
+		Map<String, CompletableFuture<ProductInfo>> waiting = new LinkedHashMap<>();
+		for (String barCode : new LinkedHashSet<>(barCodes)) {
+			CompletableFuture<ProductInfo> future = new CompletableFuture<>();
+			CompletableFuture<ProductInfo> existing = inFlight.putIfAbsent(barCode, future);
+			if (existing != null) {
+				coalescedCount.incrementAndGet();
+				waiting.put(barCode, existing);
+			} else {
+				lookupCount.incrementAndGet();
+				claimed.put(barCode, future);
+			}
+		}
+
+		Map<String, ProductInfo> products = new HashMap<>();
+		long start = System.nanoTime();
+		try {
+			List<String> remote = new ArrayList<>();
+			for (String barCode : claimed.keySet()) {
+				ProductInfo product = resolveLocally(barCode, loadProduct(barCode));
+				if (product != null) {
+					products.put(barCode, product);
+				} else {
+					remote.add(barCode);
+				}
+			}
+			if (!remote.isEmpty()) {
+				products.putAll(retrieveProducts(remote));
+			}
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Lookup of {} products failed: {}", claimed.size(), e.getMessage());
+		} finally {
+			for (Map.Entry<String, CompletableFuture<ProductInfo>> entry : claimed.entrySet()) {
+				String barCode = entry.getKey();
+				ProductInfo product = products.get(barCode);
+				if (product != null) {
+					memoryCache.put(barCode, product);
+					entry.getValue().complete(product);
+				} else {
+					entry.getValue().completeExceptionally(new IOException("Lookup of " + barCode + " failed"));
+				}
+				inFlight.remove(barCode, entry.getValue());
+			}
+			// one lookup, however many products it was for
+			lookupLatency.recordSince(start);
+		}
+
+		for (Map.Entry<String, CompletableFuture<ProductInfo>> entry : waiting.entrySet()) {
+			try {
+				products.put(entry.getKey(), awaitLookup(entry.getKey(), entry.getValue()));
+			} catch (IOException e) {
+				LOG.warn("Lookup of {} failed: {}", entry.getKey(), e.getMessage());
+			}
+		}
+		return products;
+	}
+
+	private ProductInfo awaitLookup(String barCode, CompletableFuture<ProductInfo> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for lookup of " + barCode);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw new IOException(cause.getMessage(), cause);
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Determines the amount of nutritional energy of a product.
+	 * 
+	 * @param barCode the bar code
+	 * @param product the product
+	 * @return the energy (kJ), 0 if unknown
+	 */
+	public static double getEnergy(String barCode, ProductInfo product) {
 		// show name
-		JsonNode productNameNode = json.at("/product/product_name");
-		if (!productNameNode.isMissingNode()) {
-			LOG.info("Product name of {}: '{}'", barCode, productNameNode.asText());
+		if (product.getName() != null) {
+			LOG.info("Product name of {}: '{}'", barCode, product.getName());
+		}
+
+		if (!product.isFound()) {
+			LOG.warn("Item '{}' is not known at OpenFoodFacts", barCode);
+			return 0.0;
+		}
+		if (!product.hasEnergy()) {
+			LOG.warn("No energy determined for item '{}'", barCode);
+			return 0.0;
+		}
+		return product.getEnergy();
+	}
+
+	/**
+	 * A negative result is only trusted for a limited time, positive results do not expire.
+	 */
+	private boolean isExpired(ProductInfo product) {
+		return product.isNegative() && ((System.currentTimeMillis() - product.getRetrieved()) > negativeTtl);
+	}
+
+	/**
+	 * A stale positive result is still used, but should be refreshed.
+	 */
+	private boolean isStale(ProductInfo product) {
+		return !product.isNegative() && ((System.currentTimeMillis() - product.getRetrieved()) > ttl);
+	}
+
+	/**
+	 * Refreshes a product in the background, unless a refresh of it is already pending.
+	 */
+	private void scheduleRefresh(String barCode, ProductInfo product) {
+		if (refreshing.add(barCode)) {
+			refreshExecutor.execute(() -> refresh(barCode, product));
 		}
-		
-		// calculate energy
+	}
+
+	private void refresh(String barCode, ProductInfo product) {
 		try {
-			return getEnergy(json);
-		} catch (IllegalArgumentException e) {
-			LOG.warn("No energy determined for item '{}': {}", barCode, e.getMessage());
-			// save in reject directory
-			saveReject(json, barCode);
+			LOG.info("Refreshing product info for {}", barCode);
+			refreshCount.incrementAndGet();
+			ProductInfo fresh = retrieveProduct(barCode, product);
+			store.put(barCode, fresh.encode());
+			memoryCache.put(barCode, fresh);
+			retrievedListener.productRetrieved(barCode, fresh);
+		} catch (IOException e) {
+			LOG.warn("Refresh of {} failed: {}", barCode, e.getMessage());
+		} finally {
+			refreshing.remove(barCode);
 		}
+	}
 
-		return 0.0;
+	/**
+	 * Keeps products in memory and fresh, e.g. the most sold ones: they are pinned in the memory cache, loaded into
+	 * memory if they are not there yet, and refreshed before they go stale.
+	 * 
+	 * @param barCodes the bar codes, replacing the ones kept warm before
+	 */
+	public void keepWarm(List<String> barCodes) {
+		warmProducts = new ArrayList<>(barCodes);
+		memoryCache.pin(barCodes);
+		refreshExecutor.execute(() -> {
+			for (String barCode : barCodes) {
+				if (memoryCache.peek(barCode) == null) {
+					try {
+						lookupProduct(barCode);
+					} catch (IOException e) {
+						LOG.warn("Could not load product info for {}: {}", barCode, e.getMessage());
+					}
+				}
+			}
+		});
 	}
-	
-	private JsonNode getProductInfo(String barCode) throws IOException {
-		// first look in the cache
-		String name = barCode + ".json";
-		File file = new File(cacheDir, name);
-		JsonNode json;
-		if (file.exists()) {
-			// use the file
-			LOG.info("Using cached JSON in {}", file.getName());
-			json = mapper.readTree(file);
-		} else {
-			// retrieve it
-			LOG.info("Retrieving JSON for {}", barCode);
-			json = restClient.getProductInfo(barCode).execute().body();
-
-			// cache it
-			LOG.info("Caching JSON in {}", file.getName());
-			mapper.writeValue(file, json);
-		}
-		return json;
+
+	/**
+	 * Sets the listener told about each product retrieved remotely.
+	 * 
+	 * @param listener the listener
+	 */
+	public void setRetrievedListener(IProductRetrieved listener) {
+		this.retrievedListener = listener;
 	}
-	
-	private void saveReject(JsonNode node, String barCode) throws IOException {
-		File file = new File(rejectDir, barCode + ".json");
-		LOG.warn("Saving unusable JSON in {}", file.getName());
-		mapper.writeValue(file, node);
+
+	/**
+	 * Takes a product retrieved by another instance into the memory cache and the store, unless we already have the
+	 * same or a more recent retrieval of it.
+	 * 
+	 * @param barCode the bar code
+	 * @param product the product
+	 * @return whether the product was taken
+	 */
+	public boolean shareProduct(String barCode, ProductInfo product) {
+		if (product.getRetrieved() > (System.currentTimeMillis() + MAX_CLOCK_SKEW)) {
+			LOG.warn("Ignoring shared product info for {} retrieved in the future", barCode);
+			sharedRejectCount.incrementAndGet();
+			return false;
+		}
+		try {
+			ProductInfo known = memoryCache.peek(barCode);
+			if (known == null) {
+				known = loadProduct(barCode);
+			}
+			if ((known != null) && (known.getRetrieved() >= product.getRetrieved())) {
+				sharedRejectCount.incrementAndGet();
+				return false;
+			}
+			LOG.info("Storing shared product info for {}: {}", barCode, product);
+			store.put(barCode, product.encode());
+			memoryCache.put(barCode, product);
+			sharedCount.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			LOG.warn("Could not store shared product info for {}: {}", barCode, e.getMessage());
+			return false;
+		}
 	}
-	
+
 	/**
-	 * Parses the energy per serving from the JSON.
+	 * Refreshes the products kept warm (or else the most asked-for products) in memory before they go stale.
+	 */
+	private void refreshMostUsed() {
+		long now = System.currentTimeMillis();
+		List<String> barCodes = warmProducts;
+		if (barCodes.isEmpty()) {
+			barCodes = memoryCache.getMostUsed(PROACTIVE_REFRESH_COUNT);
+		}
+		for (String barCode : barCodes) {
+			ProductInfo product = memoryCache.peek(barCode);
+			if ((product != null) && !product.isNegative() && ((now - product.getRetrieved()) > (ttl * 3 / 4))) {
+				scheduleRefresh(barCode, product);
+			}
+		}
+	}
+
+	private ProductInfo resolveProduct(String barCode) throws IOException {
+		// first look in the store
+		ProductInfo stored = loadProduct(barCode);
+		ProductInfo product = resolveLocally(barCode, stored);
+		if (product != null) {
+			return product;
+		}
+
+		// retrieve it
+		LOG.info("Retrieving product info for {}", barCode);
+		product = retrieveProduct(barCode, stored);
+
+		// store it
+		LOG.info("Storing product info for {}: {}", barCode, product);
+		store.put(barCode, product.encode());
+		retrievedListener.productRetrieved(barCode, product);
+		return product;
+	}
+
+	/**
+	 * Resolves a product without a remote call, from the store or the filter of known products.
 	 * 
-	 * @param json the root JSON node
-	 * @return the energy per serving (kJ)
-	 * @throws IllegalArgumentException
+	 * @return the product, null if a remote call is needed
+	 */
+	private ProductInfo resolveLocally(String barCode, ProductInfo stored) {
+		if ((stored != null) && !isExpired(stored)) {
+			LOG.info("Using stored product info for {}", barCode);
+			storeHitCount.incrementAndGet();
+			if (stored.isNegative()) {
+				negativeHitCount.incrementAndGet();
+			}
+			if (isStale(stored)) {
+				scheduleRefresh(barCode, stored);
+			}
+			return stored;
+		}
+
+		// a product that is certainly not in the imported dump is probably unknown, or newer than the dump
+		BloomFilter filter = knownProducts;
+		if (filter == null) {
+			return null;
+		}
+		CacheLookupEvent event = new CacheLookupEvent();
+		event.begin();
+		boolean rejected = !filter.mightContain(barCode);
+		commitLookup(event, barCode, "filter", rejected);
+		if (rejected) {
+			long now = System.currentTimeMillis();
+			long next = nextFilterMissCall.get();
+			if ((now >= next) && nextFilterMissCall.compareAndSet(next, now + FILTER_MISS_INTERVAL)) {
+				LOG.info("Product {} is not in the imported data dump, asking remotely", barCode);
+				return null;
+			}
+			LOG.info("Product {} is not in the imported data dump", barCode);
+			filterRejectCount.incrementAndGet();
+			return ProductInfo.notFound(now);
+		}
+		return null;
+	}
+
+	private ProductInfo loadProduct(String barCode) throws IOException {
+		CacheLookupEvent event = new CacheLookupEvent();
+		event.begin();
+		byte[] data = store.get(barCode);
+		commitLookup(event, barCode, "store", data != null);
+		if (data == null) {
+			return null;
+		}
+		try {
+			if ((data.length > 0) && (data[0] == '{')) {
+				// full JSON document written by an older version, convert it to the compact form
+				long timestamp = store.getTimestamp(barCode);
+				ProductInfo product = ProductParser.parse(data, timestamp);
+				store.put(barCode, product.encode(), timestamp);
+				return product;
+			}
+			long timestamp = store.getTimestamp(barCode);
+			ProductInfo product = ProductInfo.decode(data, timestamp);
+			if (timestamp == DumpImporter.IMPORTED) {
+				// imported from a data dump and now asked for, so keep it like a product that was looked up
+				store.put(barCode, data);
+			}
+			return product;
+		} catch (IOException e) {
+			LOG.warn("Dropping unusable stored product info for {}: {}", barCode, e.getMessage());
+			store.remove(barCode);
+			return null;
+		}
+	}
+
+	/**
+	 * Retrieves a product remotely, conditionally if we have an earlier version of it.
+	 */
+	private ProductInfo retrieveProduct(String barCode, ProductInfo previous) throws IOException {
+		String etag = (previous != null) ? previous.getEtag() : null;
+		String lastModified = (previous != null) ? previous.getLastModified() : null;
+		RemoteCallEvent event = new RemoteCallEvent();
+		event.begin();
+		long start = System.nanoTime();
+		String outcome = "error";
+		int status = 0;
+		CountingInputStream stream = null;
+		try {
+			Response<ResponseBody> response =
+					remote.execute(PRODUCT_ENDPOINT, () -> restClient.getProductInfo(barCode, etag, lastModified));
+			status = response.code();
+			try (ResponseBody body = response.body(); ResponseBody errorBody = response.errorBody()) {
+				long now = System.currentTimeMillis();
+				if ((response.code() == 304) && (previous != null)) {
+					LOG.info("Product info for {} not modified", barCode);
+					notModifiedCount.incrementAndGet();
+					outcome = "not_modified";
+					return previous.withRetrieved(now);
+				}
+				if (response.code() == 404) {
+					outcome = "not_found";
+					return ProductInfo.notFound(now);
+				}
+				if (!response.isSuccessful() || (body == null)) {
+					outcome = "http_error";
+					throw new IOException("Retrieving product info for " + barCode + " failed, HTTP " + response.code());
+				}
+				ProductInfo product;
+				stream = new CountingInputStream(body.byteStream());
+				ParseEvent parse = new ParseEvent();
+				parse.begin();
+				try {
+					product = ProductParser.parse(stream, now);
+				} catch (JsonProcessingException e) {
+					outcome = "parse_error";
+					throw e;
+				}
+				commitParse(parse, 1);
+				outcome = product.isFound() ? "ok" : "not_found";
+				return product.withValidators(response.headers().get("ETag"), response.headers().get("Last-Modified"));
+			}
+		} catch (CircuitOpenException e) {
+			outcome = "circuit_open";
+			throw e;
+		} catch (InterruptedIOException e) {
+			// includes socket and call timeouts
+			outcome = "timeout";
+			throw e;
+		} finally {
+			remoteLatency.computeIfAbsent(outcome, o -> new Histogram()).recordSince(start);
+			commitRemoteCall(event, barCode, status, outcome, stream);
+		}
+	}
+
+	/**
+	 * Retrieves several products remotely with a single call and stores them.
+	 */
+	private Map<String, ProductInfo> retrieveProducts(List<String> barCodes) throws IOException {
+		if (barCodes.size() == 1) {
+			String barCode = barCodes.get(0);
+			LOG.info("Retrieving product info for {}", barCode);
+			ProductInfo product = retrieveProduct(barCode, null);
+			store.put(barCode, product.encode());
+			retrievedListener.productRetrieved(barCode, product);
+			return Collections.singletonMap(barCode, product);
+		}
+
+		LOG.info("Retrieving product info for {}", barCodes);
+		RemoteCallEvent event = new RemoteCallEvent();
+		event.begin();
+		long start = System.nanoTime();
+		String outcome = "error";
+		int status = 0;
+		CountingInputStream stream = null;
+		try {
+			Response<ResponseBody> response = remote.execute(SEARCH_ENDPOINT,
+					() -> restClient.searchProducts(String.join(",", barCodes), barCodes.size()));
+			status = response.code();
+			try (ResponseBody body = response.body(); ResponseBody errorBody = response.errorBody()) {
+				long now = System.currentTimeMillis();
+				if (!response.isSuccessful() || (body == null)) {
+					outcome = "http_error";
+					throw new IOException("Retrieving product info for " + barCodes + " failed, HTTP "
+							+ response.code());
+				}
+				Map<String, ProductInfo> found;
+				stream = new CountingInputStream(body.byteStream());
+				ParseEvent parse = new ParseEvent();
+				parse.begin();
+				try {
+					found = ProductParser.parseSearch(stream, now);
+				} catch (JsonProcessingException e) {
+					outcome = "parse_error";
+					throw e;
+				}
+				commitParse(parse, found.size());
+				outcome = "ok";
+
+				// products absent from the response are unknown
+				Map<String, ProductInfo> products = new HashMap<>();
+				for (String barCode : barCodes) {
+					ProductInfo product = found.getOrDefault(barCode, ProductInfo.notFound(now));
+					store.putBulk(barCode, product.encode(), now);
+					products.put(barCode, product);
+				}
+				store.flush();
+				products.forEach(retrievedListener::productRetrieved);
+				return products;
+			}
+		} catch (CircuitOpenException e) {
+			outcome = "circuit_open";
+			throw e;
+		} catch (InterruptedIOException e) {
+			outcome = "timeout";
+			throw e;
+		} finally {
+			remoteLatency.computeIfAbsent(outcome, o -> new Histogram()).recordSince(start);
+			commitRemoteCall(event, String.join(",", barCodes), status, outcome, stream);
+		}
+	}
+
+	/**
+	 * Counts the bytes read from a response body, which (unlike its content length) is also known for a gzipped or
+	 * chunked response.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+
+	private static void commitLookup(CacheLookupEvent event, String barCode, String tier, boolean hit) {
+		if (event.shouldCommit()) {
+			event.saleId = SaleTrace.current();
+			event.barCode = barCode;
+			event.tier = tier;
+			event.hit = hit;
+			event.commit();
+		}
+	}
+
+	private static void commitParse(ParseEvent event, int products) {
+		if (event.shouldCommit()) {
+			event.saleId = SaleTrace.current();
+			event.products = products;
+			event.commit();
+		}
+	}
+
+	private static void commitRemoteCall(RemoteCallEvent event, String barCodes, int status, String outcome,
+			CountingInputStream stream) {
+		if (event.shouldCommit()) {
+			event.saleId = SaleTrace.current();
+			event.barCodes = barCodes;
+			event.status = status;
+			event.outcome = outcome;
+			event.bytes = (stream != null) ? stream.count : 0;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Imports the JSON files from the old one-file-per-product cache directory into the store, then renames the
+	 * directory so the import is done only once.
 	 */
-	private Double getEnergy(JsonNode json) throws IllegalArgumentException {
-		if ((json != null) && json.at("/status").intValue() != 0) {
-			String energyServing = json.at("/product/nutriments/energy_serving").textValue();
-			LOG.info("Energy: serving = '{}' kJ", energyServing);
-			return Double.parseDouble(energyServing);
+	private void importDirectory(File dir) throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".json"));
+		if (files == null) {
+			return;
+		}
+		LOG.info("Importing {} files from {}", files.length, dir);
+		int count = 0;
+		for (File file : files) {
+			String barCode = file.getName().substring(0, file.getName().length() - ".json".length());
+			long gtin = Gtin.parse(barCode);
+			if (gtin != Gtin.INVALID) {
+				// e.g. both "0737628064502" and "737628064502" end up as the latter
+				barCode = Gtin.format(gtin);
+			}
+			byte[] data = Files.readAllBytes(file.toPath());
+			try {
+				ProductInfo product = ProductParser.parse(data, file.lastModified());
+				store.put(barCode, product.encode(), file.lastModified());
+				count++;
+			} catch (IOException e) {
+				LOG.warn("Skipping unparseable file {}: {}", file.getName(), e.getMessage());
+			}
+		}
+		File imported = new File(dir.getParentFile(), dir.getName() + ".imported");
+		if (!dir.renameTo(imported)) {
+			LOG.warn("Could not rename {} to {}", dir, imported);
 		}
-		// not found
-		throw new IllegalArgumentException("Could not determine energy");
+		LOG.info("Imported {} products from {}", count, dir);
 	}
 	
-	public void start() {
+	/**
+	 * Imports an OpenFoodFacts data dump into the product store, as far as it fits in part of the store, and records
+	 * all bar codes in the dump so most unknown bar codes can be rejected without a remote call. This is an offline
+	 * operation: the module must not be started.
+	 * 
+	 * @param dump the dump file (JSONL or CSV, optionally gzipped)
+	 * @throws IOException in case of a problem reading the dump or writing the store
+	 */
+	public void importDump(File dump) throws IOException {
+		store.open();
+		try {
+			BloomFilter filter = BloomFilter.create(DUMP_EXPECTED_PRODUCTS, DUMP_FALSE_POSITIVE_RATE);
+			new DumpImporter(store, filter, store.getMaxSize() / DUMP_STORE_DIVISOR).importFile(dump);
+			filter.save(filterFile);
+			LOG.info("Saved filter of known products ({} bytes) to {}", filter.getSize(), filterFile);
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Starts this module, opening the product store.
+	 * 
+	 * @throws IOException in case of a problem opening the store
+	 */
+	public void start() throws IOException {
 		LOG.info("Starting OpenFoodFacts retriever");
-		if (!cacheDir.mkdirs() || !rejectDir.mkdirs()) {
-			throw new IllegalStateException("Could not create directories");
+		store.open();
+
+		// one-time import of the old file-per-product directories, rejects first so cached files take precedence
+		if (rejectDir.isDirectory()) {
+			importDirectory(rejectDir);
+		}
+		if (cacheDir.isDirectory()) {
+			importDirectory(cacheDir);
 		}
+		if (filterFile.exists()) {
+			knownProducts = BloomFilter.load(filterFile);
+			LOG.info("Loaded filter of known products from {}", filterFile);
+		}
+
+		// keep the most asked-for products fresh
+		long interval = Math.max(TimeUnit.MINUTES.toMillis(1), ttl / 10);
+		refreshExecutor.scheduleWithFixedDelay(this::refreshMostUsed, interval, interval, TimeUnit.MILLISECONDS);
 	}
 
 	public void stop() {
-		LOG.info("Stopping OpenFoodFacts retriever");
+		LOG.info("Stopping OpenFoodFacts retriever, memory cache {}, {} lookups, {} coalesced, {} negative hits",
+				memoryCache, lookupCount.get(), coalescedCount.get(), negativeHitCount.get());
+		LOG.info("Refreshed {} products, {} were not modified, {} rejected by filter", refreshCount.get(),
+				notModifiedCount.get(), filterRejectCount.get());
+		refreshExecutor.shutdownNow();
+		store.close();
+	}
+
+	/**
+	 * @return the number of disk/remote lookups performed
+	 */
+	public long getLookupCount() {
+		return lookupCount.get();
+	}
+
+	/**
+	 * @return the number of lookups that were served by waiting for an identical lookup already in progress
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * @return the number of lookups answered by a stored negative result, without a remote call
+	 */
+	public long getNegativeHitCount() {
+		return negativeHitCount.get();
+	}
+
+	/**
+	 * @return the number of background refreshes started
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * @return the number of conditional requests answered with 'not modified'
+	 */
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+
+	/**
+	 * @return the number of lookups rejected without a remote call, because the product is not in the data dump and
+	 *         another such product was asked for remotely less than a second ago
+	 */
+	public long getFilterRejectCount() {
+		return filterRejectCount.get();
+	}
+
+	/**
+	 * @return the number of lookups answered from the product store on disk
+	 */
+	public long getStoreHitCount() {
+		return storeHitCount.get();
+	}
+
+	/**
+	 * @return the number of products taken from other instances
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+
+	/**
+	 * @return the number of products from other instances ignored, because we had the same or a newer version
+	 */
+	public long getSharedRejectCount() {
+		return sharedRejectCount.get();
+	}
+
+	/**
+	 * @return the number of products in the store on disk
+	 */
+	public int getStoreSize() {
+		return store.size();
+	}
+
+	/**
+	 * @return the size of the product store files on disk, including stale records (bytes)
+	 */
+	public long getStoreBytes() {
+		return store.getTotalBytes();
+	}
+
+	/**
+	 * @return the latency of disk/remote lookups
+	 */
+	public Histogram getLookupLatency() {
+		return lookupLatency;
+	}
+
+	/**
+	 * @return the latency of remote calls, by outcome: ok, not_found, not_modified, timeout, http_error,
+	 *         parse_error or error
+	 */
+	public Map<String, Histogram> getRemoteLatency() {
+		return remoteLatency;
+	}
+
+	/**
+	 * @return the caller of the remote service, e.g. for reading its statistics
+	 */
+	public RemoteCaller getRemoteCaller() {
+		return remote;
+	}
+
+	/**
+	 * @return the in-memory product cache, e.g. for reading its statistics
+	 */
+	public ProductCache getMemoryCache() {
+		return memoryCache;
 	}
 
 }
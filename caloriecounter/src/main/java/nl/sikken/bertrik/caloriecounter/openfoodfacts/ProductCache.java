@@ -0,0 +1,147 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Size-bounded in-memory cache of resolved products, with least-recently-used eviction.
+ *
+ * Pinned products (e.g. the most sold ones) are never evicted.
+ */
+public final class ProductCache {
+
+	private final Map<String, Entry> map;
+	private Set<String> pinned = Collections.emptySet();
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * A cached product, with the number of times it was asked for.
+	 */
+	private static final class Entry {
+		private final ProductInfo product;
+		private long hits;
+
+		Entry(ProductInfo product, long hits) {
+			this.product = product;
+			this.hits = hits;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxEntries the maximum number of entries to keep
+	 */
+	public ProductCache(int maxEntries) {
+		this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > maxEntries) {
+					// evict the least recently used entry that is not pinned
+					Iterator<String> it = keySet().iterator();
+					while (it.hasNext()) {
+						if (!pinned.contains(it.next())) {
+							it.remove();
+							evictions++;
+							break;
+						}
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Looks up a product.
+	 *
+	 * @param barCode the bar code
+	 * @return the product, null if not in the cache
+	 */
+	public synchronized ProductInfo get(String barCode) {
+		Entry entry = map.get(barCode);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		entry.hits++;
+		return entry.product;
+	}
+
+	/**
+	 * Looks up a product without affecting statistics or usage.
+	 *
+	 * @param barCode the bar code
+	 * @return the product, null if not in the cache
+	 */
+	public synchronized ProductInfo peek(String barCode) {
+		Entry entry = map.get(barCode);
+		return (entry != null) ? entry.product : null;
+	}
+
+	/**
+	 * Adds or replaces a product, a replaced product keeps its usage count.
+	 *
+	 * @param barCode the bar code
+	 * @param product the product
+	 */
+	public synchronized void put(String barCode, ProductInfo product) {
+		Entry old = map.get(barCode);
+		map.put(barCode, new Entry(product, (old != null) ? old.hits : 0));
+	}
+
+	/**
+	 * Pins products, replacing the products pinned before.
+	 *
+	 * @param barCodes the bar codes of the products to keep
+	 */
+	public synchronized void pin(Collection<String> barCodes) {
+		pinned = new HashSet<>(barCodes);
+	}
+
+	/**
+	 * @param count the maximum number of bar codes to return
+	 * @return the bar codes of the most asked-for products, most asked-for first
+	 */
+	public synchronized List<String> getMostUsed(int count) {
+		List<Map.Entry<String, Entry>> entries = new ArrayList<>(map.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue().hits, a.getValue().hits));
+		return entries.stream().limit(count).map(Map.Entry::getKey).collect(Collectors.toList());
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("{size=%d,hits=%d,misses=%d,evictions=%d}", map.size(), hits, misses, evictions);
+	}
+
+}
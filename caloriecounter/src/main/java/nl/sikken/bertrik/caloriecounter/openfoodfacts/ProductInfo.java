@@ -0,0 +1,204 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Resolved product information, as far as we are interested in it.
+ */
+public final class ProductInfo {
+
+	private static final int VERSION = 3;
+
+	private static final int FLAG_FOUND = 1;
+	private static final int FLAG_NAME = 2;
+	private static final int FLAG_ETAG = 4;
+	private static final int FLAG_LAST_MODIFIED = 8;
+
+	private final boolean found;
+	private final String name;
+	private final double energy;
+	private final long retrieved;
+	private final String etag;
+	private final String lastModified;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param found whether the product is known at OpenFoodFacts
+	 * @param name the product name, may be null
+	 * @param energy the energy per serving (kJ), NaN if unknown
+	 * @param retrieved the time this information was retrieved (ms since epoch)
+	 */
+	public ProductInfo(boolean found, String name, double energy, long retrieved) {
+		this(found, name, energy, retrieved, null, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param found whether the product is known at OpenFoodFacts
+	 * @param name the product name, may be null
+	 * @param energy the energy per serving (kJ), NaN if unknown
+	 * @param retrieved the time this information was retrieved (ms since epoch)
+	 * @param etag the HTTP entity tag of the response, may be null
+	 * @param lastModified the HTTP last-modified header of the response, may be null
+	 */
+	public ProductInfo(boolean found, String name, double energy, long retrieved, String etag, String lastModified) {
+		this.found = found;
+		this.name = name;
+		this.energy = energy;
+		this.retrieved = retrieved;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Creates info for a product that is not known at OpenFoodFacts.
+	 *
+	 * @param retrieved the time this information was retrieved (ms since epoch)
+	 * @return the product info
+	 */
+	public static ProductInfo notFound(long retrieved) {
+		return new ProductInfo(false, null, Double.NaN, retrieved);
+	}
+
+	/**
+	 * @return whether the product is known at OpenFoodFacts
+	 */
+	public boolean isFound() {
+		return found;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the energy per serving (kJ), NaN if unknown
+	 */
+	public double getEnergy() {
+		return energy;
+	}
+
+	public boolean hasEnergy() {
+		return !Double.isNaN(energy);
+	}
+
+	/**
+	 * @return whether this is a negative result: either not found, or found but without energy
+	 */
+	public boolean isNegative() {
+		return !found || !hasEnergy();
+	}
+
+	/**
+	 * @return the time this information was retrieved (ms since epoch)
+	 */
+	public long getRetrieved() {
+		return retrieved;
+	}
+
+	/**
+	 * @return the HTTP entity tag of the response this information came from, may be null
+	 */
+	public String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * @return the HTTP last-modified header of the response this information came from, may be null
+	 */
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @param time the new retrieval time (ms since epoch)
+	 * @return a copy of this information, confirmed to be unchanged at the given time
+	 */
+	public ProductInfo withRetrieved(long time) {
+		return new ProductInfo(found, name, energy, time, etag, lastModified);
+	}
+
+	/**
+	 * @param newEtag the HTTP entity tag, may be null
+	 * @param newLastModified the HTTP last-modified header, may be null
+	 * @return a copy of this information, with the given HTTP cache validators
+	 */
+	public ProductInfo withValidators(String newEtag, String newLastModified) {
+		return new ProductInfo(found, name, energy, retrieved, newEtag, newLastModified);
+	}
+
+	/**
+	 * Encodes this product into its compact binary form, for storage.
+	 *
+	 * @return the encoded product
+	 */
+	public byte[] encode() {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(bos)) {
+			dos.writeByte(VERSION);
+			dos.writeByte((found ? FLAG_FOUND : 0) | ((name != null) ? FLAG_NAME : 0) | ((etag != null) ? FLAG_ETAG : 0)
+					| ((lastModified != null) ? FLAG_LAST_MODIFIED : 0));
+			if (name != null) {
+				dos.writeUTF(name);
+			}
+			dos.writeDouble(energy);
+			dos.writeLong(retrieved);
+			if (etag != null) {
+				dos.writeUTF(etag);
+			}
+			if (lastModified != null) {
+				dos.writeUTF(lastModified);
+			}
+		} catch (IOException e) {
+			// cannot happen with a byte array stream
+			throw new IllegalStateException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Decodes a product from its compact binary form.
+	 *
+	 * @param data the encoded product
+	 * @param timestamp the time the data was stored, used for older encodings without retrieval time
+	 * @return the product
+	 * @throws IOException in case the data could not be decoded
+	 */
+	public static ProductInfo decode(byte[] data, long timestamp) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
+			int version = dis.readUnsignedByte();
+			switch (version) {
+			case 1: {
+				// no status, assume found when anything is known about it
+				String name = dis.readBoolean() ? dis.readUTF() : null;
+				double energy = dis.readDouble();
+				return new ProductInfo((name != null) || !Double.isNaN(energy), name, energy, timestamp);
+			}
+			case 2:
+			case VERSION: {
+				int flags = dis.readUnsignedByte();
+				String name = ((flags & FLAG_NAME) != 0) ? dis.readUTF() : null;
+				double energy = dis.readDouble();
+				long retrieved = dis.readLong();
+				String etag = ((flags & FLAG_ETAG) != 0) ? dis.readUTF() : null;
+				String lastModified = ((flags & FLAG_LAST_MODIFIED) != 0) ? dis.readUTF() : null;
+				return new ProductInfo((flags & FLAG_FOUND) != 0, name, energy, retrieved, etag, lastModified);
+			}
+			default:
+				throw new IOException("Unsupported product encoding version " + version);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{found=%s,name=%s,energy=%s}", found, name, energy);
+	}
+
+}
@@ -0,0 +1,175 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming parser for OpenFoodFacts product JSON.
+ *
+ * Only picks the few fields we use from the document, skipping all other sub-trees without materialising them.
+ */
+public final class ProductParser {
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	private ProductParser() {
+		// utility class
+	}
+
+	/**
+	 * Parses an OpenFoodFacts product response.
+	 *
+	 * @param is the JSON stream
+	 * @param retrieved the time the response was retrieved (ms since epoch)
+	 * @return the product info
+	 * @throws IOException in case of a problem reading or parsing the stream
+	 */
+	public static ProductInfo parse(InputStream is, long retrieved) throws IOException {
+		try (JsonParser parser = FACTORY.createParser(is)) {
+			return parse(parser, retrieved);
+		}
+	}
+
+	/**
+	 * Parses an OpenFoodFacts product response.
+	 *
+	 * @param data the JSON bytes
+	 * @param retrieved the time the response was retrieved (ms since epoch)
+	 * @return the product info
+	 * @throws IOException in case of a problem parsing the data
+	 */
+	public static ProductInfo parse(byte[] data, long retrieved) throws IOException {
+		try (JsonParser parser = FACTORY.createParser(data)) {
+			return parse(parser, retrieved);
+		}
+	}
+
+	/**
+	 * Parses an OpenFoodFacts search response.
+	 *
+	 * @param is the JSON stream
+	 * @param retrieved the time the response was retrieved (ms since epoch)
+	 * @return the products found, by normalised bar code
+	 * @throws IOException in case of a problem reading or parsing the stream
+	 */
+	public static Map<String, ProductInfo> parseSearch(InputStream is, long retrieved) throws IOException {
+		Map<String, ProductInfo> products = new HashMap<>();
+		try (JsonParser parser = FACTORY.createParser(is)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Expected a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("products".equals(field) && (token == JsonToken.START_ARRAY)) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						ProductFields product = parseProduct(parser);
+						if (product.code != null) {
+							long gtin = Gtin.parse(product.code);
+							String barCode = (gtin == Gtin.INVALID) ? product.code : Gtin.format(gtin);
+							products.put(barCode, new ProductInfo(true, product.name, product.energy, retrieved));
+						}
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return products;
+	}
+
+	private static ProductInfo parse(JsonParser parser, long retrieved) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new IOException("Expected a JSON object");
+		}
+		int status = 0;
+		ProductFields product = new ProductFields();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("status".equals(field)) {
+				status = parser.getValueAsInt();
+			} else if ("product".equals(field) && (token == JsonToken.START_OBJECT)) {
+				product = parseProduct(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (status == 0) {
+			return ProductInfo.notFound(retrieved);
+		}
+		return new ProductInfo(true, product.name, product.energy, retrieved);
+	}
+
+	/**
+	 * The fields we use of a product object.
+	 */
+	private static final class ProductFields {
+		private String code;
+		private String name;
+		private double energy = Double.NaN;
+	}
+
+	/**
+	 * Parses a product object, the parser is positioned at its start.
+	 */
+	private static ProductFields parseProduct(JsonParser parser) throws IOException {
+		ProductFields product = new ProductFields();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("code".equals(field) && token.isScalarValue()) {
+				product.code = parser.getValueAsString();
+			} else if ("product_name".equals(field) && token.isScalarValue()) {
+				product.name = parser.getValueAsString();
+			} else if ("nutriments".equals(field) && (token == JsonToken.START_OBJECT)) {
+				product.energy = parseNutriments(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return product;
+	}
+
+	/**
+	 * Parses the nutriments object, the parser is positioned at its start.
+	 *
+	 * @param parser the parser
+	 * @return the energy per serving (kJ), NaN if unknown
+	 * @throws IOException in case of a problem parsing the data
+	 */
+	static double parseNutriments(JsonParser parser) throws IOException {
+		double energy = Double.NaN;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("energy_serving".equals(field)) {
+				energy = parseEnergy(parser, token);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return energy;
+	}
+
+	private static double parseEnergy(JsonParser parser, JsonToken token) throws IOException {
+		if (token.isNumeric()) {
+			return parser.getDoubleValue();
+		}
+		if (token == JsonToken.VALUE_STRING) {
+			try {
+				return Double.parseDouble(parser.getText());
+			} catch (NumberFormatException e) {
+				// empty or otherwise unusable
+			}
+		}
+		return Double.NaN;
+	}
+
+}
@@ -0,0 +1,485 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, single-directory key/value store for product data.
+ *
+ * Records are appended to segment files and located through an in-memory index.
+ * Each record carries a CRC32, so torn or corrupt writes are detected (and dropped) when the store is opened.
+ * When the segment files grow beyond the size limit, the oldest records are evicted and the live records are
+ * compacted into new segments, leaving at most three quarters of the limit, so the next compaction only follows after
+ * a quarter of the limit was written again, however full the store is. Once those are on disk, a base file records the first of them, and the segments before
+ * it are deleted. Segments before the base are ignored when opening, so segments left behind by a crash can neither
+ * resurrect evicted records nor bring back older versions.
+ *
+ * Record layout: crc (4), key length (4), value length (4, -1 for a deletion), timestamp (8), key, value.
+ */
+public final class ProductStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ProductStore.class);
+
+	private static final String SEGMENT_PREFIX = "products-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String BASE_FILE = "products.base";
+	private static final int HEADER_SIZE = 20;
+	private static final int MAX_KEY_SIZE = 1024;
+	private static final int MAX_VALUE_SIZE = 16 * 1024 * 1024;
+	private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+	// part of the size limit left in use after a compaction (percent)
+	private static final int COMPACT_TARGET_PERCENT = 75;
+
+	private final File dir;
+	private final long maxSize;
+	private final Map<String, Entry> index = new HashMap<>();
+	private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+
+	private FileChannel active;
+	private int activeId;
+	private long liveBytes;
+	private long totalBytes;
+	private long compactionCount;
+
+	/**
+	 * Location of the most recent record of a key.
+	 */
+	private static final class Entry {
+		private final int segment;
+		private final long offset;
+		private final int length;
+		private final long timestamp;
+
+		Entry(int segment, long offset, int length, long timestamp) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.timestamp = timestamp;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dir the directory holding the segment files
+	 * @param maxSize the maximum size of the segment files together (bytes)
+	 */
+	public ProductStore(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Opens the store, rebuilding the index from the segment files.
+	 *
+	 * @throws IOException in case of a problem accessing the files
+	 */
+	public synchronized void open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		int base = readBase();
+		File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		Arrays.sort(files, Comparator.comparing(File::getName));
+		for (File file : files) {
+			int id = Integer.parseInt(
+					file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+			if (id < base) {
+				// left behind by a compaction that was interrupted while deleting the old segments
+				LOG.warn("Deleting {}, it was compacted already", file.getName());
+				if (!file.delete()) {
+					LOG.warn("Could not delete {}", file.getName());
+				}
+				continue;
+			}
+			long validLength = scanSegment(id, file);
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			if (validLength < channel.size()) {
+				LOG.warn("Truncating {} from {} to {} bytes", file.getName(), channel.size(), validLength);
+				channel.truncate(validLength);
+			}
+			segments.put(id, channel);
+			totalBytes += validLength;
+		}
+		activeId = segments.isEmpty() ? base : segments.lastKey();
+		active = segments.get(activeId);
+		if (active == null) {
+			active = createSegment(activeId);
+		}
+		LOG.info("Opened product store with {} entries, {} live bytes in {} segments", index.size(), liveBytes,
+				segments.size());
+	}
+
+	/**
+	 * @return the id of the first segment written by the last compaction, 0 if never compacted
+	 */
+	private int readBase() throws IOException {
+		File file = new File(dir, BASE_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+			return dis.readInt();
+		}
+	}
+
+	/**
+	 * Records the id of the first segment written by a compaction, replacing the base file atomically.
+	 */
+	private void writeBase(int base) throws IOException {
+		File tempFile = new File(dir, BASE_FILE + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+			DataOutputStream dos = new DataOutputStream(fos);
+			dos.writeInt(base);
+			dos.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tempFile.toPath(), new File(dir, BASE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads all valid records of a segment into the index.
+	 *
+	 * @return the length of the valid part of the segment
+	 */
+	private long scanSegment(int id, File file) throws IOException {
+		long offset = 0;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				int crc = dis.readInt();
+				int keyLength = dis.readInt();
+				int valueLength = dis.readInt();
+				long timestamp = dis.readLong();
+				if ((keyLength <= 0) || (keyLength > MAX_KEY_SIZE) || (valueLength < -1)
+						|| (valueLength > MAX_VALUE_SIZE)) {
+					LOG.warn("Corrupt record header in {} at offset {}", file.getName(), offset);
+					break;
+				}
+				byte[] data = new byte[keyLength + Math.max(valueLength, 0)];
+				dis.readFully(data);
+				if (crc != checksum(keyLength, valueLength, timestamp, data)) {
+					LOG.warn("Checksum mismatch in {} at offset {}", file.getName(), offset);
+					break;
+				}
+				String key = new String(data, 0, keyLength, StandardCharsets.UTF_8);
+				int length = HEADER_SIZE + data.length;
+				if (valueLength >= 0) {
+					putIndex(key, new Entry(id, offset, length, timestamp));
+				} else {
+					removeIndex(key);
+				}
+				offset += length;
+			}
+		} catch (EOFException e) {
+			// end of segment, possibly with a partially written record
+		}
+		return offset;
+	}
+
+	/**
+	 * Closes the store.
+	 */
+	public synchronized void close() {
+		for (FileChannel channel : segments.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOG.warn("Caught exception on close: {}", e.getMessage());
+			}
+		}
+		segments.clear();
+		index.clear();
+		liveBytes = 0;
+		totalBytes = 0;
+	}
+
+	/**
+	 * Reads a value from the store.
+	 *
+	 * @param key the key
+	 * @return the value, or null if not present (or unreadable)
+	 * @throws IOException in case of a problem accessing the file
+	 */
+	public synchronized byte[] get(String key) throws IOException {
+		Entry entry = index.get(key);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		FileChannel channel = segments.get(entry.segment);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of segment " + entry.segment);
+			}
+		}
+		buffer.flip();
+		int crc = buffer.getInt();
+		int keyLength = buffer.getInt();
+		int valueLength = buffer.getInt();
+		long timestamp = buffer.getLong();
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		if (crc != checksum(keyLength, valueLength, timestamp, data)) {
+			LOG.warn("Checksum mismatch for '{}', dropping it", key);
+			removeIndex(key);
+			return null;
+		}
+		return Arrays.copyOfRange(data, keyLength, data.length);
+	}
+
+	/**
+	 * @param key the key
+	 * @return the time the value was written (ms since epoch), or 0 if not present
+	 */
+	public synchronized long getTimestamp(String key) {
+		Entry entry = index.get(key);
+		return (entry != null) ? entry.timestamp : 0;
+	}
+
+	public synchronized boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Writes a value to the store, timestamped with the current time.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @throws IOException in case of a problem writing the file
+	 */
+	public void put(String key, byte[] value) throws IOException {
+		put(key, value, System.currentTimeMillis());
+	}
+
+	/**
+	 * Writes a value to the store.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param timestamp the time stamp of the value (ms since epoch)
+	 * @throws IOException in case of a problem writing the file
+	 */
+	public synchronized void put(String key, byte[] value, long timestamp) throws IOException {
+		putBulk(key, value, timestamp);
+		active.force(false);
+	}
+
+	/**
+	 * Writes a value to the store, without forcing it to disk, for importing many values at once.
+	 * Call {@link #flush()} when done.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param timestamp the time stamp of the value (ms since epoch)
+	 * @throws IOException in case of a problem writing the file
+	 */
+	public synchronized void putBulk(String key, byte[] value, long timestamp) throws IOException {
+		Entry entry = append(key, value, timestamp);
+		putIndex(key, entry);
+		if (totalBytes > maxSize) {
+			long target = maxSize * COMPACT_TARGET_PERCENT / 100;
+			if (liveBytes > target) {
+				evict(target);
+			}
+			compact();
+		}
+	}
+
+	/**
+	 * Removes a value from the store.
+	 *
+	 * @param key the key
+	 * @throws IOException in case of a problem writing the file
+	 */
+	public synchronized void remove(String key) throws IOException {
+		if (index.containsKey(key)) {
+			append(key, null, System.currentTimeMillis());
+			active.force(false);
+			removeIndex(key);
+		}
+	}
+
+	/**
+	 * Forces all written values to disk.
+	 *
+	 * @throws IOException in case of a problem writing the file
+	 */
+	public synchronized void flush() throws IOException {
+		active.force(false);
+	}
+
+	/**
+	 * @return the maximum size of the segment files together (bytes)
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return the number of compactions since the store was created
+	 */
+	public synchronized long getCompactionCount() {
+		return compactionCount;
+	}
+
+	/**
+	 * Rewrites all live records into new segments, makes those the base, and deletes the old segments.
+	 *
+	 * @throws IOException in case of a problem accessing the files
+	 */
+	public synchronized void compact() throws IOException {
+		LOG.info("Compacting product store, {} of {} bytes live", liveBytes, totalBytes);
+		compactionCount++;
+		List<Integer> oldIds = new ArrayList<>(segments.keySet());
+		List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+		// keep the original write order, so age-based eviction keeps working
+		entries.sort(Comparator.comparingLong(e -> e.getValue().timestamp));
+
+		rollSegment();
+		int base = activeId;
+		for (Map.Entry<String, Entry> e : entries) {
+			byte[] value = get(e.getKey());
+			if (value != null) {
+				putIndex(e.getKey(), append(e.getKey(), value, e.getValue().timestamp));
+			}
+		}
+		active.force(true);
+
+		// from here on the old segments are ignored, also when a crash leaves some of them behind
+		writeBase(base);
+		for (Integer id : oldIds) {
+			FileChannel channel = segments.remove(id);
+			totalBytes -= channel.size();
+			channel.close();
+			File file = segmentFile(id);
+			if (!file.delete()) {
+				LOG.warn("Could not delete {}", file.getName());
+			}
+		}
+		LOG.info("Compacted product store, {} of {} bytes live", liveBytes, totalBytes);
+	}
+
+	/**
+	 * Drops the oldest records from the index until the live data fits within the target size.
+	 */
+	private void evict(long target) {
+		List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+		entries.sort(Comparator.comparingLong(e -> e.getValue().timestamp));
+		int count = 0;
+		for (Map.Entry<String, Entry> e : entries) {
+			if (liveBytes <= target) {
+				break;
+			}
+			removeIndex(e.getKey());
+			count++;
+		}
+		LOG.info("Evicted {} oldest entries from product store", count);
+	}
+
+	private Entry append(String key, byte[] value, long timestamp) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int valueLength = (value != null) ? value.length : -1;
+		byte[] data = new byte[keyBytes.length + Math.max(valueLength, 0)];
+		System.arraycopy(keyBytes, 0, data, 0, keyBytes.length);
+		if (value != null) {
+			System.arraycopy(value, 0, data, keyBytes.length, value.length);
+		}
+
+		if (active.size() >= SEGMENT_SIZE) {
+			rollSegment();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
+		buffer.putInt(checksum(keyBytes.length, valueLength, timestamp, data));
+		buffer.putInt(keyBytes.length);
+		buffer.putInt(valueLength);
+		buffer.putLong(timestamp);
+		buffer.put(data);
+		buffer.flip();
+
+		long offset = active.size();
+		while (buffer.hasRemaining()) {
+			active.write(buffer, offset + buffer.position());
+		}
+		totalBytes += buffer.limit();
+		return new Entry(activeId, offset, buffer.limit(), timestamp);
+	}
+
+	private void rollSegment() throws IOException {
+		active.force(true);
+		activeId++;
+		active = createSegment(activeId);
+	}
+
+	private FileChannel createSegment(int id) throws IOException {
+		FileChannel channel = new RandomAccessFile(segmentFile(id), "rw").getChannel();
+		segments.put(id, channel);
+		return channel;
+	}
+
+	private File segmentFile(int id) {
+		return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	private void putIndex(String key, Entry entry) {
+		Entry old = index.put(key, entry);
+		if (old != null) {
+			liveBytes -= old.length;
+		}
+		liveBytes += entry.length;
+	}
+
+	private void removeIndex(String key) {
+		Entry old = index.remove(key);
+		if (old != null) {
+			liveBytes -= old.length;
+		}
+	}
+
+	private static int checksum(int keyLength, int valueLength, long timestamp, byte[] data) {
+		CRC32 crc = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 4);
+		header.putInt(keyLength);
+		header.putInt(valueLength);
+		header.putLong(timestamp);
+		crc.update(header.array(), 0, header.capacity());
+		crc.update(data, 0, data.length);
+		return (int) crc.getValue();
+	}
+
+}
@@ -0,0 +1,257 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.CircuitBreaker.EState;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Makes calls to the OpenFoodFacts service resilient against a slow or unavailable service.
+ *
+ * <ul>
+ * <li>a circuit breaker makes calls fail fast while the service is unhealthy
+ * <li>failed calls (I/O errors, HTTP 429 and 5xx) are retried a few times, with jittered exponential backoff
+ * <li>optionally, a call that takes longer than usual is hedged by a second identical call, the first answer wins
+ * <li>the timeout of each call is derived from the observed latencies of its endpoint, within the configured maximum
+ * </ul>
+ *
+ * Latencies are kept per endpoint, as e.g. a search for many products takes longer than a lookup of a single one. A
+ * call that timed out counts with the timeout as its latency, so timeouts make the next timeout longer instead of
+ * being left out.
+ */
+public final class RemoteCaller {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RemoteCaller.class);
+
+	// backoff before the first retry, doubled for each next retry (ms)
+	private static final long BACKOFF_BASE = 100;
+	private static final long BACKOFF_MAX = 2000;
+
+	// the timeout is a multiple of the 99th percentile latency, but not less than a minimum (ms)
+	private static final int TIMEOUT_FACTOR = 3;
+	private static final long TIMEOUT_MIN = 500;
+
+	// latencies are only trusted after this many calls
+	private static final int MIN_SAMPLES = 20;
+
+	private final long maxTimeout;
+	private final int retries;
+	private final boolean hedge;
+	private final CircuitBreaker breaker;
+	private final ConcurrentMap<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong hedgeCount = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxTimeout the maximum time for a call (ms)
+	 * @param retries the number of retries of a failed call
+	 * @param hedge whether to hedge slow calls
+	 * @param breakerThreshold the number of consecutive failures after which calls fail fast
+	 * @param breakerOpenTime how long calls fail fast before a trial call is made (ms)
+	 */
+	public RemoteCaller(long maxTimeout, int retries, boolean hedge, int breakerThreshold, long breakerOpenTime) {
+		this.maxTimeout = maxTimeout;
+		this.retries = retries;
+		this.hedge = hedge;
+		this.breaker = new CircuitBreaker(breakerThreshold, breakerOpenTime);
+	}
+
+	/**
+	 * Executes a call, retrying it on failure.
+	 *
+	 * @param endpoint the name of the endpoint called, e.g. "product", which has its own latencies
+	 * @param request creates the call, invoked once for each attempt
+	 * @return the response, not a retryable one
+	 * @throws IOException in case all attempts failed, or the circuit is open
+	 */
+	public Response<ResponseBody> execute(String endpoint, Supplier<Call<ResponseBody>> request) throws IOException {
+		LatencyTracker tracker = latencies.computeIfAbsent(endpoint, e -> new LatencyTracker(128));
+		for (int attempt = 0;; attempt++) {
+			breaker.acquire();
+			long start = System.currentTimeMillis();
+			long timeout = getTimeout(tracker);
+			IOException failure;
+			try {
+				boolean hedged = hedge && (tracker.getCount() >= MIN_SAMPLES);
+				Response<ResponseBody> response =
+						hedged ? executeHedged(request, tracker, timeout) : executeOnce(request.get(), timeout);
+				if (!isRetryable(response)) {
+					breaker.onSuccess();
+					tracker.record(System.currentTimeMillis() - start);
+					return response;
+				}
+				closeQuietly(response);
+				failure = new IOException("HTTP " + response.code());
+			} catch (InterruptedIOException e) {
+				// a timeout, unless the thread was interrupted
+				if (Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				tracker.record(timeout);
+				failure = e;
+			} catch (IOException e) {
+				failure = e;
+			}
+			breaker.onFailure();
+			if ((attempt >= retries) || (breaker.getState() == EState.OPEN)) {
+				throw failure;
+			}
+			retryCount.incrementAndGet();
+			LOG.info("Call failed ({}), retrying", failure.getMessage());
+			backoff(attempt);
+		}
+	}
+
+	private Response<ResponseBody> executeOnce(Call<ResponseBody> call, long timeout) throws IOException {
+		call.timeout().timeout(timeout, TimeUnit.MILLISECONDS);
+		return call.execute();
+	}
+
+	/**
+	 * Executes a call, and if it takes longer than 95% of the recent calls, also a second identical call.
+	 */
+	private Response<ResponseBody> executeHedged(Supplier<Call<ResponseBody>> request, LatencyTracker tracker,
+			long timeout) throws IOException {
+		CompletableFuture<Response<ResponseBody>> result = new CompletableFuture<>();
+		AtomicReference<Call<ResponseBody>> winner = new AtomicReference<>();
+		AtomicInteger outstanding = new AtomicInteger();
+		Call<ResponseBody> primary = enqueue(request.get(), timeout, result, winner, outstanding);
+		Call<ResponseBody> secondary = null;
+		long hedgeDelay = tracker.getPercentile(0.95);
+		try {
+			try {
+				return result.get(hedgeDelay, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				hedgeCount.incrementAndGet();
+				LOG.info("Call takes longer than {} ms, hedging it", hedgeDelay);
+				secondary = enqueue(request.get(), timeout, result, winner, outstanding);
+				return result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for call");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+		} finally {
+			// stop the call that lost, if any
+			cancelUnlessWinner(primary, winner.get());
+			cancelUnlessWinner(secondary, winner.get());
+		}
+	}
+
+	private Call<ResponseBody> enqueue(Call<ResponseBody> call, long timeout,
+			CompletableFuture<Response<ResponseBody>> result, AtomicReference<Call<ResponseBody>> winner,
+			AtomicInteger outstanding) {
+		outstanding.incrementAndGet();
+		call.timeout().timeout(timeout, TimeUnit.MILLISECONDS);
+		call.enqueue(new Callback<ResponseBody>() {
+			@Override
+			public void onResponse(Call<ResponseBody> c, Response<ResponseBody> response) {
+				outstanding.decrementAndGet();
+				if (winner.compareAndSet(null, c)) {
+					result.complete(response);
+				} else {
+					closeQuietly(response);
+				}
+			}
+
+			@Override
+			public void onFailure(Call<ResponseBody> c, Throwable t) {
+				// only fail if no other call can still succeed
+				if (outstanding.decrementAndGet() == 0) {
+					result.completeExceptionally(t);
+				}
+			}
+		});
+		return call;
+	}
+
+	private static void cancelUnlessWinner(Call<ResponseBody> call, Call<ResponseBody> winner) {
+		// cancelling the winner would abort reading its response body
+		if ((call != null) && (call != winner)) {
+			call.cancel();
+		}
+	}
+
+	private static boolean isRetryable(Response<ResponseBody> response) {
+		return (response.code() == 429) || (response.code() >= 500);
+	}
+
+	private static void closeQuietly(Response<ResponseBody> response) {
+		if (response.body() != null) {
+			response.body().close();
+		}
+		if (response.errorBody() != null) {
+			response.errorBody().close();
+		}
+	}
+
+	/**
+	 * Waits a random time up to an exponentially growing maximum ("full jitter").
+	 */
+	private static void backoff(int attempt) throws InterruptedIOException {
+		long max = Math.min(BACKOFF_MAX, BACKOFF_BASE << attempt);
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(max + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to retry");
+		}
+	}
+
+	/**
+	 * @param endpoint the name of the endpoint
+	 * @return the timeout of a call to the endpoint (ms), derived from its recent latencies
+	 */
+	public long getTimeout(String endpoint) {
+		LatencyTracker tracker = latencies.get(endpoint);
+		return (tracker != null) ? getTimeout(tracker) : maxTimeout;
+	}
+
+	private long getTimeout(LatencyTracker tracker) {
+		if (tracker.getCount() < MIN_SAMPLES) {
+			return maxTimeout;
+		}
+		long timeout = tracker.getPercentile(0.99) * TIMEOUT_FACTOR;
+		return Math.max(TIMEOUT_MIN, Math.min(maxTimeout, timeout));
+	}
+
+	public EState getBreakerState() {
+		return breaker.getState();
+	}
+
+	public long getBreakerOpenCount() {
+		return breaker.getOpenCount();
+	}
+
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+}
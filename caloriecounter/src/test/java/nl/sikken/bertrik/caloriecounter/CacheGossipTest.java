@@ -0,0 +1,53 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.ProductInfo;
+
+/**
+ * Unit test for CacheGossip.
+ */
+public final class CacheGossipTest {
+
+    /**
+     * Verifies that a published product is decoded by other instances, but not by the instance that published it.
+     */
+    @Test
+    public void testEncodeDecode() throws IOException {
+        ProductInfo product = new ProductInfo(true, "Club-Mate \"0,5 l\"", 529.0, 1600000000000L, "etag", null);
+        byte[] payload = CacheGossip.encode("me", product).getBytes(StandardCharsets.UTF_8);
+
+        Assert.assertNull(CacheGossip.decode("me", payload));
+        ProductInfo decoded = CacheGossip.decode("peer", payload);
+        Assert.assertTrue(decoded.isFound());
+        Assert.assertEquals(product.getName(), decoded.getName());
+        Assert.assertEquals(529.0, decoded.getEnergy(), 0.0);
+        Assert.assertEquals(1600000000000L, decoded.getRetrieved());
+
+        // unknown product, without energy
+        payload = CacheGossip.encode("me", ProductInfo.notFound(1600000000000L)).getBytes(StandardCharsets.UTF_8);
+        decoded = CacheGossip.decode("peer", payload);
+        Assert.assertFalse(decoded.isFound());
+        Assert.assertFalse(decoded.hasEnergy());
+    }
+
+    /**
+     * Verifies that other versions of the format are ignored, and broken messages are rejected.
+     */
+    @Test
+    public void testVersion() throws IOException {
+        byte[] future = "{\"v\":2,\"retrieved\":0,\"extra\":{\"a\":[1]}}".getBytes(StandardCharsets.UTF_8);
+        Assert.assertNull(CacheGossip.decode("peer", future));
+        try {
+            CacheGossip.decode("peer", "{\"v\":1,\"found\":true}".getBytes(StandardCharsets.UTF_8));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
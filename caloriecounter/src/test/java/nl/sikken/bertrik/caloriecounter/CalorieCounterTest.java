@@ -1,5 +1,8 @@
 package nl.sikken.bertrik.caloriecounter;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -12,16 +15,17 @@ public final class CalorieCounterTest {
 
 	/**
 	 * @throws MqttException 
+	 * @throws IOException 
 	 * 
 	 */
 	@Ignore
 	@Test
-	public void testCalorieCounter() throws MqttException {
+	public void testCalorieCounter() throws IOException, MqttException {
 		ICalorieCounterConfig config = new CalorieCounterConfig(); 
 		CalorieCounter counter = new CalorieCounter(config);
 		counter.start();
 		try {
-			counter.handleMessage("revspace/bank/sale", "4251097400792");
+			counter.handleMessage("", "revspace/bank/sale", "4251097400792".getBytes(StandardCharsets.US_ASCII));
 		} finally {
 			counter.stop();
 		}
@@ -0,0 +1,72 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.sikken.bertrik.caloriecounter.EnergyAccumulatorTest.ManualClock;
+
+/**
+ * Unit test for Deduplicator.
+ */
+public final class DeduplicatorTest {
+
+    private static final byte[] MATE = "4029764001401".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Verifies that redelivered and retained messages are suppressed, but repeated sales are not.
+     */
+    @Test
+    public void testDuplicates() {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 12, 0));
+        Deduplicator dedup = new Deduplicator(clock, 60000);
+
+        Assert.assertFalse(dedup.isDuplicate("bar1", false, false, MATE));
+        // redelivered, and retained after a resubscribe
+        Assert.assertTrue(dedup.isDuplicate("bar1", true, false, MATE));
+        Assert.assertTrue(dedup.isDuplicate("bar1", false, true, MATE));
+        // another sale of the same product, or a redelivered one from another source
+        Assert.assertFalse(dedup.isDuplicate("bar1", false, false, MATE));
+        Assert.assertFalse(dedup.isDuplicate("bar2", true, false, MATE));
+        Assert.assertEquals(2, dedup.getDuplicateCount());
+
+        // still remembered in the next window, forgotten after that
+        clock.advance(90, TimeUnit.SECONDS);
+        Assert.assertTrue(dedup.isDuplicate("bar1", true, false, MATE));
+        clock.advance(60, TimeUnit.SECONDS);
+        Assert.assertFalse(dedup.isDuplicate("bar1", true, false, MATE));
+    }
+
+    /**
+     * Verifies that a redelivered message is counted if it was not seen before, e.g. as the first delivery was lost
+     * or went to a previous run, but not when redelivered again.
+     */
+    @Test
+    public void testRedeliveredUnseen() {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 12, 0));
+        Deduplicator dedup = new Deduplicator(clock, 60000);
+
+        Assert.assertFalse(dedup.isDuplicate("bar1", true, false, MATE));
+        Assert.assertTrue(dedup.isDuplicate("bar1", true, false, MATE));
+        Assert.assertEquals(1, dedup.getDuplicateCount());
+    }
+
+    /**
+     * Verifies that a retained sale is never counted, also when it was not seen before, e.g. after a restart.
+     */
+    @Test
+    public void testRetained() {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 12, 0));
+        Deduplicator restarted = new Deduplicator(clock, 60000);
+        Assert.assertTrue(restarted.isDuplicate("bar1", false, true, MATE));
+        Assert.assertTrue(restarted.isDuplicate("bar1", true, true, MATE));
+        Assert.assertEquals(2, restarted.getDuplicateCount());
+
+        // unless deduplication is disabled
+        Assert.assertFalse(new Deduplicator(clock, 0).isDuplicate("bar1", false, true, MATE));
+    }
+
+}
@@ -0,0 +1,80 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.sikken.bertrik.caloriecounter.EnergyAccumulator.EWindow;
+
+/**
+ * Unit test for EnergyAccumulator.
+ */
+public final class EnergyAccumulatorTest {
+
+    /**
+     * Clock that only moves when told to.
+     */
+    static final class ManualClock extends Clock {
+        private Instant instant;
+
+        ManualClock(LocalDateTime start) {
+            this.instant = start.toInstant(ZoneOffset.UTC);
+        }
+
+        void advance(long amount, TimeUnit unit) {
+            instant = instant.plusMillis(unit.toMillis(amount));
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+
+    /**
+     * Verifies the windows while time passes, including the daily rollover.
+     */
+    @Test
+    public void testWindows() {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 22, 0));
+        EnergyAccumulator accumulator = new EnergyAccumulator(clock, LocalTime.of(4, 0));
+
+        accumulator.add(100);
+        clock.advance(30, TimeUnit.MINUTES);
+        accumulator.add(200);
+        Assert.assertEquals(300, accumulator.get(EWindow.TODAY), 0.01);
+        Assert.assertEquals(300, accumulator.get(EWindow.LAST_HOUR), 0.01);
+
+        // after midnight it is still the same day
+        clock.advance(3, TimeUnit.HOURS);
+        accumulator.add(400);
+        Assert.assertEquals(700, accumulator.get(EWindow.TODAY), 0.01);
+        Assert.assertEquals(400, accumulator.get(EWindow.LAST_HOUR), 0.01);
+
+        // after the rollover time a new day has started, without any update
+        clock.advance(3, TimeUnit.HOURS);
+        Assert.assertEquals(0, accumulator.get(EWindow.TODAY), 0.01);
+        Assert.assertEquals(700, accumulator.get(EWindow.ROLLING_24H), 0.01);
+
+        clock.advance(1, TimeUnit.DAYS);
+        Assert.assertEquals(0, accumulator.get(EWindow.ROLLING_24H), 0.01);
+    }
+
+}
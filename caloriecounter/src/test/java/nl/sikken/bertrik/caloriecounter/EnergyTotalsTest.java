@@ -0,0 +1,171 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.sikken.bertrik.caloriecounter.EnergyAccumulator.EWindow;
+import nl.sikken.bertrik.caloriecounter.EnergyAccumulatorTest.ManualClock;
+
+/**
+ * Unit test for EnergyTotals.
+ */
+public final class EnergyTotalsTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Verifies the per-source and global totals.
+     */
+    @Test
+    public void testSources() {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 12, 0));
+        File file = new File(tempFolder.getRoot(), "energy.dat");
+        EnergyTotals totals = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        totals.add("bar1", 100);
+        totals.add("bar2", 200);
+        totals.add("bar1", 300);
+
+        Assert.assertEquals(400, totals.get("bar1", EWindow.TODAY), 0.01);
+        Assert.assertEquals(200, totals.get("bar2", EWindow.TODAY), 0.01);
+        Assert.assertEquals(0, totals.get("bar3", EWindow.TODAY), 0.01);
+        Assert.assertEquals(600, totals.getTotal(EWindow.TODAY), 0.01);
+    }
+
+    /**
+     * Verifies that the totals survive a restart.
+     */
+    @Test
+    public void testRestart() throws IOException, InterruptedException {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 12, 0));
+        File file = new File(tempFolder.getRoot(), "energy.dat");
+        EnergyTotals totals = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        totals.start();
+        totals.add("", 123.4);
+        totals.add("bar2", 10);
+        totals.stop();
+        Assert.assertTrue(file.exists());
+
+        clock.advance(10, TimeUnit.MINUTES);
+        EnergyTotals restarted = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        restarted.start();
+        try {
+            restarted.add("", 100);
+            restarted.sync();
+            Assert.assertEquals(223.4, restarted.get("", EWindow.TODAY), 0.01);
+            Assert.assertEquals(233.4, restarted.getTotal(EWindow.TODAY), 0.01);
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    /**
+     * Verifies that the totals survive a crash, through the sale log, also a crash right after a snapshot.
+     */
+    @Test
+    public void testCrash() throws IOException, InterruptedException {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 12, 0));
+        File file = new File(tempFolder.getRoot(), "energy.dat");
+        EnergyTotals totals = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        totals.start();
+        totals.add("", 100);
+        totals.add("bar2", 10);
+        totals.sync();
+
+        // crash, without stop
+        EnergyTotals recovered = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        recovered.start();
+        Assert.assertEquals(110, recovered.getTotal(EWindow.TODAY), 0.01);
+        recovered.add("", 50);
+        recovered.stop();
+
+        // the snapshot now holds everything, replaying the log again must not count sales twice
+        EnergyTotals restarted = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        restarted.start();
+        try {
+            Assert.assertEquals(150, restarted.get("", EWindow.TODAY), 0.01);
+            Assert.assertEquals(160, restarted.getTotal(EWindow.TODAY), 0.01);
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    /**
+     * Verifies that energy is only counted, and the listener is only told, once it is in the sale log on disk.
+     */
+    @Test
+    public void testCountedWhenSynced() throws IOException, InterruptedException {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 12, 0));
+        File file = new File(tempFolder.getRoot(), "energy.dat");
+        EnergyTotals totals = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+        totals.setListener(source -> {
+            // what a crash right now would leave
+            List<Double> recovered = new ArrayList<>();
+            try {
+                new SaleLog(file).replay(0, (sequence, s, energy, time) -> recovered.add(energy));
+            } catch (IOException e) {
+                Assert.fail(e.getMessage());
+            }
+            double sum = recovered.stream().mapToDouble(Double::doubleValue).sum();
+            published.add(source + "=" + Math.round(totals.getTotal(EWindow.TODAY)) + "/" + Math.round(sum));
+        });
+        totals.start();
+        try {
+            totals.add("bar1", 100);
+            totals.add("bar2", 200);
+            totals.add("bar1", 300);
+            totals.sync();
+            Assert.assertEquals(600, totals.getTotal(EWindow.TODAY), 0.01);
+        } finally {
+            totals.stop();
+        }
+
+        // each time, the total counted was no more than the total on disk
+        Assert.assertEquals(3, published.size());
+        for (String entry : published) {
+            String[] totalAndDisk = entry.substring(entry.indexOf('=') + 1).split("/");
+            Assert.assertTrue(entry, Long.parseLong(totalAndDisk[0]) <= Long.parseLong(totalAndDisk[1]));
+        }
+        Assert.assertEquals("bar1=600/600", published.get(2));
+    }
+
+    /**
+     * Verifies that the totals are published again when a new day starts, and as the rolling windows move on.
+     */
+    @Test
+    public void testRollover() {
+        ManualClock clock = new ManualClock(LocalDateTime.of(2020, 1, 1, 23, 50));
+        File file = new File(tempFolder.getRoot(), "energy.dat");
+        EnergyTotals totals = new EnergyTotals(clock, LocalTime.MIDNIGHT, file);
+        List<String> published = new ArrayList<>();
+        totals.setListener(source -> published.add(CalorieCounter.buildPayload(w -> totals.get(source, w),
+                EWindow.TODAY, true)));
+        totals.add("bar1", 100);
+        Assert.assertEquals("{\"today\":100,\"hour\":100,\"24h\":100}", published.get(0));
+        Assert.assertEquals(TimeUnit.MINUTES.toMillis(10), totals.getMillisToRollover());
+
+        // past midnight
+        clock.advance(11, TimeUnit.MINUTES);
+        Assert.assertEquals(TimeUnit.MINUTES.toMillis(1439), totals.getMillisToRollover());
+        totals.refresh();
+        Assert.assertEquals("{\"today\":0,\"hour\":100,\"24h\":100}", published.get(1));
+
+        // an hour later
+        clock.advance(1, TimeUnit.HOURS);
+        totals.refresh();
+        Assert.assertEquals("{\"today\":0,\"hour\":0,\"24h\":100}", published.get(2));
+    }
+
+}
@@ -0,0 +1,29 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.time.Clock;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for MqttListener.
+ */
+public final class MqttListenerTest {
+
+    /**
+     * Verifies that the source of a message is determined from the wildcards in the topic filter.
+     */
+    @Test
+    public void testGetSource() {
+        IMessageReceived callback = (source, topic, message) -> {
+        };
+        Deduplicator dedup = new Deduplicator(Clock.systemUTC(), 0);
+        Assert.assertEquals("", new MqttListener(callback, dedup, "", "tcp://x", "a/b").getSource("a/b"));
+        Assert.assertEquals("bar2",
+                new MqttListener(callback, dedup, "", "tcp://x", "pos/+/sale").getSource("pos/bar2/sale"));
+        Assert.assertEquals("host/bar2/till1",
+                new MqttListener(callback, dedup, "host", "tcp://x", "pos/#").getSource("pos/bar2/till1"));
+        Assert.assertEquals("host", new MqttListener(callback, dedup, "host", "tcp://x", "a/b").getSource("a/b"));
+    }
+
+}
@@ -0,0 +1,77 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.sikken.bertrik.caloriecounter.SaleHistory.Bucket;
+import nl.sikken.bertrik.caloriecounter.SaleHistory.EResolution;
+
+/**
+ * Unit test for SaleHistory.
+ */
+public final class SaleHistoryTest {
+
+    private static final String BAR_CODE = "8710400311720";
+    private static final long DAYS = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Verifies that sales are summed per minute, hour and day, and are kept across a restart.
+     */
+    @Test
+    public void testQuery() throws IOException {
+        long t = Instant.parse("2020-01-31T23:59:30Z").toEpochMilli();
+        SaleHistory history = new SaleHistory(tempFolder.getRoot(), 90 * DAYS);
+        history.start();
+        history.add(t, "bar", BAR_CODE, 100.0);
+        history.add(t + 10000, "bar", BAR_CODE, 200.0);
+        // next minute, hour, day and hour partition
+        history.add(t + 60000, "kitchen", BAR_CODE, 50.5);
+        history.stop();
+
+        SaleHistory reopened = new SaleHistory(tempFolder.getRoot(), 90 * DAYS);
+        List<Bucket> minutes = reopened.query(EResolution.MINUTE, t - 60000, t + 120000);
+        Assert.assertEquals(2, minutes.size());
+        Assert.assertEquals(Instant.parse("2020-01-31T23:59:00Z").toEpochMilli(), minutes.get(0).getStart());
+        Assert.assertEquals(2, minutes.get(0).getCount());
+        Assert.assertEquals(300.0, minutes.get(0).getEnergy(), 0.001);
+        Assert.assertEquals(1, minutes.get(1).getCount());
+        Assert.assertEquals(50.5, minutes.get(1).getEnergy(), 0.001);
+
+        List<Bucket> days = reopened.query(EResolution.DAY, t - 30 * DAYS, t + 30 * DAYS);
+        Assert.assertEquals(2, days.size());
+        Assert.assertEquals(300.0, days.get(0).getEnergy(), 0.001);
+
+        // the end of a range is exclusive
+        Assert.assertEquals(1, reopened.query(EResolution.HOUR, t - DAYS, t + 30000).size());
+    }
+
+    /**
+     * Verifies that individual sales and per-minute totals expire, and the other totals are kept.
+     */
+    @Test
+    public void testExpiry() throws IOException {
+        long t = Instant.parse("2020-01-01T12:00:00Z").toEpochMilli();
+        SaleHistory history = new SaleHistory(tempFolder.getRoot(), 10 * DAYS);
+        history.start();
+        history.add(t, "", BAR_CODE, 100.0);
+        history.add(t + 20 * DAYS, "", BAR_CODE, 100.0);
+        history.stop();
+
+        Assert.assertEquals(1, new File(tempFolder.getRoot(), "raw").list().length);
+        Assert.assertEquals(1, history.query(EResolution.MINUTE, t - DAYS, t + 30 * DAYS).size());
+        Assert.assertEquals(2, history.query(EResolution.HOUR, t - DAYS, t + 30 * DAYS).size());
+        Assert.assertEquals(2, history.query(EResolution.DAY, t - DAYS, t + 30 * DAYS).size());
+    }
+
+}
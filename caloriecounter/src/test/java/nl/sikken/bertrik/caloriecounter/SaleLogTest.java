@@ -0,0 +1,211 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for SaleLog.
+ */
+public final class SaleLogTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Verifies that entries are replayed after the given position, and that a torn entry is cut off.
+     */
+    @Test
+    public void testReplay() throws IOException, InterruptedException {
+        File file = new File(tempFolder.getRoot(), "energy.dat");
+        SaleLog log = new SaleLog(file);
+        log.replay(0, (sequence, source, energy, time) -> Assert.fail());
+        log.start((sequence, source, energy, time) -> {
+        });
+        log.append("bar1", 100, 1000);
+        log.append("bar2", 200, 2000);
+        log.append("bar1", 300, 3000);
+        log.sync();
+        log.stop();
+
+        // a write torn by a crash
+        File[] segments = tempFolder.getRoot().listFiles((dir, name) -> name.endsWith(".log"));
+        Assert.assertEquals(1, segments.length);
+        try (FileOutputStream fos = new FileOutputStream(segments[0], true)) {
+            fos.write(new byte[] {0, 0, 0, 30, 1, 2, 3});
+        }
+
+        List<String> replayed = new ArrayList<>();
+        SaleLog reopened = new SaleLog(file);
+        Assert.assertEquals(2, reopened.replay(1, (sequence, source, energy, time) -> replayed.add(source + "=" + energy)));
+        Assert.assertEquals("[bar2=200.0, bar1=300.0]", replayed.toString());
+        Assert.assertEquals(3, reopened.getLastSequence());
+
+        // the torn entry is gone, new entries are readable after it
+        reopened.start((sequence, source, energy, time) -> {
+        });
+        reopened.append("bar3", 400, 4000);
+        reopened.stop();
+        replayed.clear();
+        Assert.assertEquals(1, new SaleLog(file).replay(3, (sequence, source, energy, time) -> replayed.add(source)));
+        Assert.assertEquals("[bar3]", replayed.toString());
+    }
+
+    /**
+     * Verifies that entries are not passed on while they cannot be written, and are written once without tearing the
+     * segment when writing works again.
+     */
+    @Test
+    public void testWriteFailure() throws IOException, InterruptedException {
+        File file = new File(tempFolder.getRoot(), "energy.dat");
+        AtomicBoolean failing = new AtomicBoolean(true);
+        SaleLog log = new SaleLog(file, f -> new FailingChannel(new FileOutputStream(f, true).getChannel(), failing));
+        log.replay(0, (sequence, source, energy, time) -> Assert.fail());
+        List<String> passed = Collections.synchronizedList(new ArrayList<>());
+        log.start((sequence, source, energy, time) -> passed.add(source));
+        try {
+            log.append("bar1", 100, 1000);
+            try {
+                log.sync();
+                Assert.fail("Expected the sync to fail");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertEquals(Collections.emptyList(), passed);
+
+            failing.set(false);
+            for (int i = 0; (i < 100) && passed.isEmpty(); i++) {
+                Thread.sleep(50);
+            }
+            log.sync();
+            Assert.assertEquals(Arrays.asList("bar1"), passed);
+        } finally {
+            log.stop();
+        }
+
+        // written exactly once
+        List<String> replayed = new ArrayList<>();
+        Assert.assertEquals(1, new SaleLog(file).replay(0, (sequence, source, energy, time) -> replayed.add(source)));
+        Assert.assertEquals("[bar1]", replayed.toString());
+    }
+
+    /**
+     * File channel that writes, but fails to force its writes to disk while failing.
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private final AtomicBoolean failing;
+
+        FailingChannel(FileChannel channel, AtomicBoolean failing) {
+            this.channel = channel;
+            this.failing = failing;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failing.get()) {
+                throw new IOException("Disk failure");
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for SaleMessage.
+ */
+public final class SaleMessageTest {
+
+    private static SaleMessage parse(String payload) {
+        return SaleMessage.parse(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Verifies that a single bar code, lines with quantities and a JSON array are all understood.
+     */
+    @Test
+    public void testFormats() {
+        Assert.assertEquals("[8710400311720]", parse("8710400311720\n").getItems().toString());
+        // bar codes are normalised
+        Assert.assertEquals("[737628064502]", parse("0737628064502").getItems().toString());
+
+        SaleMessage lines = parse("8710400311720*2\r\n\r\n4029764001401 * 1\n");
+        Assert.assertEquals("[8710400311720*2, 4029764001401]", lines.getItems().toString());
+        Assert.assertEquals(0, lines.getInvalidCount());
+
+        SaleMessage json = parse("[\"4029764001401\", {\"code\":\"8710400311720\",\"qty\":3,\"price\":{\"eur\":1}}]");
+        Assert.assertEquals("[4029764001401, 8710400311720*3]", json.getItems().toString());
+        Assert.assertEquals(0, json.getInvalidCount());
+    }
+
+    /**
+     * Verifies that invalid items are left out and counted, and that broken JSON is rejected as a whole.
+     */
+    @Test
+    public void testInvalid() {
+        Assert.assertEquals(1, parse("8710400311721").getInvalidCount());
+
+        SaleMessage lines = parse("8710400311720*0\n8710400311720*x\n8710400311720*1000\n4029764001401");
+        Assert.assertEquals("[4029764001401]", lines.getItems().toString());
+        Assert.assertEquals(3, lines.getInvalidCount());
+
+        SaleMessage json = parse("[\"4029764001401\", {\"qty\":2}, true]");
+        Assert.assertEquals("[4029764001401]", json.getItems().toString());
+        Assert.assertEquals(2, json.getInvalidCount());
+
+        SaleMessage broken = parse("[\"4029764001401\", {\"code\":");
+        Assert.assertTrue(broken.getItems().isEmpty());
+        Assert.assertEquals(1, broken.getInvalidCount());
+    }
+
+}
@@ -0,0 +1,318 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import nl.sikken.bertrik.caloriecounter.jfr.CacheLookupEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.ParseEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.RemoteCallEvent;
+import nl.sikken.bertrik.caloriecounter.jfr.SaleTrace;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.FakeApi;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.IOpenFoodFactsApi;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.OpenFoodFacts;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.RemoteCaller;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.mock.Calls;
+
+/**
+ * Unit test for SalePipeline.
+ */
+public final class SalePipelineTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> resolved = Collections.synchronizedList(new ArrayList<>());
+    private OpenFoodFacts off;
+
+    @Before
+    public void before() throws IOException {
+        // product "11111111" is answered immediately, all others wait for the release latch
+        IOpenFoodFactsApi api = new FakeApi((barCode, etag, lastModified) -> {
+            if (!barCode.equals("11111111")) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String json = "{\"product\":{\"nutriments\":{\"energy_serving\":\"" + barCode.length() + "\"}},\"status\":1}";
+            return Calls.response(ResponseBody.create(MediaType.parse("application/json"), json));
+        });
+        off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+        off.start();
+    }
+
+    @After
+    public void after() {
+        off.stop();
+    }
+
+    /**
+     * Verifies that a sale from memory is reported after an earlier sale that needs a remote lookup.
+     */
+    @Test
+    public void testOrderPreserved() throws Exception {
+        off.lookupProduct("11111111");
+
+        SalePipeline pipeline = new SalePipeline(off, this::addResolved, 2, 10, 10);
+        pipeline.start();
+        pipeline.setReady();
+        try {
+            pipeline.submit("", "2222222222");
+            pipeline.submit("", "11111111");
+            Thread.sleep(100);
+            Assert.assertEquals(Collections.emptyList(), resolved);
+            Assert.assertEquals(1, pipeline.getReorderDepth());
+
+            release.countDown();
+            waitFor(() -> resolved.size() == 2);
+            Assert.assertEquals(Arrays.asList("2222222222", "11111111"), resolved);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * Verifies that a sale from memory is not reported on the thread that submitted it, e.g. the MQTT thread.
+     */
+    @Test
+    public void testReportThread() throws Exception {
+        off.lookupProduct("11111111");
+
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        SalePipeline pipeline = new SalePipeline(off, (source, items) -> threads.add(Thread.currentThread().getName()),
+                1, 10, 10);
+        pipeline.start();
+        pipeline.setReady();
+        try {
+            pipeline.submit("", "11111111");
+            waitFor(() -> threads.size() == 1);
+            Assert.assertEquals(Arrays.asList("report"), threads);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * Verifies that sales are shed when the lookup queue is full.
+     */
+    @Test
+    public void testShedWhenFull() throws Exception {
+        SalePipeline pipeline = new SalePipeline(off, this::addResolved, 1, 1, 10);
+        pipeline.start();
+        pipeline.setReady();
+        try {
+            pipeline.submit("", "2222222222");
+            // wait until the worker picked it up
+            waitFor(() -> pipeline.getQueueDepth() == 0);
+            pipeline.submit("", "3333333333");
+            pipeline.submit("", "4444444444");
+            Assert.assertEquals(1, pipeline.getShedCount());
+
+            release.countDown();
+            waitFor(() -> resolved.size() == 2);
+            Assert.assertEquals(Arrays.asList("2222222222", "3333333333"), resolved);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * Verifies that a sale with a failed lookup is counted after all, once a retried lookup succeeds.
+     */
+    @Test
+    public void testRetryPending() throws Exception {
+        AtomicBoolean online = new AtomicBoolean();
+        IOpenFoodFactsApi api = new FakeApi((barCode, etag, lastModified) -> {
+            if (!online.get()) {
+                return Calls.failure(new IOException("offline"));
+            }
+            String json = "{\"product\":{\"nutriments\":{\"energy_serving\":\"529\"}},\"status\":1}";
+            return Calls.response(ResponseBody.create(MediaType.parse("application/json"), json));
+        });
+        RemoteCaller remote = new RemoteCaller(3000, 0, false, 5, 60000);
+        OpenFoodFacts offline = new OpenFoodFacts(api, remote, tempFolder.newFolder(), 100, 1024 * 1024, 3600000,
+                60000);
+        offline.start();
+        SalePipeline pipeline = new SalePipeline(offline, this::addResolved, 1, 10,
+                10);
+        pipeline.start();
+        pipeline.setReady();
+        try {
+            pipeline.submit("", "4029764001401");
+            waitFor(() -> pipeline.getPendingDepth() == 1);
+            Assert.assertEquals(Collections.emptyList(), resolved);
+
+            // still offline, stays pending
+            pipeline.retryPending();
+            Assert.assertEquals(1, pipeline.getPendingDepth());
+
+            online.set(true);
+            pipeline.retryPending();
+            waitFor(() -> resolved.size() == 1);
+            Assert.assertEquals(Arrays.asList("4029764001401"), resolved);
+            Assert.assertEquals(0, pipeline.getPendingDepth());
+            Assert.assertEquals(1, pipeline.getRecreditCount());
+        } finally {
+            pipeline.stop();
+            offline.stop();
+        }
+    }
+
+    /**
+     * Verifies that sales are held until the lookup layer is ready, and then reported in order.
+     */
+    @Test
+    public void testReady() throws Exception {
+        off.lookupProduct("11111111");
+        release.countDown();
+
+        SalePipeline pipeline = new SalePipeline(off, this::addResolved, 2, 10, 10);
+        pipeline.start();
+        try {
+            pipeline.submit("", "2222222222");
+            pipeline.submit("", "11111111");
+            Thread.sleep(100);
+            Assert.assertEquals(Collections.emptyList(), resolved);
+            Assert.assertEquals(2, pipeline.getQueueDepth());
+
+            pipeline.setReady();
+            waitFor(() -> resolved.size() == 2);
+            Assert.assertEquals(Arrays.asList("2222222222", "11111111"), resolved);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * Verifies that no sale is shed while waiting for the lookup layer, even when more sales arrive than fit in the
+     * lookup queue.
+     */
+    @Test
+    public void testBurstBeforeReady() throws Exception {
+        release.countDown();
+
+        SalePipeline pipeline = new SalePipeline(off, this::addResolved, 1, 2, 10);
+        pipeline.start();
+        try {
+            List<String> barCodes = Arrays.asList("2222222222", "3333333333", "4444444444", "5555555555", "66666666");
+            for (String barCode : barCodes) {
+                pipeline.submit("", barCode);
+            }
+            Assert.assertEquals(0, pipeline.getShedCount());
+            Assert.assertEquals(5, pipeline.getQueueDepth());
+
+            pipeline.setReady();
+            waitFor(() -> resolved.size() == 5);
+            Assert.assertEquals(barCodes, resolved);
+            Assert.assertEquals(0, pipeline.getShedCount());
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * Verifies that the trace id of a sale is set while it is looked up on a worker and while it is reported, so the
+     * flight recorder events of the sale carry it.
+     */
+    @Test
+    public void testTrace() throws Exception {
+        release.countDown();
+        List<Long> traced = Collections.synchronizedList(new ArrayList<>());
+        SalePipeline pipeline = new SalePipeline(off, (source, items) -> traced.add(SaleTrace.current()), 1,
+                10, 10);
+        pipeline.start();
+        pipeline.setReady();
+        try (Recording recording = new Recording()) {
+            recording.enable(CacheLookupEvent.class);
+            recording.enable(ParseEvent.class);
+            recording.enable(RemoteCallEvent.class);
+            recording.start();
+            long previous = SaleTrace.set(42);
+            pipeline.submit("", "2222222222");
+            SaleTrace.set(previous);
+            waitFor(() -> traced.size() == 1);
+            recording.stop();
+            Assert.assertEquals(Arrays.asList(42L), traced);
+
+            Path file = tempFolder.newFile("trace.jfr").toPath();
+            recording.dump(file);
+            List<String> stages = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                Assert.assertEquals(42L, event.getLong("saleId"));
+                String name = event.getEventType().getName();
+                stages.add(name.equals("caloriecounter.CacheLookup") ? event.getString("tier") : name);
+            }
+            // in memory, in the store, then remote, in no particular order in the recording
+            Collections.sort(stages);
+            Assert.assertEquals(Arrays.asList("caloriecounter.Parse", "caloriecounter.RemoteCall", "memory", "store"),
+                    stages);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * Verifies that the items of a basket are looked up from memory first and then with a single remote call, and are
+     * reported together.
+     */
+    @Test
+    public void testBasket() throws Exception {
+        off.lookupProduct("11111111");
+        release.countDown();
+
+        List<List<SaleItem>> sales = Collections.synchronizedList(new ArrayList<>());
+        SalePipeline pipeline = new SalePipeline(off, (source, items) -> sales.add(items), 1, 10, 10);
+        pipeline.start();
+        pipeline.setReady();
+        try {
+            long lookups = off.getLookupCount();
+            pipeline.submit("bar", Arrays.asList(new SaleItem("11111111", 2), new SaleItem("2222222222", 1),
+                    new SaleItem("333333333333", 3)));
+            waitFor(() -> sales.size() == 1);
+            Assert.assertEquals("[11111111*2, 2222222222, 333333333333*3]", sales.get(0).toString());
+            Assert.assertEquals(16.0, sales.get(0).get(0).getTotalEnergy(), 0.001);
+            Assert.assertEquals(36.0, sales.get(0).get(2).getTotalEnergy(), 0.001);
+            // the two products not in memory were looked up together
+            Assert.assertEquals(lookups + 2, off.getLookupCount());
+            Assert.assertEquals(0, off.getCoalescedCount());
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    private void addResolved(String source, List<SaleItem> items) {
+        for (SaleItem item : items) {
+            resolved.add(item.getBarCode());
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; (i < 100) && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+}
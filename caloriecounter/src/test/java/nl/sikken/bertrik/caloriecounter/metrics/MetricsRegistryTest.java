@@ -0,0 +1,56 @@
+package nl.sikken.bertrik.caloriecounter.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for MetricsRegistry.
+ */
+public final class MetricsRegistryTest {
+
+    /**
+     * Verifies the Prometheus text format of a counter, a gauge and a labelled histogram.
+     *
+     * @throws IOException in case of a problem writing
+     */
+    @Test
+    public void testPrometheus() throws IOException {
+        Histogram ok = new Histogram();
+        ok.record(TimeUnit.MILLISECONDS.toNanos(2));
+        ok.record(TimeUnit.MILLISECONDS.toNanos(200));
+        Map<String, Histogram> histograms = new TreeMap<>();
+        histograms.put("ok", ok);
+
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "A counter", () -> 42);
+        registry.gauge("test_depth", "A gauge", () -> 1.5);
+        registry.histogram("test_seconds", "A histogram", "outcome", histograms);
+
+        StringBuilder sb = new StringBuilder();
+        registry.writePrometheus(sb);
+        String text = sb.toString();
+
+        Assert.assertTrue(text.contains("# TYPE test_total counter\ntest_total 42\n"));
+        Assert.assertTrue(text.contains("# TYPE test_depth gauge\ntest_depth 1.5\n"));
+        Assert.assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{outcome=\"ok\",le=\"0.001\"} 0\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{outcome=\"ok\",le=\"0.005\"} 1\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{outcome=\"ok\",le=\"+Inf\"} 2\n"));
+        Assert.assertTrue(text.contains("test_seconds_count{outcome=\"ok\"} 2\n"));
+
+        // outcomes that appear later are reported too
+        histograms.put("timeout", new Histogram());
+        sb.setLength(0);
+        registry.writePrometheus(sb);
+        Assert.assertTrue(sb.toString().contains("test_seconds_count{outcome=\"timeout\"} 0\n"));
+
+        Assert.assertEquals(42.0, registry.snapshot().get("test_total").doubleValue(), 0.0);
+        Assert.assertEquals(2L, registry.snapshot().get("test_seconds_ok_count").longValue());
+    }
+
+}
@@ -0,0 +1,58 @@
+package nl.sikken.bertrik.caloriecounter.metrics;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.sikken.bertrik.caloriecounter.metrics.SpaceSaving.Counter;
+
+/**
+ * Unit test for SpaceSaving.
+ */
+public final class SpaceSavingTest {
+
+    /**
+     * Verifies that frequent items are found among many rare ones, with counts that are not underestimated.
+     */
+    @Test
+    public void testTop() {
+        SpaceSaving top = new SpaceSaving(20);
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            if ((i % 5) == 0) {
+                top.add("mate", 1.0);
+            } else if ((i % 10) == 1) {
+                top.add("cola", 1.0);
+            } else {
+                top.add("rare" + random.nextInt(5000), 1.0);
+            }
+        }
+
+        List<Counter> counters = top.getTop(2);
+        Assert.assertEquals(2, counters.size());
+        Assert.assertEquals("mate", counters.get(0).getItem());
+        Assert.assertEquals("cola", counters.get(1).getItem());
+        Assert.assertTrue(counters.get(0).getCount() >= 2000);
+        Assert.assertTrue((counters.get(0).getCount() - counters.get(0).getError()) <= 2000);
+    }
+
+    /**
+     * Verifies that weights are summed.
+     */
+    @Test
+    public void testWeights() {
+        SpaceSaving top = new SpaceSaving(10);
+        top.add("mate", 529);
+        top.add("cola", 600);
+        top.add("mate", 529);
+
+        List<Counter> counters = top.getTop(10);
+        Assert.assertEquals(2, counters.size());
+        Assert.assertEquals("mate", counters.get(0).getItem());
+        Assert.assertEquals(1058, counters.get(0).getCount(), 0.01);
+        Assert.assertEquals(0, counters.get(0).getError(), 0.01);
+    }
+
+}
@@ -0,0 +1,150 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for DumpImporter.
+ */
+public final class DumpImporterTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private ProductStore store;
+	private BloomFilter filter;
+
+	@Before
+	public void before() throws IOException {
+		store = new ProductStore(tempFolder.newFolder("store"), 1024 * 1024);
+		store.open();
+		filter = BloomFilter.create(1000, 0.01);
+	}
+
+	@After
+	public void after() {
+		store.close();
+	}
+
+	/**
+	 * Verifies import of a gzipped JSONL dump.
+	 */
+	@Test
+	public void testImportJsonGzip() throws IOException {
+		String dump = "{\"code\":\"11111115\",\"product_name\":\"Cola\",\"nutriments\":{\"energy_serving\":180}}\n"
+				+ "{\"code\":\"22222220\",\"categories\":[\"a\",\"b\"],\"nutriments\":{}}\n"
+				+ "{\"code\":\"33333335\",\"nutriments\":{\"energy_serving\":\"900\"},\"product_name\":\"Mars\"}\n"
+				+ "{\"code\":\"0737628064502\",\"nutriments\":{\"energy_serving\":1297}}\n"
+				+ "{\"code\":\"12345678\",\"nutriments\":{\"energy_serving\":1}}\n";
+		File file = tempFolder.newFile("dump.jsonl.gz");
+		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(file))) {
+			os.write(dump.getBytes(StandardCharsets.UTF_8));
+		}
+
+		Assert.assertEquals(5, new DumpImporter(store, filter, 512 * 1024).importFile(file));
+
+		// only products with energy and a valid bar code are stored, under the normalised bar code
+		Assert.assertEquals(3, store.size());
+		Assert.assertTrue(store.contains("737628064502"));
+		ProductInfo cola = ProductInfo.decode(store.get("11111115"), 0);
+		Assert.assertEquals("Cola", cola.getName());
+		Assert.assertEquals(180.0, cola.getEnergy(), 0.1);
+		Assert.assertEquals(900.0, ProductInfo.decode(store.get("33333335"), 0).getEnergy(), 0.1);
+
+		// but all are known
+		Assert.assertTrue(filter.mightContain("11111115"));
+		Assert.assertTrue(filter.mightContain("22222220"));
+		Assert.assertTrue(filter.mightContain("33333335"));
+		Assert.assertFalse(filter.mightContain("44444440"));
+	}
+
+	/**
+	 * Verifies import of a CSV dump, energy per serving is calculated from energy per 100 g and serving size.
+	 */
+	@Test
+	public void testImportCsv() throws IOException {
+		String dump = "code\turl\tproduct_name\tserving_quantity\tenergy-kj_100g\n"
+				+ "11111115\thttp://x\tCola\t330\t180\n"
+				+ "22222220\thttp://y\t\t\t\n"
+				+ "33333335\n";
+		File file = tempFolder.newFile("dump.csv");
+		Files.write(file.toPath(), dump.getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertEquals(3, new DumpImporter(store, filter, 512 * 1024).importFile(file));
+
+		Assert.assertEquals(1, store.size());
+		ProductInfo cola = ProductInfo.decode(store.get("11111115"), 0);
+		Assert.assertEquals("Cola", cola.getName());
+		Assert.assertEquals(594.0, cola.getEnergy(), 0.1);
+		Assert.assertTrue(filter.mightContain("22222220"));
+		Assert.assertTrue(filter.mightContain("33333335"));
+	}
+
+	/**
+	 * Verifies that products are only stored up to the budget, with the oldest time stamp, but all are known.
+	 */
+	@Test
+	public void testImportBudget() throws IOException {
+		StringBuilder dump = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			dump.append("{\"code\":\"").append(ean8(1000000 + i)).append("\",\"nutriments\":{\"energy_serving\":")
+					.append(i).append("}}\n");
+		}
+		File file = tempFolder.newFile("dump.jsonl");
+		Files.write(file.toPath(), dump.toString().getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertEquals(100, new DumpImporter(store, filter, 1000).importFile(file));
+
+		Assert.assertTrue(store.size() > 0);
+		Assert.assertTrue(store.size() < 100);
+		Assert.assertTrue(store.getTotalBytes() < 1100);
+		Assert.assertEquals(DumpImporter.IMPORTED, store.getTimestamp(ean8(1000000)));
+		Assert.assertTrue(filter.mightContain(ean8(1000099)));
+	}
+
+	/**
+	 * Verifies that the filter never forgets an item, and survives a save and load.
+	 */
+	@Test
+	public void testFilterSaveLoad() throws IOException {
+		for (int i = 0; i < 1000; i++) {
+			filter.add(Integer.toString(i));
+		}
+		File file = tempFolder.newFile("filter.bloom");
+		filter.save(file);
+		BloomFilter loaded = BloomFilter.load(file);
+		int falsePositives = 0;
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(loaded.mightContain(Integer.toString(i)));
+			if (loaded.mightContain(Integer.toString(-1 - i))) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue(falsePositives < 50);
+	}
+
+	/**
+	 * @return the EAN-8 bar code of a 7-digit number, with its check digit
+	 */
+	private static String ean8(int number) {
+		String digits = Integer.toString(number);
+		int sum = 0;
+		for (int i = 0; i < digits.length(); i++) {
+			sum += (digits.charAt(i) - '0') * (((i % 2) == 0) ? 3 : 1);
+		}
+		return digits + ((10 - (sum % 10)) % 10);
+	}
+
+}
@@ -0,0 +1,73 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.mock.Calls;
+
+/**
+ * Fake OpenFoodFacts API for unit tests.
+ *
+ * Product requests are answered by a function, searches are answered by combining the answers of that function for
+ * each requested bar code.
+ */
+public final class FakeApi implements IOpenFoodFactsApi {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final IProductCall productCall;
+
+	/**
+	 * Answers a single product request.
+	 */
+	public interface IProductCall {
+		Call<ResponseBody> getProductInfo(String barCode, String etag, String lastModified);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param productCall the function answering product requests
+	 */
+	public FakeApi(IProductCall productCall) {
+		this.productCall = productCall;
+	}
+
+	@Override
+	public Call<ResponseBody> getProductInfo(String barCode, String etag, String lastModified) {
+		return productCall.getProductInfo(barCode, etag, lastModified);
+	}
+
+	@Override
+	public Call<ResponseBody> searchProducts(String barCodes, int pageSize) {
+		ObjectNode root = MAPPER.createObjectNode();
+		ArrayNode products = root.putArray("products");
+		try {
+			for (String barCode : barCodes.split(",")) {
+				Response<ResponseBody> response = productCall.getProductInfo(barCode, null, null).execute();
+				if (!response.isSuccessful()) {
+					continue;
+				}
+				JsonNode node = MAPPER.readTree(response.body().byteStream());
+				if (node.path("status").asInt() == 1) {
+					ObjectNode product = (ObjectNode) node.get("product");
+					product.put("code", barCode);
+					products.add(product);
+				}
+			}
+		} catch (IOException e) {
+			return Calls.failure(e);
+		}
+		root.put("count", products.size());
+		return Calls.response(ResponseBody.create(MediaType.parse("application/json"), root.toString()));
+	}
+
+}
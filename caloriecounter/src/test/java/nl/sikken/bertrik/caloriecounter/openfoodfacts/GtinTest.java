@@ -0,0 +1,54 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for Gtin.
+ */
+public final class GtinTest {
+
+	/**
+	 * Verifies that valid bar codes of all lengths are decoded, and that variants of the same GTIN get one key.
+	 */
+	@Test
+	public void testDecodeValid() {
+		Assert.assertEquals(737628064502L, decode("737628064502"));
+		Assert.assertEquals(737628064502L, decode("0737628064502"));
+		Assert.assertEquals(737628064502L, decode("00737628064502"));
+		Assert.assertEquals(96385074L, decode("96385074"));
+		Assert.assertEquals(4251097400792L, decode("4251097400792\n"));
+	}
+
+	/**
+	 * Verifies that misreads and non-bar codes are rejected.
+	 */
+	@Test
+	public void testDecodeInvalid() {
+		Assert.assertEquals(Gtin.INVALID, decode("737628064503"));
+		Assert.assertEquals(Gtin.INVALID, decode("73762806450"));
+		Assert.assertEquals(Gtin.INVALID, decode("7376280645x2"));
+		Assert.assertEquals(Gtin.INVALID, decode("-96385074"));
+		Assert.assertEquals(Gtin.INVALID, decode(""));
+	}
+
+	@Test
+	public void testFormat() {
+		Assert.assertEquals("737628064502", Gtin.format(decode("0737628064502")));
+		Assert.assertEquals("96385074", Gtin.format(decode("96385074")));
+		Assert.assertEquals("4251097400792", Gtin.format(decode("4251097400792")));
+		Assert.assertEquals("10012345678902", Gtin.format(decode("10012345678902")));
+	}
+
+	/**
+	 * Decodes from bytes, and verifies that parsing the string gives the same.
+	 */
+	private static long decode(String text) {
+		long gtin = Gtin.decode(text.getBytes(StandardCharsets.US_ASCII));
+		Assert.assertEquals(gtin, Gtin.parse(text));
+		return gtin;
+	}
+
+}
@@ -1,7 +1,21 @@
 package nl.sikken.bertrik.caloriecounter.openfoodfacts;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -14,6 +28,15 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.mock.Calls;
+
 /**
  * Unit test for OpenFoodFacts.java
  */
@@ -33,7 +56,7 @@ public final class OpenFoodFactsTest {
 	public void testRetrieve() throws IOException {
 		String url = "https://world.openfoodfacts.org";
 		IOpenFoodFactsApi api = OpenFoodFacts.newRestClient(url, 3000);
-		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot());
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
 		off.start();
 		try {
 			Double d1 = off.processBarCode("4029764001401");
@@ -54,6 +77,269 @@ public final class OpenFoodFactsTest {
 		Assert.assertNotNull(node);
 	}
 	
+	/**
+	 * Verifies that the old file-per-product cache is imported into the store, skipping unusable files.
+	 */
+	@Test
+	public void testImportCacheDir() throws IOException {
+		File cacheDir = tempFolder.newFolder("cache");
+		try (InputStream is = getClass().getClassLoader().getResourceAsStream("737628064502.json")) {
+			Files.copy(is, new File(cacheDir, "737628064502.json").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.write(new File(cacheDir, "123456789012.json").toPath(), "null".getBytes(StandardCharsets.US_ASCII));
+
+		IOpenFoodFactsApi api =
+				new FakeApi((barCode, etag, lastModified) -> Calls.failure(new IOException("offline")));
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+		off.start();
+		try {
+			Assert.assertEquals(1297, off.processBarCode("737628064502"), 0.1);
+			Assert.assertFalse(cacheDir.exists());
+		} finally {
+			off.stop();
+		}
+	}
+
+	/**
+	 * Verifies that concurrent lookups of the same product result in a single remote call.
+	 */
+	@Test
+	public void testCoalesceLookups() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		IOpenFoodFactsApi api = new FakeApi((barCode, etag, lastModified) -> {
+			calls.incrementAndGet();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String json = "{\"product\":{\"nutriments\":{\"energy_serving\":\"529\"}},\"status\":1}";
+			return Calls.response(ResponseBody.create(MediaType.parse("application/json"), json));
+		});
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+		off.start();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<ProductInfo>> futures = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				futures.add(executor.submit(() -> off.lookupProduct("4029764001401")));
+			}
+			while (off.getCoalescedCount() < 2) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+			for (Future<ProductInfo> future : futures) {
+				Assert.assertEquals(529, future.get().getEnergy(), 0.1);
+			}
+			Assert.assertEquals(1, calls.get());
+			Assert.assertEquals(1, off.getLookupCount());
+		} finally {
+			executor.shutdown();
+			off.stop();
+		}
+	}
+
+	/**
+	 * Verifies that an unknown product is remembered (also across a restart) until its TTL expires.
+	 */
+	@Test
+	public void testNegativeCache() throws IOException, InterruptedException {
+		AtomicInteger calls = new AtomicInteger();
+		IOpenFoodFactsApi api = new FakeApi((barCode, etag, lastModified) -> {
+			calls.incrementAndGet();
+			String json = "{\"code\":\"" + barCode + "\",\"status\":0,\"status_verbose\":\"product not found\"}";
+			return Calls.response(ResponseBody.create(MediaType.parse("application/json"), json));
+		});
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+		off.start();
+		try {
+			Assert.assertEquals(0.0, off.processBarCode("12345670"), 0.0);
+			Assert.assertFalse(off.lookupProduct("12345670").isFound());
+			Assert.assertEquals(1, calls.get());
+			Assert.assertEquals(1, off.getNegativeHitCount());
+		} finally {
+			off.stop();
+		}
+
+		// survives a restart
+		off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+		off.start();
+		try {
+			off.processBarCode("12345670");
+			Assert.assertEquals(1, calls.get());
+		} finally {
+			off.stop();
+		}
+
+		// asks again after expiry
+		off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 1);
+		off.start();
+		try {
+			Thread.sleep(10);
+			off.processBarCode("12345670");
+			Assert.assertEquals(2, calls.get());
+		} finally {
+			off.stop();
+		}
+	}
+
+	/**
+	 * Verifies that a stale product is served immediately and refreshed with a conditional request.
+	 */
+	@Test
+	public void testStaleWhileRevalidate() throws IOException, InterruptedException {
+		List<String> etags = new ArrayList<>();
+		IOpenFoodFactsApi api = new FakeApi((barCode, etag, lastModified) -> {
+			etags.add(etag);
+			if ("v1".equals(etag)) {
+				okhttp3.Response raw = new okhttp3.Response.Builder().code(304).message("Not Modified")
+						.protocol(Protocol.HTTP_1_1).request(new Request.Builder().url("http://localhost/").build())
+						.build();
+				return Calls.response(Response.<ResponseBody>error(ResponseBody.create(null, ""), raw));
+			}
+			String json = "{\"product\":{\"nutriments\":{\"energy_serving\":\"529\"}},\"status\":1}";
+			ResponseBody body = ResponseBody.create(MediaType.parse("application/json"), json);
+			return Calls.response(Response.success(body, Headers.of("ETag", "v1")));
+		});
+		// everything goes stale after 1 ms
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 1, 60000);
+		off.start();
+		try {
+			Assert.assertEquals(529, off.processBarCode("4029764001401"), 0.1);
+			Thread.sleep(10);
+
+			// stale product is served from memory, refresh happens in the background
+			Assert.assertEquals(529, off.getCachedProduct("4029764001401").getEnergy(), 0.1);
+			for (int i = 0; (i < 100) && (off.getNotModifiedCount() == 0); i++) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, off.getNotModifiedCount());
+			Assert.assertEquals(Arrays.asList(null, "v1"), etags);
+		} finally {
+			off.stop();
+		}
+	}
+
+	/**
+	 * Verifies that several unknown products are retrieved with a single remote call, products that are absent from
+	 * the response are remembered as unknown.
+	 */
+	@Test
+	public void testLookupProducts() throws IOException {
+		AtomicInteger searches = new AtomicInteger();
+		IOpenFoodFactsApi delegate = new FakeApi((barCode, etag, lastModified) -> {
+			if (!barCode.equals("4029764001401")) {
+				okhttp3.Response raw = new okhttp3.Response.Builder().code(404).message("Not Found")
+						.protocol(Protocol.HTTP_1_1).request(new Request.Builder().url("http://localhost/").build())
+						.build();
+				return Calls.response(Response.<ResponseBody>error(ResponseBody.create(null, ""), raw));
+			}
+			String json = "{\"product\":{\"nutriments\":{\"energy_serving\":\"529\"}},\"status\":1}";
+			return Calls.response(ResponseBody.create(MediaType.parse("application/json"), json));
+		});
+		IOpenFoodFactsApi api = new IOpenFoodFactsApi() {
+			@Override
+			public Call<ResponseBody> getProductInfo(String barCode, String etag, String lastModified) {
+				return delegate.getProductInfo(barCode, etag, lastModified);
+			}
+
+			@Override
+			public Call<ResponseBody> searchProducts(String barCodes, int pageSize) {
+				searches.incrementAndGet();
+				return delegate.searchProducts(barCodes, pageSize);
+			}
+		};
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+		off.start();
+		try {
+			Map<String, ProductInfo> products = off.lookupProducts(Arrays.asList("4029764001401", "12345670"));
+			Assert.assertEquals(1, searches.get());
+			Assert.assertEquals(529, products.get("4029764001401").getEnergy(), 0.1);
+			Assert.assertFalse(products.get("12345670").isFound());
+			Assert.assertNotNull(off.getCachedProduct("12345670"));
+
+			// a single unknown product is retrieved by itself, its 404 means unknown
+			Assert.assertFalse(off.lookupProduct("11111115").isFound());
+			Assert.assertEquals(1, searches.get());
+		} finally {
+			off.stop();
+		}
+	}
+
+	/**
+	 * Verifies that retrieved products are offered for sharing, and that shared products are used without a remote
+	 * call unless they are older than the ones we have.
+	 */
+	@Test
+	public void testShareProduct() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		IOpenFoodFactsApi api = new FakeApi((barCode, etag, lastModified) -> {
+			calls.incrementAndGet();
+			String json = "{\"product\":{\"nutriments\":{\"energy_serving\":\"529\"}},\"status\":1}";
+			return Calls.response(ResponseBody.create(MediaType.parse("application/json"), json));
+		});
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+		List<String> retrieved = new ArrayList<>();
+		off.setRetrievedListener((barCode, product) -> retrieved.add(barCode));
+		off.start();
+		try {
+			long now = System.currentTimeMillis();
+			Assert.assertTrue(off.shareProduct("12345670", new ProductInfo(true, "mate", 300.0, now - 1000)));
+			Assert.assertEquals(300.0, off.processBarCode("12345670"), 0.1);
+			Assert.assertEquals(0, calls.get());
+
+			// an older or equal retrieval does not overwrite, a newer one does
+			Assert.assertFalse(off.shareProduct("12345670", new ProductInfo(true, "mate", 200.0, now - 2000)));
+			Assert.assertFalse(off.shareProduct("12345670", new ProductInfo(true, "mate", 200.0, now - 1000)));
+			Assert.assertTrue(off.shareProduct("12345670", new ProductInfo(true, "mate", 310.0, now)));
+			Assert.assertEquals(310.0, off.processBarCode("12345670"), 0.1);
+			Assert.assertEquals(2, off.getSharedRejectCount());
+
+			// a remote retrieval is offered for sharing, a shared product is not
+			Assert.assertEquals(529, off.processBarCode("4029764001401"), 0.1);
+			Assert.assertEquals(Arrays.asList("4029764001401"), retrieved);
+			Assert.assertFalse(off.shareProduct("4029764001401", new ProductInfo(true, "club", 100.0, now - 1000)));
+		} finally {
+			off.stop();
+		}
+	}
+
+	/**
+	 * Verifies that an imported product is used without a remote call, and that a product not in the dump is asked
+	 * for remotely, but not more than once in a short time.
+	 */
+	@Test
+	public void testImportDump() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		IOpenFoodFactsApi api = new FakeApi((barCode, etag, lastModified) -> {
+			calls.incrementAndGet();
+			String json = "{\"product\":{\"nutriments\":{\"energy_serving\":\"529\"}},\"status\":1}";
+			return Calls.response(ResponseBody.create(MediaType.parse("application/json"), json));
+		});
+		File dump = tempFolder.newFile("dump.jsonl");
+		Files.write(dump.toPath(),
+				"{\"code\":\"12345670\",\"nutriments\":{\"energy_serving\":300}}\n".getBytes(StandardCharsets.UTF_8));
+		OpenFoodFacts off = new OpenFoodFacts(api, tempFolder.getRoot(), 100, 1024 * 1024, 3600000, 60000);
+		off.importDump(dump);
+		off.start();
+		try {
+			Assert.assertEquals(300.0, off.processBarCode("12345670"), 0.1);
+			Assert.assertEquals(0, calls.get());
+
+			// newer than the dump
+			Assert.assertEquals(529.0, off.processBarCode("4029764001401"), 0.1);
+			Assert.assertEquals(1, calls.get());
+
+			// rejected, as another product not in the dump was just asked for
+			Assert.assertEquals(0.0, off.processBarCode("96385074"), 0.1);
+			Assert.assertEquals(1, calls.get());
+			Assert.assertEquals(1, off.getFilterRejectCount());
+		} finally {
+			off.stop();
+		}
+	}
+
 	@Test
 	public void testDouble() {
 		Double d = Double.parseDouble("529");
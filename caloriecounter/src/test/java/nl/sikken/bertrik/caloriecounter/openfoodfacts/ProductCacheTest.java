@@ -0,0 +1,58 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for ProductCache.
+ */
+public final class ProductCacheTest {
+
+	@Test
+	public void testHitMiss() {
+		ProductCache cache = new ProductCache(10);
+		Assert.assertNull(cache.get("4029764001401"));
+		cache.put("4029764001401", new ProductInfo(true, "Club-Mate Granat", 529.0, 0));
+		ProductInfo product = cache.get("4029764001401");
+		Assert.assertNotNull(product);
+		Assert.assertEquals(529.0, product.getEnergy(), 0.1);
+
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		ProductCache cache = new ProductCache(2);
+		cache.put("1", new ProductInfo(true, "one", 1.0, 0));
+		cache.put("2", new ProductInfo(true, "two", 2.0, 0));
+		// touch the first one, so the second one is evicted
+		cache.get("1");
+		cache.put("3", new ProductInfo(true, "three", 3.0, 0));
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertNotNull(cache.get("1"));
+		Assert.assertNull(cache.get("2"));
+		Assert.assertNotNull(cache.get("3"));
+	}
+
+	@Test
+	public void testPinned() {
+		ProductCache cache = new ProductCache(2);
+		cache.pin(Arrays.asList("1"));
+		cache.put("1", new ProductInfo(true, "one", 1.0, 0));
+		cache.put("2", new ProductInfo(true, "two", 2.0, 0));
+		// the first one is least recently used, but pinned
+		cache.put("3", new ProductInfo(true, "three", 3.0, 0));
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNotNull(cache.peek("1"));
+		Assert.assertNull(cache.peek("2"));
+		Assert.assertNotNull(cache.peek("3"));
+	}
+
+}
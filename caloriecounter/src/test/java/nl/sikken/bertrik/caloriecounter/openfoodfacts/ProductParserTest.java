@@ -0,0 +1,100 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for ProductParser.
+ */
+public final class ProductParserTest {
+
+	@Test
+	public void testParseFull() throws IOException {
+		ProductInfo product = parseResource("737628064502.json");
+		Assert.assertEquals("Stir-Fry Rice Noodles", product.getName());
+		Assert.assertEquals(1297, product.getEnergy(), 0.1);
+	}
+
+	@Test
+	public void testParseNoEnergy() throws IOException {
+		String json = "{\"product\":{\"product_name\":\"Club-Mate Granat\",\"nutriments\":{\"energy_serving\":\"\","
+				+ "\"energy_100g\":\"95\"}},\"status\":1}";
+		ProductInfo product = ProductParser.parse(json.getBytes(StandardCharsets.UTF_8), 0);
+		Assert.assertTrue(product.isFound());
+		Assert.assertEquals("Club-Mate Granat", product.getName());
+		Assert.assertFalse(product.hasEnergy());
+	}
+
+	@Test
+	public void testParseNotFound() throws IOException {
+		String json = "{\"code\":\"1234567890123\",\"status\":0,\"status_verbose\":\"product not found\"}";
+		ProductInfo product = ProductParser.parse(json.getBytes(StandardCharsets.UTF_8), 0);
+		Assert.assertFalse(product.isFound());
+		Assert.assertNull(product.getName());
+		Assert.assertFalse(product.hasEnergy());
+	}
+
+	@Test
+	public void testParseNumericEnergy() throws IOException {
+		String json = "{\"product\":{\"nutriments\":{\"energy_serving\":529}},\"status\":1}";
+		ProductInfo product = ProductParser.parse(json.getBytes(StandardCharsets.UTF_8), 0);
+		Assert.assertEquals(529, product.getEnergy(), 0.1);
+	}
+
+	@Test
+	public void testParseSearch() throws IOException {
+		String json = "{\"count\":2,\"page\":1,\"products\":[{\"code\":\"0737628064502\",\"nutriments\":"
+				+ "{\"energy_serving\":1297},\"product_name\":\"Stir-Fry Rice Noodles\"},"
+				+ "{\"code\":\"4029764001401\",\"nutriments\":{}}]}";
+		Map<String, ProductInfo> products =
+				ProductParser.parseSearch(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), 0);
+		Assert.assertEquals(2, products.size());
+		Assert.assertEquals(1297, products.get("737628064502").getEnergy(), 0.1);
+		Assert.assertEquals("Stir-Fry Rice Noodles", products.get("737628064502").getName());
+		Assert.assertFalse(products.get("4029764001401").hasEnergy());
+	}
+
+	@Test(expected = IOException.class)
+	public void testParseNull() throws IOException {
+		ProductParser.parse("null".getBytes(StandardCharsets.US_ASCII), 0);
+	}
+
+	@Test
+	public void testEncodeDecode() throws IOException {
+		ProductInfo product = ProductParser.parse(readResource("737628064502.json"), 1234);
+		byte[] data = product.encode();
+		Assert.assertTrue(data.length < 50);
+
+		ProductInfo decoded = ProductInfo.decode(data, 0);
+		Assert.assertEquals(product.getName(), decoded.getName());
+		Assert.assertEquals(product.getEnergy(), decoded.getEnergy(), 0.0);
+		Assert.assertTrue(decoded.isFound());
+		Assert.assertEquals(1234, decoded.getRetrieved());
+	}
+
+	private byte[] readResource(String name) throws IOException {
+		try (InputStream is = getClass().getClassLoader().getResourceAsStream(name)) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				bos.write(buffer, 0, n);
+			}
+			return bos.toByteArray();
+		}
+	}
+
+	private ProductInfo parseResource(String name) throws IOException {
+		try (InputStream is = getClass().getClassLoader().getResourceAsStream(name)) {
+			return ProductParser.parse(is, 0);
+		}
+	}
+
+}
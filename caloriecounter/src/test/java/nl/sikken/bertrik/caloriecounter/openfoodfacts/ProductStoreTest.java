@@ -0,0 +1,163 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for ProductStore.
+ */
+public final class ProductStoreTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void testPutGetReopen() throws IOException {
+		File dir = tempFolder.newFolder("store");
+		ProductStore store = new ProductStore(dir, 1024 * 1024);
+		store.open();
+		try {
+			store.put("1", bytes("one"), 1000);
+			store.put("2", bytes("two"));
+			store.put("1", bytes("uno"), 2000);
+			store.remove("2");
+			Assert.assertEquals("uno", text(store.get("1")));
+			Assert.assertNull(store.get("2"));
+		} finally {
+			store.close();
+		}
+
+		// all changes survive a reopen
+		store.open();
+		try {
+			Assert.assertEquals(1, store.size());
+			Assert.assertEquals("uno", text(store.get("1")));
+			Assert.assertEquals(2000, store.getTimestamp("1"));
+			Assert.assertNull(store.get("2"));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testTornWrite() throws IOException {
+		File dir = tempFolder.newFolder("store");
+		ProductStore store = new ProductStore(dir, 1024 * 1024);
+		store.open();
+		store.put("1", bytes("one"));
+		store.put("2", bytes("two"));
+		store.close();
+
+		// chop off the last few bytes, as if the process crashed half-way a write
+		File segment = dir.listFiles()[0];
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.setLength(raf.length() - 2);
+		}
+
+		store.open();
+		try {
+			Assert.assertEquals("one", text(store.get("1")));
+			Assert.assertNull(store.get("2"));
+
+			// the store remains writable after the torn record
+			store.put("3", bytes("three"));
+			Assert.assertEquals("three", text(store.get("3")));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testEvictOldest() throws IOException {
+		File dir = tempFolder.newFolder("store");
+		ProductStore store = new ProductStore(dir, 1000);
+		store.open();
+		try {
+			byte[] value = new byte[100];
+			for (int i = 0; i < 20; i++) {
+				store.put(Integer.toString(i), value, 1000 + i);
+			}
+			Assert.assertTrue(store.getTotalBytes() <= 1000);
+			Assert.assertTrue(store.size() < 20);
+			// newest entry is kept, oldest is gone
+			Assert.assertNotNull(store.get("19"));
+			Assert.assertNull(store.get("0"));
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Verifies that a store at its size limit does not compact on every write, neither when adding nor when
+	 * overwriting products.
+	 */
+	@Test
+	public void testCompactionHeadroom() throws IOException {
+		File dir = tempFolder.newFolder("store");
+		ProductStore store = new ProductStore(dir, 64 * 1024);
+		store.open();
+		try {
+			byte[] value = new byte[100];
+			for (int i = 0; i < 2000; i++) {
+				store.putBulk(Integer.toString(i), value, i);
+				Assert.assertTrue(store.getTotalBytes() <= (64 * 1024));
+			}
+			// each compaction leaves room for about 130 more products
+			long compactions = store.getCompactionCount();
+			Assert.assertTrue(compactions > 0);
+			Assert.assertTrue(compactions <= 2000 / 100);
+
+			// refreshing the products kept is no different
+			for (int i = 0; i < 2000; i++) {
+				store.putBulk(Integer.toString(1999 - (i % 300)), value, 2000 + i);
+			}
+			Assert.assertTrue(store.getCompactionCount() - compactions <= 2000 / 100);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testCompactionCrash() throws IOException {
+		File dir = tempFolder.newFolder("store");
+		ProductStore store = new ProductStore(dir, 1024 * 1024);
+		store.open();
+		store.put("1", bytes("one"), 1000);
+		store.put("2", bytes("two"), 1000);
+		File segment = dir.listFiles()[0];
+		byte[] before = Files.readAllBytes(segment.toPath());
+		store.put("1", bytes("uno"), 2000);
+		store.remove("2");
+		store.compact();
+		store.close();
+
+		// the old segment is left behind, as if the process crashed before deleting it
+		Files.write(segment.toPath(), before);
+		store.open();
+		try {
+			Assert.assertEquals(1, store.size());
+			Assert.assertEquals("uno", text(store.get("1")));
+			Assert.assertNull(store.get("2"));
+			Assert.assertFalse(segment.exists());
+		} finally {
+			store.close();
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String text(byte[] data) {
+		return (data != null) ? new String(data, StandardCharsets.UTF_8) : null;
+	}
+
+}
@@ -0,0 +1,108 @@
+package nl.sikken.bertrik.caloriecounter.openfoodfacts;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.CircuitBreaker.CircuitOpenException;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.CircuitBreaker.EState;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.mock.Calls;
+
+/**
+ * Unit test for RemoteCaller.
+ */
+public final class RemoteCallerTest {
+
+	private static final MediaType JSON = MediaType.parse("application/json");
+
+	/**
+	 * Verifies that a failed call is retried, and that a 404 is not.
+	 */
+	@Test
+	public void testRetry() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		RemoteCaller remote = new RemoteCaller(3000, 2, false, 5, 60000);
+		Response<ResponseBody> response = remote.execute("product",
+				() -> (calls.incrementAndGet() <= 2) ? error(503) : Calls.response(ResponseBody.create(JSON, "{}")));
+		Assert.assertEquals(200, response.code());
+		Assert.assertEquals(3, calls.get());
+		Assert.assertEquals(2, remote.getRetryCount());
+
+		calls.set(0);
+		Assert.assertEquals(404, remote.execute("product", () -> {
+			calls.incrementAndGet();
+			return error(404);
+		}).code());
+		Assert.assertEquals(1, calls.get());
+	}
+
+	/**
+	 * Verifies that calls fail fast after consecutive failures, and that a successful trial call closes the circuit.
+	 */
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		RemoteCaller remote = new RemoteCaller(3000, 0, false, 2, 50);
+		for (int i = 0; i < 2; i++) {
+			try {
+				remote.execute("product", () -> {
+					calls.incrementAndGet();
+					return Calls.failure(new IOException("offline"));
+				});
+				Assert.fail();
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		Assert.assertEquals(EState.OPEN, remote.getBreakerState());
+		try {
+			remote.execute("product", () -> {
+				calls.incrementAndGet();
+				return Calls.response(ResponseBody.create(JSON, "{}"));
+			});
+			Assert.fail();
+		} catch (CircuitOpenException e) {
+			// expected, without a call
+			Assert.assertEquals(2, calls.get());
+		}
+
+		Thread.sleep(100);
+		Assert.assertEquals(200, remote.execute("product", () -> Calls.response(ResponseBody.create(JSON, "{}"))).code());
+		Assert.assertEquals(EState.CLOSED, remote.getBreakerState());
+	}
+
+	/**
+	 * Verifies that the timeout follows the observed latency of its endpoint, within bounds, and that a call that
+	 * timed out counts with the timeout as its latency.
+	 */
+	@Test
+	public void testAdaptiveTimeout() throws IOException {
+		RemoteCaller remote = new RemoteCaller(3000, 0, false, 5, 60000);
+		Assert.assertEquals(3000, remote.getTimeout("product"));
+		for (int i = 0; i < 20; i++) {
+			remote.execute("product", () -> Calls.response(ResponseBody.create(JSON, "{}")));
+		}
+		Assert.assertEquals(500, remote.getTimeout("product"));
+		Assert.assertEquals(3000, remote.getTimeout("search"));
+
+		try {
+			remote.execute("product", () -> Calls.failure(new InterruptedIOException("timeout")));
+			Assert.fail();
+		} catch (InterruptedIOException e) {
+			// expected
+		}
+		Assert.assertEquals(1500, remote.getTimeout("product"));
+	}
+
+	private static Call<ResponseBody> error(int code) {
+		return Calls.response(Response.<ResponseBody>error(code, ResponseBody.create(JSON, "{}")));
+	}
+
+}
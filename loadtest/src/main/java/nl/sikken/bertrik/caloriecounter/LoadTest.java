@@ -0,0 +1,286 @@
+package nl.sikken.bertrik.caloriecounter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import nl.sikken.bertrik.caloriecounter.loadtest.MockOpenFoodFacts;
+import nl.sikken.bertrik.caloriecounter.loadtest.SaleTracker;
+import nl.sikken.bertrik.caloriecounter.loadtest.ZipfGenerator;
+import nl.sikken.bertrik.caloriecounter.openfoodfacts.Gtin;
+
+/**
+ * Offline load test of the complete application.
+ *
+ * Starts an embedded MQTT broker and a stand-in OpenFoodFacts server, runs the application against them, replays a
+ * stream of sales at a fixed rate and reports the throughput and the latency from sending a sale to receiving the
+ * updated energy total. Sales are sent on schedule regardless of how fast the application keeps up, and latency is
+ * measured from the scheduled time, so a stalled application shows up in the latency instead of slowing the test down.
+ *
+ * Options are given as key=value arguments, see {@link #DEFAULTS}, e.g. "rate=200 duration=60 latency=50".
+ */
+public final class LoadTest {
+
+    private static final String SOURCE_TOPIC = "loadtest/sales";
+    private static final String DEST_TOPIC = "loadtest/energy";
+
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        // sales per second, and test duration (s)
+        DEFAULTS.put("rate", "100");
+        DEFAULTS.put("duration", "30");
+        // number of distinct products, and the exponent of their Zipf popularity
+        DEFAULTS.put("products", "5000");
+        DEFAULTS.put("zipf", "1.0");
+        // mean latency of the OpenFoodFacts stand-in (ms) and the fraction of its requests that fail
+        DEFAULTS.put("latency", "100");
+        DEFAULTS.put("errors", "0.0");
+        // application publish interval (ms) and QoS
+        DEFAULTS.put("interval", "0");
+        DEFAULTS.put("qos", "1");
+        // time after which an unpublished sale counts as failed (s)
+        DEFAULTS.put("timeout", "10");
+        DEFAULTS.put("seed", "1");
+        // optional file with recorded sales, one "<offset ms> <bar code>" per line, replayed instead of a Zipf stream
+        DEFAULTS.put("replay", "");
+        // optional MQTT topic on which the application shares retrieved products, as it would with other instances
+        DEFAULTS.put("cache", "");
+    }
+
+    /**
+     * A sale to send.
+     */
+    private static final class Sale {
+        private final long offset;
+        private final String barCode;
+
+        private Sale(long offset, String barCode) {
+            this.offset = offset;
+            this.barCode = barCode;
+        }
+    }
+
+    private LoadTest() {
+        // entry point only
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param arguments the options, as key=value
+     * @throws Exception in case the test could not be run
+     */
+    public static void main(String[] arguments) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String argument : arguments) {
+            String[] parts = argument.split("=", 2);
+            if ((parts.length != 2) || !DEFAULTS.containsKey(parts[0])) {
+                System.err.println("Unknown option '" + argument + "', known options are " + DEFAULTS.keySet());
+                System.exit(1);
+            }
+            options.put(parts[0], parts[1]);
+        }
+
+        List<Sale> sales = options.get("replay").isEmpty() ? generateSales(options) : readSales(options.get("replay"));
+        Path dir = Files.createTempDirectory("loadtest");
+        int port = findFreePort();
+        Server broker = startBroker(dir, port);
+        MockOpenFoodFacts off = new MockOpenFoodFacts(Double.parseDouble(options.get("latency")),
+                Double.parseDouble(options.get("errors")));
+        off.start();
+        CalorieCounter app = new CalorieCounter(createConfig(options, dir, "tcp://localhost:" + port, off.getUrl()));
+        try {
+            app.start();
+            run(options, sales, "tcp://localhost:" + port, off);
+        } finally {
+            app.stop();
+            off.stop();
+            broker.stopServer();
+            deleteRecursively(dir);
+        }
+        System.exit(0);
+    }
+
+    private static void run(Map<String, String> options, List<Sale> sales, String url, MockOpenFoodFacts off)
+            throws MqttException, InterruptedException {
+        SaleTracker tracker = new SaleTracker(TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("timeout"))));
+        MqttConnectOptions connectOptions = new MqttConnectOptions();
+        connectOptions.setMaxInflight(1000);
+
+        // receive the published totals
+        MqttClient receiver = new MqttClient(url, "loadtest-receiver", new MemoryPersistence());
+        receiver.connect(connectOptions);
+        receiver.subscribe(DEST_TOPIC, 1, (topic, message) -> {
+            String text = new String(message.getPayload(), StandardCharsets.US_ASCII);
+            tracker.published(System.nanoTime(), Long.parseLong(text.replace(" kJ", "").trim()));
+        });
+
+        // send the sales on schedule
+        MqttClient sender = new MqttClient(url, "loadtest-sender", new MemoryPersistence());
+        sender.connect(connectOptions);
+        int qos = Integer.parseInt(options.get("qos"));
+        long start = System.nanoTime();
+        for (Sale sale : sales) {
+            long scheduled = start + TimeUnit.MILLISECONDS.toNanos(sale.offset);
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            tracker.sent(scheduled, MockOpenFoodFacts.energyOf(sale.barCode));
+            sender.publish(SOURCE_TOPIC, sale.barCode.getBytes(StandardCharsets.US_ASCII), qos, false);
+        }
+        long sendTime = System.nanoTime() - start;
+
+        // wait for the remaining sales to complete or time out
+        while (tracker.getOutstanding() > 0) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            tracker.expire(System.nanoTime());
+        }
+        long totalTime = System.nanoTime() - start;
+        sender.disconnect();
+        receiver.disconnect();
+
+        report(tracker, sendTime, totalTime, off);
+    }
+
+    private static void report(SaleTracker tracker, long sendTime, long totalTime, MockOpenFoodFacts off) {
+        System.out.printf(Locale.ROOT, "sales sent      : %d in %.1f s (%.1f/s)%n", tracker.getSentCount(),
+                sendTime / 1e9, tracker.getSentCount() / (sendTime / 1e9));
+        System.out.printf(Locale.ROOT, "sales completed : %d (%.1f/s)%n", tracker.getCompletedCount(),
+                tracker.getCompletedCount() / (totalTime / 1e9));
+        System.out.printf(Locale.ROOT, "sales failed    : %d%n", tracker.getFailedCount());
+        System.out.printf(Locale.ROOT, "latency (ms)    : p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                tracker.getPercentile(0.5) / 1e6, tracker.getPercentile(0.99) / 1e6,
+                tracker.getPercentile(0.999) / 1e6, tracker.getPercentile(1.0) / 1e6);
+        System.out.printf(Locale.ROOT, "OFF requests    : %d (%d failed)%n", off.getRequestCount(),
+                off.getErrorCount());
+    }
+
+    /**
+     * Generates sales of Zipf distributed products, evenly spaced at the configured rate.
+     */
+    private static List<Sale> generateSales(Map<String, String> options) {
+        double rate = Double.parseDouble(options.get("rate"));
+        long count = Math.round(rate * Double.parseDouble(options.get("duration")));
+        int products = Integer.parseInt(options.get("products"));
+        Random random = new Random(Long.parseLong(options.get("seed")));
+        ZipfGenerator zipf = new ZipfGenerator(products, Double.parseDouble(options.get("zipf")), random);
+
+        // a random (but fixed) bar code for each rank, in the GS1 range for in-store use
+        long[] gtins = new long[products];
+        for (int i = 0; i < products; i++) {
+            gtins[i] = withCheckDigit(200000000000L + (Math.floorMod(random.nextLong(), 100000000000L)));
+        }
+        List<Sale> sales = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            sales.add(new Sale(Math.round(i * 1000 / rate), Gtin.format(gtins[zipf.next() - 1])));
+        }
+        return sales;
+    }
+
+    /**
+     * Reads recorded sales, skipping lines that are not a valid bar code.
+     */
+    private static List<Sale> readSales(String fileName) throws IOException {
+        List<Sale> sales = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.US_ASCII)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 2) {
+                long gtin = Gtin.parse(fields[1]);
+                if (gtin != Gtin.INVALID) {
+                    sales.add(new Sale(Long.parseLong(fields[0]), Gtin.format(gtin)));
+                }
+            }
+        }
+        sales.sort(Comparator.comparingLong(s -> s.offset));
+        return sales;
+    }
+
+    /**
+     * Appends the check digit to a 12-digit number, giving a valid EAN-13 value.
+     */
+    private static long withCheckDigit(long digits) {
+        int sum = 0;
+        long rest = digits;
+        for (int i = 0; rest > 0; i++) {
+            int digit = (int) (rest % 10);
+            sum += ((i % 2) == 0) ? (3 * digit) : digit;
+            rest /= 10;
+        }
+        return (digits * 10) + ((10 - (sum % 10)) % 10);
+    }
+
+    private static ICalorieCounterConfig createConfig(Map<String, String> options, Path dir, String mqttUrl,
+            String offUrl) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("mqtt.source.url", mqttUrl);
+        properties.setProperty("mqtt.source.topic", SOURCE_TOPIC);
+        properties.setProperty("mqtt.dest.url", mqttUrl);
+        properties.setProperty("mqtt.dest.topic", DEST_TOPIC);
+        properties.setProperty("mqtt.dest.qos", options.get("qos"));
+        properties.setProperty("mqtt.dest.retained", "false");
+        properties.setProperty("mqtt.dest.interval", options.get("interval"));
+        properties.setProperty("mqtt.dest.format", "text");
+        properties.setProperty("off.url", offUrl);
+        properties.setProperty("off.storage", dir.resolve("off").toString());
+        properties.setProperty("energy.window", "24h");
+        properties.setProperty("energy.state", dir.resolve("energy.dat").toString());
+        properties.setProperty("cache.topic", options.get("cache"));
+        properties.setProperty("history.dir", dir.resolve("history").toString());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        properties.store(bos, null);
+        CalorieCounterConfig config = new CalorieCounterConfig();
+        config.load(new ByteArrayInputStream(bos.toByteArray()));
+        return config;
+    }
+
+    private static Server startBroker(Path dir, int port) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("host", "localhost");
+        properties.setProperty("port", String.valueOf(port));
+        properties.setProperty("allow_anonymous", "true");
+        properties.setProperty("persistent_store", "");
+        properties.setProperty("data_path", dir.resolve("broker").toString());
+        Server broker = new Server();
+        broker.startServer(new MemoryConfig(properties));
+        return broker;
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package nl.sikken.bertrik.caloriecounter.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the OpenFoodFacts service.
+ *
+ * Answers the v2 product and search requests with JSON shaped like the real responses, but only with the fields we
+ * request. Every valid bar code is a known product, with an energy derived from the bar code, so the expected totals
+ * can be computed by the load generator. The latency of each request is exponentially distributed around the
+ * configured mean, and a configurable fraction of the requests fails with HTTP 503.
+ */
+public final class MockOpenFoodFacts {
+
+    private static final String PRODUCT_PATH = "/api/v2/product/";
+    private static final String SEARCH_PATH = "/api/v2/search";
+
+    private final double meanLatency;
+    private final double errorRate;
+    private final ExecutorService executor = Executors.newFixedThreadPool(16);
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private HttpServer server;
+
+    /**
+     * Constructor.
+     *
+     * @param meanLatency the mean latency of a request (ms)
+     * @param errorRate the fraction of requests answered with HTTP 503
+     */
+    public MockOpenFoodFacts(double meanLatency, double errorRate) {
+        this.meanLatency = meanLatency;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * The energy of the product with the given bar code, between 100 and 999 kJ.
+     *
+     * @param barCode the bar code
+     * @return the energy per serving (kJ)
+     */
+    public static int energyOf(String barCode) {
+        return 100 + Math.floorMod(barCode.hashCode(), 900);
+    }
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @throws IOException in case the server could not be started
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(PRODUCT_PATH, this::handleProduct);
+        server.createContext(SEARCH_PATH, this::handleSearch);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL of the server, e.g. http://localhost:12345
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    private void handleProduct(HttpExchange exchange) throws IOException {
+        String barCode = exchange.getRequestURI().getPath().substring(PRODUCT_PATH.length());
+        if (!simulate(exchange)) {
+            return;
+        }
+        respond(exchange, 200, "{\"code\":\"" + barCode + "\",\"status\":1,\"status_verbose\":\"product found\","
+                + "\"product\":" + product(barCode, false) + "}");
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        String codes = queryParameter(exchange.getRequestURI(), "code");
+        if (!simulate(exchange)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{\"products\":[");
+        String[] barCodes = codes.isEmpty() ? new String[0] : codes.split(",");
+        for (int i = 0; i < barCodes.length; i++) {
+            sb.append((i > 0) ? "," : "").append(product(barCodes[i], true));
+        }
+        sb.append("],\"count\":").append(barCodes.length).append(",\"page\":1,\"page_size\":")
+                .append(barCodes.length).append('}');
+        respond(exchange, 200, sb.toString());
+    }
+
+    /**
+     * Applies the latency and the error rate to a request.
+     *
+     * @return whether the request should be answered normally
+     */
+    private boolean simulate(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long latency = Math.round(-meanLatency * Math.log(1.0 - random.nextDouble()));
+        try {
+            TimeUnit.MILLISECONDS.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (random.nextDouble() < errorRate) {
+            errorCount.incrementAndGet();
+            respond(exchange, 503, "{\"status\":0,\"status_verbose\":\"service unavailable\"}");
+            return false;
+        }
+        return true;
+    }
+
+    private static String product(String barCode, boolean withCode) {
+        return "{" + (withCode ? "\"code\":\"" + barCode + "\"," : "") + "\"product_name\":\"Product " + barCode
+                + "\",\"nutriments\":{\"energy_serving\":" + energyOf(barCode) + ",\"energy_unit\":\"kJ\"}}";
+    }
+
+    private static String queryParameter(URI uri, String name) {
+        String query = uri.getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith(name + "=")) {
+                    return pair.substring(name.length() + 1);
+                }
+            }
+        }
+        return "";
+    }
+
+    private static void respond(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, data.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(data);
+        }
+    }
+
+}
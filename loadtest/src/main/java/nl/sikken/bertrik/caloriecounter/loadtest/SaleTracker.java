@@ -0,0 +1,127 @@
+package nl.sikken.bertrik.caloriecounter.loadtest;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Correlates sent sales with published energy totals, to measure the latency from sale to publish.
+ *
+ * The application only publishes totals, and coalesces updates, so a single publish can complete several sales. Sales
+ * are resolved in order of arrival, so a sale is complete as soon as a published total includes the energy of that
+ * sale and all sales before it. A sale that is not complete within the timeout is counted as failed, and its energy is
+ * no longer expected in the totals.
+ */
+public final class SaleTracker {
+
+    /**
+     * A sale that has not been published yet.
+     */
+    private static final class Sale {
+        private final long sent;
+        private final long energy;
+        private final long cumulative;
+
+        private Sale(long sent, long energy, long cumulative) {
+            this.sent = sent;
+            this.energy = energy;
+            this.cumulative = cumulative;
+        }
+    }
+
+    private final long timeout;
+
+    // guarded by this
+    private final Deque<Sale> outstanding = new ArrayDeque<>();
+    private long cumulative;
+    private long lost;
+    private long sentCount;
+    private long failedCount;
+    private long[] latencies = new long[1024];
+    private int completedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param timeout the time after which an unpublished sale counts as failed (ns)
+     */
+    public SaleTracker(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Records a sent sale.
+     *
+     * @param sent the time the sale was (supposed to be) sent (ns)
+     * @param energy the expected energy of the sale (kJ)
+     */
+    public synchronized void sent(long sent, long energy) {
+        cumulative += energy;
+        outstanding.addLast(new Sale(sent, energy, cumulative));
+        sentCount++;
+    }
+
+    /**
+     * Records a published energy total, completing the sales it includes.
+     *
+     * @param now the time the total was received (ns)
+     * @param total the published total (kJ)
+     */
+    public synchronized void published(long now, long total) {
+        expire(now);
+        while (!outstanding.isEmpty() && ((outstanding.peekFirst().cumulative - lost) <= total)) {
+            Sale sale = outstanding.removeFirst();
+            if (completedCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * latencies.length);
+            }
+            latencies[completedCount++] = now - sale.sent;
+        }
+    }
+
+    /**
+     * Counts the sales that did not complete within the timeout as failed.
+     *
+     * @param now the current time (ns)
+     */
+    public synchronized void expire(long now) {
+        while (!outstanding.isEmpty() && ((now - outstanding.peekFirst().sent) > timeout)) {
+            Sale sale = outstanding.removeFirst();
+            lost += sale.energy;
+            failedCount++;
+        }
+    }
+
+    /**
+     * @return the number of sales not yet completed or failed
+     */
+    public synchronized int getOutstanding() {
+        return outstanding.size();
+    }
+
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @param fraction the percentile as fraction, e.g. 0.99
+     * @return the latency below which the given fraction of the completed sales lie (ns), -1 if none completed
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (completedCount == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, completedCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * completedCount) - 1;
+        return sorted[Math.max(0, Math.min(completedCount - 1, index))];
+    }
+
+}
@@ -0,0 +1,46 @@
+package nl.sikken.bertrik.caloriecounter.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws ranks from a Zipf distribution: rank k (1-based) is drawn with a probability proportional to 1 / k^exponent.
+ *
+ * This mimics a bar where a few products are sold most of the time, and many products only now and then.
+ */
+public final class ZipfGenerator {
+
+    private final double[] cdf;
+    private final Random random;
+
+    /**
+     * Constructor.
+     *
+     * @param n the number of ranks
+     * @param exponent the exponent, 0 gives a uniform distribution, around 1 is typical for sales
+     * @param random the source of randomness
+     */
+    public ZipfGenerator(int n, double exponent, Random random) {
+        this.cdf = new double[n];
+        this.random = random;
+        double sum = 0.0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1.0 / Math.pow(k, exponent);
+            cdf[k - 1] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    /**
+     * @return the next rank, from 1 (most frequent) to n
+     */
+    public int next() {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        // not found gives -(insertion point) - 1, the insertion point is the first entry above the value
+        int rank = (index >= 0) ? index : (-index - 1);
+        return Math.min(rank, cdf.length - 1) + 1;
+    }
+
+}